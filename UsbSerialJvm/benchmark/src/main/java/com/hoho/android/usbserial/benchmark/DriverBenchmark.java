@@ -0,0 +1,126 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.benchmark;
+
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocking reads and writes through each driver, against a device which
+ * always has data and always accepts it.
+ * <p>
+ * Operations per second are transfers per second, and the {@code bytes}
+ * counter is bytes per second.  The {@code *Latency} benchmarks give the
+ * time per transfer with percentiles, including p99; run with
+ * {@code -prof gc} for allocations per transfer
+ * ({@code gc.alloc.rate.norm}).
+ * <p>
+ * {@link FtdiReadBenchmark} compares FTDI async reads with bulk transfers,
+ * including at a limited baud rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DriverBenchmark {
+
+    private static final int TIMEOUT_MILLIS = 1000;
+
+    @Param({"CDC_ACM", "FTDI_FT232R", "FTDI_FT232H", "CP2102", "PL2303"})
+    public SimulatedDevice device;
+
+    /** Bytes per read or write call. */
+    @Param({"64", "4096"})
+    public int transferSize;
+
+    /** See {@link SimulatedConnection#setLatencyNanos(long)}. */
+    @Param({"0"})
+    public long latencyNanos;
+
+    /** See {@link SimulatedConnection#setTransferOverheadNanos(long)}. */
+    @Param({"0"})
+    public long overheadNanos;
+
+    private SimulatedConnection mConnection;
+    private UsbSerialDriver mDriver;
+    private byte[] mBuffer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mConnection = device.newConnection(latencyNanos, overheadNanos);
+        mConnection.setStreaming();
+        mDriver = device.open(mConnection);
+        mBuffer = new byte[transferSize];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mDriver.close();
+    }
+
+    @Benchmark
+    public int read(ByteCounter counter) throws IOException {
+        final int count = mDriver.read(mBuffer, TIMEOUT_MILLIS);
+        counter.bytes += count;
+        return count;
+    }
+
+    @Benchmark
+    public int write(ByteCounter counter) throws IOException {
+        final int count = mDriver.write(mBuffer, TIMEOUT_MILLIS);
+        counter.bytes += count;
+        return count;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int readLatency() throws IOException {
+        return mDriver.read(mBuffer, TIMEOUT_MILLIS);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int writeLatency() throws IOException {
+        return mDriver.write(mBuffer, TIMEOUT_MILLIS);
+    }
+
+}
@@ -0,0 +1,210 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+package com.hoho.android.usbserial.benchmark;
+
+import com.hoho.android.usbserial.util.FrameDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes about 1 MiB of frames, encoded in advance, with each
+ * {@link FrameDecoder}.  The data is fed in chunks as reads would return
+ * it; {@code IDLE_GAP} frames are fed one per chunk, each received after a
+ * gap.  Payloads are random, so SLIP and COBS have bytes to unescape.
+ * Operations per second are passes over the data, and the {@code bytes}
+ * counter is encoded bytes decoded per second; run with {@code -prof gc}
+ * to check that decoding allocates nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecoderBenchmark {
+
+    private static final int DATA_SIZE = 1 << 20;
+
+    private static final long GAP_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    public enum Codec {
+        DELIMITER,
+        LENGTH_PREFIX,
+        SLIP,
+        COBS,
+        IDLE_GAP
+    }
+
+    @Param({"DELIMITER", "LENGTH_PREFIX", "SLIP", "COBS", "IDLE_GAP"})
+    public Codec codec;
+
+    /** Payload bytes per frame. */
+    @Param({"16", "256"})
+    public int frameSize;
+
+    /** Bytes per decode call, as returned by one read; ignored for IDLE_GAP. */
+    @Param({"64", "4096"})
+    public int chunkSize;
+
+    private FrameDecoder mDecoder;
+    private byte[] mData;
+    private int mChunkSize;
+    private int mFrames;
+    private int mDecoded;
+
+    private final FrameDecoder.FrameListener mListener = new FrameDecoder.FrameListener() {
+        @Override
+        public void onFrame(ByteBuffer frame) {
+            mDecoded++;
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final Random random = new Random(0);
+        final byte[] payload = new byte[frameSize];
+        final ByteArrayOutputStream data = new ByteArrayOutputStream(DATA_SIZE + 4096);
+        mFrames = 0;
+        while (data.size() < DATA_SIZE) {
+            random.nextBytes(payload);
+            encode(payload, data);
+            mFrames++;
+        }
+        mData = data.toByteArray();
+        mChunkSize = chunkSize;
+        switch (codec) {
+            case DELIMITER:
+                mDecoder = new FrameDecoder.Delimiter(new byte[] { '\r', '\n' }, frameSize);
+                break;
+            case LENGTH_PREFIX:
+                mDecoder = new FrameDecoder.LengthPrefix(2, ByteOrder.BIG_ENDIAN, frameSize);
+                break;
+            case SLIP:
+                mDecoder = new FrameDecoder.Slip(frameSize);
+                break;
+            case COBS:
+                mDecoder = new FrameDecoder.Cobs(frameSize);
+                break;
+            case IDLE_GAP:
+                mDecoder = new FrameDecoder.IdleGap(GAP_NANOS, TimeUnit.NANOSECONDS, frameSize);
+                mChunkSize = frameSize;
+                break;
+        }
+        if (decode() != mFrames || mDecoder.getErrorCount() != 0) {
+            throw new IllegalStateException(codec + " decoded " + mDecoded + " of "
+                    + mFrames + " frames, " + mDecoder.getErrorCount() + " errors");
+        }
+    }
+
+    @Benchmark
+    public int decode(ByteCounter counter) {
+        final int frames = decode();
+        counter.bytes += mData.length;
+        return frames;
+    }
+
+    /** Decodes all the data, returning the number of frames delivered. */
+    private int decode() {
+        mDecoded = 0;
+        long nanoTime = 0;
+        for (int offset = 0; offset < mData.length; offset += mChunkSize) {
+            nanoTime += GAP_NANOS + 1;
+            mDecoder.decode(mData, offset, Math.min(mChunkSize, mData.length - offset), nanoTime,
+                    mListener);
+        }
+        // The last idle gap frame ends when the line stays silent.
+        mDecoder.onIdle(nanoTime + GAP_NANOS + 1, mListener);
+        return mDecoded;
+    }
+
+    private void encode(byte[] payload, ByteArrayOutputStream out) {
+        switch (codec) {
+            case DELIMITER:
+                // Printable payloads, which never contain the delimiter.
+                for (final byte b : payload) {
+                    out.write(' ' + (b & 0x3f));
+                }
+                out.write('\r');
+                out.write('\n');
+                break;
+            case LENGTH_PREFIX:
+                out.write(payload.length >> 8);
+                out.write(payload.length);
+                out.write(payload, 0, payload.length);
+                break;
+            case SLIP:
+                for (final byte b : payload) {
+                    if (b == FrameDecoder.Slip.END) {
+                        out.write(FrameDecoder.Slip.ESC);
+                        out.write(FrameDecoder.Slip.ESC_END);
+                    } else if (b == FrameDecoder.Slip.ESC) {
+                        out.write(FrameDecoder.Slip.ESC);
+                        out.write(FrameDecoder.Slip.ESC_ESC);
+                    } else {
+                        out.write(b);
+                    }
+                }
+                out.write(FrameDecoder.Slip.END);
+                break;
+            case COBS:
+                encodeCobs(payload, out);
+                out.write(0);
+                break;
+            case IDLE_GAP:
+                out.write(payload, 0, payload.length);
+                break;
+        }
+    }
+
+    private static void encodeCobs(byte[] payload, ByteArrayOutputStream out) {
+        int blockStart = 0;
+        for (int i = 0; i <= payload.length; i++) {
+            if (i == payload.length || payload[i] == 0 || i - blockStart == 254) {
+                out.write(i - blockStart + 1);
+                out.write(payload, blockStart, i - blockStart);
+                if (i < payload.length && payload[i] != 0) {
+                    // A full block: the next one starts here, with no zero.
+                    blockStart = i;
+                } else {
+                    blockStart = i + 1;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.benchmark;
+
+import android.os.Build;
+
+import com.hoho.android.usbserial.driver.FtdiSerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FTDI reads with bulk transfers against reads with a
+ * {@link android.hardware.usb.UsbRequest}, see
+ * {@link FtdiSerialDriver#setAsyncReadsEnabled(boolean)}.
+ * <p>
+ * At a baud rate of {@code 0} the device always has data, which shows the
+ * cost of each path.  At 3000000 baud (8N1) data arrives at 300 kB/s into
+ * the chip's receive buffer, 256 bytes on the FT232R and 1 KiB on the
+ * FT232H; a path which keeps up reads all of it, and {@code lostBytes}
+ * counts what overflowed.  See {@link DriverBenchmark} for what is
+ * reported.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FtdiReadBenchmark {
+
+    private static final int TIMEOUT_MILLIS = 1000;
+
+    public enum ReadMode {
+        BULK,
+        ASYNC
+    }
+
+    /** Bytes read, and bytes the device dropped meanwhile. */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class LineCounter {
+        public long bytes;
+        public long lostBytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            bytes = 0;
+            lostBytes = 0;
+        }
+    }
+
+    @Param({"FTDI_FT232R", "FTDI_FT232H"})
+    public SimulatedDevice device;
+
+    @Param({"BULK", "ASYNC"})
+    public ReadMode readMode;
+
+    /** Baud rate of the simulated line, or {@code 0} for no limit. */
+    @Param({"0", "3000000"})
+    public int baudRate;
+
+    /** Bytes per read call. */
+    @Param({"4096"})
+    public int transferSize;
+
+    /** See {@link SimulatedConnection#setLatencyNanos(long)}. */
+    @Param({"0"})
+    public long latencyNanos;
+
+    /** See {@link SimulatedConnection#setTransferOverheadNanos(long)}. */
+    @Param({"0"})
+    public long overheadNanos;
+
+    private SimulatedConnection mConnection;
+    private FtdiSerialDriver mDriver;
+    private byte[] mBuffer;
+    private long mLostBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // Async reads need http://b.android.com/28023 fixed.
+        Build.VERSION.SDK_INT = Build.VERSION_CODES.JELLY_BEAN_MR2;
+        mConnection = device.newConnection(latencyNanos, overheadNanos);
+        mDriver = (FtdiSerialDriver) device.open(mConnection);
+        mDriver.setAsyncReadsEnabled(readMode == ReadMode.ASYNC);
+        if (baudRate == 0) {
+            mConnection.setStreaming();
+        } else {
+            mDriver.setParameters(baudRate, 8, UsbSerialDriver.STOPBITS_1,
+                    UsbSerialDriver.PARITY_NONE);
+        }
+        mBuffer = new byte[transferSize];
+    }
+
+    /** Restarts the line, so that data lost between iterations is not counted. */
+    @Setup(Level.Iteration)
+    public void startLine() {
+        if (baudRate != 0) {
+            mConnection.setLineRate(baudRate / 10,
+                    device == SimulatedDevice.FTDI_FT232H ? 1024 : 256);
+            mLostBytes = 0;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mDriver.close();
+    }
+
+    @Benchmark
+    public int read(LineCounter counter) throws IOException {
+        final int count = mDriver.read(mBuffer, TIMEOUT_MILLIS);
+        counter.bytes += count;
+        final long lostBytes = mConnection.getLostBytes();
+        counter.lostBytes += lostBytes - mLostBytes;
+        mLostBytes = lostBytes;
+        return count;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int readLatency() throws IOException {
+        return mDriver.read(mBuffer, TIMEOUT_MILLIS);
+    }
+
+}
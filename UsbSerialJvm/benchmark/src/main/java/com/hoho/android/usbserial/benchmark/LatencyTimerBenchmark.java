@@ -0,0 +1,149 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+package com.hoho.android.usbserial.benchmark;
+
+import com.hoho.android.usbserial.driver.FtdiSerialDriver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips through an FTDI device which holds a partly filled packet
+ * until its latency timer expires or the event character arrives, see
+ * {@link SimulatedConnection#setLatencyTimerModelled(boolean)}.  A message
+ * ending in {@code '\n'} is written and read back in full.
+ * <p>
+ * A short message waits for the timer, so its round trip takes about
+ * 16 ms with the default timer and about 1 ms with a 1 ms timer, or with
+ * auto-latency, which keeps the timer low for short packets.  With the
+ * event character set, the reply is sent as soon as the newline arrives.
+ * A long message is sent as full packets at once and only its tail waits;
+ * auto-latency stays low since every reply ends in a short packet, and
+ * only raises the timer for steady streaming.  See {@link DriverBenchmark}
+ * for what is reported.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LatencyTimerBenchmark {
+
+    private static final int TIMEOUT_MILLIS = 1000;
+
+    public enum TimerMode {
+        /** The chip's default timer, 16 ms. */
+        FIXED_16,
+        /** The shortest timer, 1 ms. */
+        FIXED_1,
+        /** See {@link FtdiSerialDriver#setAutoLatency(int, int)}, from 1 to 16 ms. */
+        AUTO,
+        /** A 16 ms timer and {@code '\n'} as the event character. */
+        EVENT_CHAR
+    }
+
+    @Param({"FIXED_16", "FIXED_1", "AUTO", "EVENT_CHAR"})
+    public TimerMode timerMode;
+
+    @Param({"16", "4096"})
+    public int messageSize;
+
+    private SimulatedConnection mConnection;
+    private FtdiSerialDriver mDriver;
+    private byte[] mMessage;
+    private byte[] mBuffer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mConnection = SimulatedDevice.FTDI_FT232R.newConnection(0, 0);
+        mConnection.setEcho(true);
+        mConnection.setLatencyTimerModelled(true);
+        mDriver = (FtdiSerialDriver) SimulatedDevice.FTDI_FT232R.open(mConnection);
+        switch (timerMode) {
+            case FIXED_16:
+                mDriver.setLatencyTimer(16);
+                break;
+            case FIXED_1:
+                mDriver.setLatencyTimer(1);
+                break;
+            case AUTO:
+                mDriver.setAutoLatency(1, 16);
+                break;
+            case EVENT_CHAR:
+                mDriver.setLatencyTimer(16);
+                mDriver.setEventChar('\n', true);
+                break;
+        }
+        mMessage = new byte[messageSize];
+        Arrays.fill(mMessage, (byte) 'a');
+        mMessage[messageSize - 1] = '\n';
+        mBuffer = new byte[4096];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mDriver.close();
+    }
+
+    @Benchmark
+    public int roundTrip(ByteCounter counter) throws IOException {
+        final int count = echo();
+        counter.bytes += count;
+        return count;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int roundTripLatency() throws IOException {
+        return echo();
+    }
+
+    private int echo() throws IOException {
+        mDriver.write(mMessage, TIMEOUT_MILLIS);
+        int received = 0;
+        while (received < messageSize) {
+            final int count = mDriver.read(mBuffer, TIMEOUT_MILLIS);
+            if (count < 0) {
+                throw new IOException("Read failed: " + count);
+            }
+            received += count;
+        }
+        return received;
+    }
+
+}
@@ -0,0 +1,169 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.benchmark;
+
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.util.SerialInputOutputManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips through a running {@link SerialInputOutputManager}: a message
+ * is queued with {@code writeAsync()}, echoed by the device, and received
+ * by a {@link SerialInputOutputManager.BufferListener}.  Covers blocking
+ * and queued reads, with and without full duplex; see
+ * {@link DriverBenchmark} for what is reported.
+ * <p>
+ * {@link #writeLatency()} times only the way out, from {@code writeAsync()}
+ * until the device receives the transfer.  Without full duplex and with
+ * blocking reads, this includes waiting for the read in progress, of up to
+ * 200 ms.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ManagerBenchmark {
+
+    @Param({"CDC_ACM", "FTDI_FT232H", "CP2102"})
+    public SimulatedDevice device;
+
+    /** See {@link SerialInputOutputManager#setReadQueueDepth(int)}. */
+    @Param({"0", "8"})
+    public int readQueueDepth;
+
+    /** See {@link SerialInputOutputManager#setFullDuplex(boolean)}. */
+    @Param({"true", "false"})
+    public boolean fullDuplex;
+
+    @Param({"64", "1024"})
+    public int messageSize;
+
+    /** See {@link SimulatedConnection#setLatencyNanos(long)}. */
+    @Param({"0"})
+    public long latencyNanos;
+
+    /** See {@link SimulatedConnection#setTransferOverheadNanos(long)}. */
+    @Param({"0"})
+    public long overheadNanos;
+
+    private SimulatedConnection mConnection;
+    private UsbSerialDriver mDriver;
+    private SerialInputOutputManager mManager;
+    private Thread mThread;
+    private byte[] mMessage;
+
+    /** Written only by the thread delivering data. */
+    private volatile long mReceived = 0;
+    private volatile Exception mError;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mConnection = device.newConnection(latencyNanos, overheadNanos);
+        mConnection.setEcho(true);
+        mDriver = device.open(mConnection);
+        mManager = new SerialInputOutputManager(mDriver);
+        mManager.setReadQueueDepth(readQueueDepth);
+        mManager.setFullDuplex(fullDuplex);
+        mManager.setBufferListener(new SerialInputOutputManager.BufferListener() {
+            @Override
+            public void onNewData(ByteBuffer data) {
+                mReceived += data.remaining();
+                mManager.releaseBuffer(data);
+            }
+
+            @Override
+            public void onRunError(Exception e) {
+                mError = e;
+            }
+        });
+        mThread = new Thread(mManager, "ManagerBenchmark");
+        mThread.start();
+        mMessage = new byte[messageSize];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        mManager.stop();
+        mThread.join();
+        mDriver.close();
+    }
+
+    private void checkError() {
+        if (mError != null) {
+            throw new IllegalStateException(mError);
+        }
+    }
+
+    private void roundTrip() {
+        final long target = mReceived + mMessage.length;
+        mManager.writeAsync(mMessage);
+        while (mReceived < target) {
+            checkError();
+            Thread.yield();
+        }
+    }
+
+    @Benchmark
+    public void roundTrip(ByteCounter counter) {
+        roundTrip();
+        counter.bytes += mMessage.length;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void roundTripLatency() {
+        roundTrip();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void writeLatency() {
+        final long target = mConnection.getOutTransferCount() + 1;
+        mManager.writeAsync(mMessage);
+        while (mConnection.getOutTransferCount() < target) {
+            checkError();
+            Thread.yield();
+        }
+    }
+
+}
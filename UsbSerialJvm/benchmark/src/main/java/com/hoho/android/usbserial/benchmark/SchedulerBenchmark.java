@@ -0,0 +1,223 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.benchmark;
+
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.util.SerialInputOutputManager;
+import com.hoho.android.usbserial.util.SerialIoScheduler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Round trips through many ports at once: a message is written to every
+ * port, echoed by each device, and received by a
+ * {@link SerialInputOutputManager.BufferListener}.  Compares a
+ * {@link SerialIoScheduler}, which serves all ports from one dispatcher
+ * loop per connection and a fixed pool of listener threads, with a
+ * {@link SerialInputOutputManager} per port, which takes a reader and a
+ * writer thread per port.  Each operation is one message per port; see
+ * {@link DriverBenchmark} for what is reported.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchedulerBenchmark {
+
+    public enum Engine {
+        SCHEDULER,
+        MANAGERS
+    }
+
+    @Param({"1", "4", "16"})
+    public int ports;
+
+    @Param({"SCHEDULER", "MANAGERS"})
+    public Engine engine;
+
+    @Param({"CDC_ACM"})
+    public SimulatedDevice device;
+
+    /** Listener threads shared by all ports of a {@link SerialIoScheduler}. */
+    @Param({"2"})
+    public int listenerThreads;
+
+    /** Reads queued per port. */
+    @Param({"4"})
+    public int readQueueDepth;
+
+    @Param({"64"})
+    public int messageSize;
+
+    /** See {@link SimulatedConnection#setLatencyNanos(long)}. */
+    @Param({"0"})
+    public long latencyNanos;
+
+    /** See {@link SimulatedConnection#setTransferOverheadNanos(long)}. */
+    @Param({"0"})
+    public long overheadNanos;
+
+    private UsbSerialDriver[] mDrivers;
+    private ExecutorService mExecutor;
+    private SerialIoScheduler mScheduler;
+    private SerialIoScheduler.Port[] mPorts;
+    private SerialInputOutputManager[] mManagers;
+    private Thread[] mThreads;
+    private byte[] mMessage;
+
+    /** Bytes received by all ports. */
+    private final AtomicLong mReceived = new AtomicLong();
+    private volatile Exception mError;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDrivers = new UsbSerialDriver[ports];
+        for (int i = 0; i < ports; i++) {
+            final SimulatedConnection connection =
+                    device.newConnection(latencyNanos, overheadNanos);
+            connection.setEcho(true);
+            mDrivers[i] = device.open(connection);
+        }
+        if (engine == Engine.SCHEDULER) {
+            mExecutor = Executors.newFixedThreadPool(listenerThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "SchedulerBenchmark");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            mScheduler = new SerialIoScheduler(mExecutor, readQueueDepth);
+            mPorts = new SerialIoScheduler.Port[ports];
+            for (int i = 0; i < ports; i++) {
+                final int port = i;
+                mPorts[i] = mScheduler.addPort(mDrivers[i],
+                        new SerialInputOutputManager.BufferListener() {
+                    @Override
+                    public void onNewData(ByteBuffer data) {
+                        mReceived.addAndGet(data.remaining());
+                        mPorts[port].releaseBuffer(data);
+                    }
+
+                    @Override
+                    public void onRunError(Exception e) {
+                        mError = e;
+                    }
+                });
+            }
+        } else {
+            mManagers = new SerialInputOutputManager[ports];
+            mThreads = new Thread[ports];
+            for (int i = 0; i < ports; i++) {
+                final SerialInputOutputManager manager =
+                        new SerialInputOutputManager(mDrivers[i]);
+                manager.setReadQueueDepth(readQueueDepth);
+                manager.setFullDuplex(true);
+                manager.setBufferListener(new SerialInputOutputManager.BufferListener() {
+                    @Override
+                    public void onNewData(ByteBuffer data) {
+                        mReceived.addAndGet(data.remaining());
+                        manager.releaseBuffer(data);
+                    }
+
+                    @Override
+                    public void onRunError(Exception e) {
+                        mError = e;
+                    }
+                });
+                mManagers[i] = manager;
+                mThreads[i] = new Thread(manager, "SchedulerBenchmark");
+                mThreads[i].start();
+            }
+        }
+        mMessage = new byte[messageSize];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        if (mScheduler != null) {
+            mScheduler.shutdown();
+            mExecutor.shutdown();
+        } else {
+            for (int i = 0; i < ports; i++) {
+                mManagers[i].stop();
+                mThreads[i].join();
+            }
+        }
+        for (final UsbSerialDriver driver : mDrivers) {
+            driver.close();
+        }
+    }
+
+    private void roundTrip() throws IOException {
+        final long target = mReceived.get() + (long) ports * mMessage.length;
+        for (int i = 0; i < ports; i++) {
+            if (mScheduler != null) {
+                mPorts[i].writeAsync(mMessage);
+            } else {
+                mManagers[i].writeAsync(mMessage);
+            }
+        }
+        while (mReceived.get() < target) {
+            if (mError != null) {
+                throw new IllegalStateException(mError);
+            }
+            Thread.yield();
+        }
+    }
+
+    @Benchmark
+    public void roundTrip(ByteCounter counter) throws IOException {
+        roundTrip();
+        counter.bytes += (long) ports * mMessage.length;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void roundTripLatency() throws IOException {
+        roundTrip();
+    }
+
+}
@@ -0,0 +1,291 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.benchmark;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbEndpoint;
+
+import com.hoho.android.usbserial.testing.FakeUsbDeviceConnection;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A device which sends packets of a fixed size, each starting with a
+ * status header of the given length as on FTDI chips, either without end
+ * or echoing what it is sent.  Data written is discarded, and nothing is
+ * allocated per transfer.
+ * <p>
+ * A streaming device may be limited to the rate of its serial line, see
+ * {@link #setLineRate(long, int)}; it then sends once a full packet is
+ * buffered, and drops what its buffer cannot hold.  A device with headers
+ * may model the FTDI latency timer, see
+ * {@link #setLatencyTimerModelled(boolean)}.
+ */
+public final class SimulatedConnection extends FakeUsbDeviceConnection {
+
+    private static final int MAX_TRANSFER_SIZE = 65536;
+
+    /** FTDI vendor requests which the latency timer model follows. */
+    private static final int FTDI_DEVICE_OUT_REQTYPE = 0x40;
+    private static final int SIO_SET_EVENT_CHAR_REQUEST = 0x06;
+    private static final int SIO_SET_LATENCY_TIMER_REQUEST = 0x09;
+    private static final int SIO_CHAR_ENABLE = 0x0100;
+
+    private final int mPacketSize;
+    private final int mHeaderLength;
+
+    /** What the device sends: a header at the start of each packet. */
+    private final byte[] mData = new byte[MAX_TRANSFER_SIZE];
+
+    // Guarded by 'this'
+    private long mAvailable = 0;
+    private boolean mEcho = false;
+
+    /**
+     * Time one byte takes on the serial line, or {@code 0} if data arrives
+     * as fast as it is read; the receive buffer size; when the last byte
+     * counted arrived; and the bytes dropped for lack of room.  Guarded by
+     * 'this'.
+     */
+    private long mLineNanosPerByte = 0;
+    private int mLineBufferSize;
+    private long mLineNanos;
+    private long mLostBytes = 0;
+
+    /**
+     * Latency timer model: whether it is on, the timer, the event
+     * character or {@code -1}, whether it was received and not yet sent,
+     * and when the last packet was sent.  Guarded by 'this'.
+     */
+    private boolean mTimerModelled = false;
+    private long mTimerNanos = TimeUnit.MILLISECONDS.toNanos(16);
+    private int mEventChar = -1;
+    private boolean mEventPending = false;
+    private long mLastPacketNanos;
+
+    /** Number of OUT transfers, written with the lock held. */
+    private volatile long mOutTransfers = 0;
+
+    public SimulatedConnection(int packetSize, int headerLength) {
+        mPacketSize = packetSize;
+        mHeaderLength = headerLength;
+        for (int i = 0; i < mData.length; i++) {
+            mData[i] = (byte) ('0' + i % 64);
+        }
+        if (headerLength > 0) {
+            for (int i = 0; i < mData.length; i += packetSize) {
+                mData[i] = 0x01;
+                mData[i + 1] = 0x60;
+            }
+        }
+    }
+
+    /** Makes the device send full packets without end. */
+    public synchronized void setStreaming() {
+        mAvailable = Long.MAX_VALUE;
+        notifyAll();
+    }
+
+    /**
+     * Makes the device stream data which arrives at the rate of its serial
+     * line, into a buffer of {@code bufferSize} bytes; use instead of
+     * {@link #setStreaming()}.
+     *
+     * @param bytesPerSecond the line's rate, e.g. a tenth of the baud rate
+     *            for 8N1, or {@code 0} for no limit
+     */
+    public synchronized void setLineRate(long bytesPerSecond, int bufferSize) {
+        mLineNanosPerByte = bytesPerSecond == 0 ? 0 : Math.max(1, 1000000000L / bytesPerSecond);
+        mLineBufferSize = bufferSize;
+        mLineNanos = System.nanoTime();
+        mAvailable = 0;
+        mLostBytes = 0;
+    }
+
+    /**
+     * Returns the number of bytes the device dropped because its receive
+     * buffer was full, as on an overrun.
+     */
+    public synchronized long getLostBytes() {
+        updateLine();
+        return mLostBytes;
+    }
+
+    /** Counts the bytes received from the line since last called. */
+    private void updateLine() {
+        if (mLineNanosPerByte == 0) {
+            return;
+        }
+        final long received = (System.nanoTime() - mLineNanos) / mLineNanosPerByte;
+        mLineNanos += received * mLineNanosPerByte;
+        mAvailable += received;
+        if (mAvailable > mLineBufferSize) {
+            mLostBytes += mAvailable - mLineBufferSize;
+            mAvailable = mLineBufferSize;
+        }
+    }
+
+    /**
+     * Makes the device, which must have status headers, hold a partly
+     * filled packet until its latency timer expires or the event character
+     * arrives, and send a bare header whenever the timer expires with
+     * nothing to send, as FTDI chips do.  The timer, 16 ms at first, and
+     * the event character are set by the driver's control transfers.
+     */
+    public synchronized void setLatencyTimerModelled(boolean modelled) {
+        mTimerModelled = modelled;
+        mLastPacketNanos = System.nanoTime();
+    }
+
+    @Override
+    public int controlTransfer(int requestType, int request, int value, int index,
+            byte[] buffer, int offset, int length, int timeout) {
+        final int result = super.controlTransfer(requestType, request, value, index, buffer,
+                offset, length, timeout);
+        if (result >= 0 && mHeaderLength > 0 && requestType == FTDI_DEVICE_OUT_REQTYPE) {
+            synchronized (this) {
+                if (request == SIO_SET_LATENCY_TIMER_REQUEST) {
+                    mTimerNanos = TimeUnit.MILLISECONDS.toNanos(value);
+                } else if (request == SIO_SET_EVENT_CHAR_REQUEST) {
+                    mEventChar = (value & SIO_CHAR_ENABLE) != 0 ? value & 0xff : -1;
+                }
+                notifyAll();
+            }
+        }
+        return result;
+    }
+
+    private synchronized boolean isTimerModelled() {
+        return mTimerModelled;
+    }
+
+    /** Makes the device send back each byte written to it. */
+    public synchronized void setEcho(boolean echo) {
+        mEcho = echo;
+    }
+
+    @Override
+    protected int onBulkIn(UsbEndpoint endpoint, byte[] buffer, int offset, int length) {
+        if (endpoint.getType() != UsbConstants.USB_ENDPOINT_XFER_BULK) {
+            return -1;
+        }
+        updateLine();
+        final int packetPayloadSize = mPacketSize - mHeaderLength;
+        final long now = System.nanoTime();
+        // Whether a partly filled packet, or a bare header, may be sent.
+        final boolean flush;
+        if (mTimerModelled) {
+            flush = mEventPending || now - mLastPacketNanos >= mTimerNanos;
+        } else {
+            flush = true;
+            if (mAvailable == 0
+                    || (mLineNanosPerByte != 0 && mAvailable < packetPayloadSize)) {
+                return -1;
+            }
+        }
+        final int maxCount = Math.min(length, MAX_TRANSFER_SIZE);
+        int count = 0;
+        while (count < maxCount) {
+            final int packetSize = Math.min(mPacketSize, maxCount - count);
+            final int payloadSize = (int) Math.min(packetSize - mHeaderLength, mAvailable);
+            if (payloadSize < 0 || (payloadSize < packetPayloadSize && !flush)
+                    || (payloadSize == 0 && count > 0)) {
+                break;
+            }
+            count += mHeaderLength + payloadSize;
+            mAvailable -= payloadSize;
+            if (mHeaderLength + payloadSize < mPacketSize) {
+                // A short packet ends the transfer.
+                break;
+            }
+        }
+        if (count == 0) {
+            return -1;
+        }
+        if (mTimerModelled) {
+            mLastPacketNanos = now;
+            if (mAvailable == 0) {
+                mEventPending = false;
+            }
+        }
+        System.arraycopy(mData, 0, buffer, offset, count);
+        return count;
+    }
+
+    @Override
+    protected long getInputDelayNanos() {
+        long delay = -1;
+        if (mLineNanosPerByte != 0) {
+            final long missing = mPacketSize - mHeaderLength - mAvailable;
+            delay = Math.max(1, missing * mLineNanosPerByte);
+        }
+        if (mTimerModelled) {
+            final long timerDelay = Math.max(1,
+                    mLastPacketNanos + mTimerNanos - System.nanoTime());
+            delay = delay < 0 ? timerDelay : Math.min(delay, timerDelay);
+        }
+        return delay;
+    }
+
+    /**
+     * Returns the number of OUT transfers and requests the device received,
+     * without taking the connection's lock.
+     */
+    public long getOutTransferCount() {
+        return mOutTransfers;
+    }
+
+    @Override
+    protected int onBulkOut(UsbEndpoint endpoint, byte[] buffer, int offset, int length) {
+        mOutTransfers++;
+        if (mEcho) {
+            mAvailable += length;
+            if (mEventChar >= 0) {
+                for (int i = offset; i < offset + length; i++) {
+                    if ((buffer[i] & 0xff) == mEventChar) {
+                        mEventPending = true;
+                        break;
+                    }
+                }
+            }
+            notifyAll();
+        }
+        return length;
+    }
+
+    /**
+     * Unless the latency timer is modelled, sends a bare status header
+     * instead of timing out, as FTDI chips do when the timer expires.
+     */
+    @Override
+    public int bulkTransfer(UsbEndpoint endpoint, byte[] buffer, int offset, int length,
+            int timeout) {
+        final int count = super.bulkTransfer(endpoint, buffer, offset, length, timeout);
+        if (count < 0 && mHeaderLength > 0 && length >= mHeaderLength && !isTimerModelled()
+                && endpoint.getDirection() == UsbConstants.USB_DIR_IN && !isClosed()) {
+            System.arraycopy(mData, 0, buffer, offset, mHeaderLength);
+            return mHeaderLength;
+        }
+        return count;
+    }
+
+}
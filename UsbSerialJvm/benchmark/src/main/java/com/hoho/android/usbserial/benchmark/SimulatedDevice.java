@@ -0,0 +1,112 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.benchmark;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+
+import com.hoho.android.usbserial.driver.CdcAcmSerialDriver;
+import com.hoho.android.usbserial.driver.Cp2102SerialDriver;
+import com.hoho.android.usbserial.driver.FtdiSerialDriver;
+import com.hoho.android.usbserial.driver.Pl2303SerialDriver;
+import com.hoho.android.usbserial.driver.UsbId;
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.testing.FakeUsbDevices;
+
+import java.io.IOException;
+
+/** The devices benchmarked, each with the real driver for it. */
+public enum SimulatedDevice {
+
+    CDC_ACM(64, 0) {
+        @Override
+        UsbSerialDriver newDriver(UsbDeviceConnection connection) {
+            return new CdcAcmSerialDriver(FakeUsbDevices.cdcAcm(getPacketSize()), connection);
+        }
+    },
+
+    FTDI_FT232R(64, 2) {
+        @Override
+        UsbSerialDriver newDriver(UsbDeviceConnection connection) {
+            final UsbDevice device = FakeUsbDevices.ftdi(UsbId.FTDI_FT232R, 1, getPacketSize());
+            return new FtdiSerialDriver(device, connection);
+        }
+    },
+
+    FTDI_FT232H(512, 2) {
+        @Override
+        UsbSerialDriver newDriver(UsbDeviceConnection connection) {
+            final UsbDevice device = FakeUsbDevices.ftdi(UsbId.FTDI_FT232H, 1, getPacketSize());
+            return new FtdiSerialDriver(device, connection);
+        }
+    },
+
+    CP2102(64, 0) {
+        @Override
+        UsbSerialDriver newDriver(UsbDeviceConnection connection) {
+            return new Cp2102SerialDriver(FakeUsbDevices.cp2102(), connection);
+        }
+    },
+
+    PL2303(64, 0) {
+        @Override
+        UsbSerialDriver newDriver(UsbDeviceConnection connection) {
+            return new Pl2303SerialDriver(FakeUsbDevices.pl2303(), connection);
+        }
+    };
+
+    private final int mPacketSize;
+    private final int mHeaderLength;
+
+    private SimulatedDevice(int packetSize, int headerLength) {
+        mPacketSize = packetSize;
+        mHeaderLength = headerLength;
+    }
+
+    public int getPacketSize() {
+        return mPacketSize;
+    }
+
+    abstract UsbSerialDriver newDriver(UsbDeviceConnection connection);
+
+    /**
+     * Returns a connection to a new simulated device.
+     *
+     * @param latencyNanos see {@link SimulatedConnection#setLatencyNanos(long)}
+     * @param overheadNanos see
+     *            {@link SimulatedConnection#setTransferOverheadNanos(long)}
+     */
+    public SimulatedConnection newConnection(long latencyNanos, long overheadNanos) {
+        final SimulatedConnection connection = new SimulatedConnection(mPacketSize, mHeaderLength);
+        connection.setLatencyNanos(latencyNanos);
+        connection.setTransferOverheadNanos(overheadNanos);
+        return connection;
+    }
+
+    /** Returns the device's driver, opened on {@code connection}. */
+    public UsbSerialDriver open(SimulatedConnection connection) throws IOException {
+        final UsbSerialDriver driver = newDriver(connection);
+        driver.open();
+        return driver;
+    }
+
+}
@@ -0,0 +1,86 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+package android.hardware.usb;
+
+/** JVM stand-in for a USB device. */
+public class UsbDevice {
+
+    private final String mName;
+    private final int mVendorId;
+    private final int mProductId;
+    private final int mClass;
+    private final int mSubclass;
+    private final int mProtocol;
+    private final UsbInterface[] mInterfaces;
+
+    public UsbDevice(String name, int vendorId, int productId, int deviceClass, int subclass,
+            int protocol, UsbInterface... interfaces) {
+        mName = name;
+        mVendorId = vendorId;
+        mProductId = productId;
+        mClass = deviceClass;
+        mSubclass = subclass;
+        mProtocol = protocol;
+        mInterfaces = interfaces.clone();
+    }
+
+    public String getDeviceName() {
+        return mName;
+    }
+
+    public int getDeviceId() {
+        return mName.hashCode();
+    }
+
+    public int getVendorId() {
+        return mVendorId;
+    }
+
+    public int getProductId() {
+        return mProductId;
+    }
+
+    public int getDeviceClass() {
+        return mClass;
+    }
+
+    public int getDeviceSubclass() {
+        return mSubclass;
+    }
+
+    public int getDeviceProtocol() {
+        return mProtocol;
+    }
+
+    public int getInterfaceCount() {
+        return mInterfaces.length;
+    }
+
+    public UsbInterface getInterface(int index) {
+        return mInterfaces[index];
+    }
+
+    @Override
+    public String toString() {
+        return "UsbDevice[" + mName + "]";
+    }
+
+}
@@ -0,0 +1,92 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+package android.hardware.usb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * JVM stand-in for a USB device connection.  Every transfer fails; fake
+ * devices override the transfers they support, and
+ * {@link #queueRequest(UsbRequest, ByteBuffer, int)} and
+ * {@link #cancelRequest(UsbRequest)} to support requests.
+ */
+public class UsbDeviceConnection {
+
+    public void close() {
+    }
+
+    public int getFileDescriptor() {
+        return -1;
+    }
+
+    public byte[] getRawDescriptors() {
+        return null;
+    }
+
+    public String getSerial() {
+        return null;
+    }
+
+    public boolean claimInterface(UsbInterface intf, boolean force) {
+        return true;
+    }
+
+    public boolean releaseInterface(UsbInterface intf) {
+        return true;
+    }
+
+    public int controlTransfer(int requestType, int request, int value, int index,
+            byte[] buffer, int length, int timeout) {
+        return controlTransfer(requestType, request, value, index, buffer, 0, length, timeout);
+    }
+
+    public int controlTransfer(int requestType, int request, int value, int index,
+            byte[] buffer, int offset, int length, int timeout) {
+        return -1;
+    }
+
+    public int bulkTransfer(UsbEndpoint endpoint, byte[] buffer, int length, int timeout) {
+        return bulkTransfer(endpoint, buffer, 0, length, timeout);
+    }
+
+    public int bulkTransfer(UsbEndpoint endpoint, byte[] buffer, int offset, int length,
+            int timeout) {
+        return -1;
+    }
+
+    public UsbRequest requestWait() {
+        return null;
+    }
+
+    /**
+     * Called by {@link UsbRequest#queue(ByteBuffer, int)}.  Not part of the
+     * Android API.
+     */
+    protected boolean queueRequest(UsbRequest request, ByteBuffer buffer, int length) {
+        return false;
+    }
+
+    /** Called by {@link UsbRequest#cancel()}.  Not part of the Android API. */
+    protected boolean cancelRequest(UsbRequest request) {
+        return false;
+    }
+
+}
@@ -0,0 +1,65 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+package android.hardware.usb;
+
+/** JVM stand-in for a USB interface. */
+public class UsbInterface {
+
+    private final int mId;
+    private final int mClass;
+    private final int mSubclass;
+    private final int mProtocol;
+    private final UsbEndpoint[] mEndpoints;
+
+    public UsbInterface(int id, int interfaceClass, int subclass, int protocol,
+            UsbEndpoint... endpoints) {
+        mId = id;
+        mClass = interfaceClass;
+        mSubclass = subclass;
+        mProtocol = protocol;
+        mEndpoints = endpoints.clone();
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public int getInterfaceClass() {
+        return mClass;
+    }
+
+    public int getInterfaceSubclass() {
+        return mSubclass;
+    }
+
+    public int getInterfaceProtocol() {
+        return mProtocol;
+    }
+
+    public int getEndpointCount() {
+        return mEndpoints.length;
+    }
+
+    public UsbEndpoint getEndpoint(int index) {
+        return mEndpoints[index];
+    }
+
+}
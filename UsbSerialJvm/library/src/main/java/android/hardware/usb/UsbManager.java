@@ -0,0 +1,40 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+package android.hardware.usb;
+
+import java.util.HashMap;
+
+/** JVM stand-in for the USB manager, which sees no devices. */
+public class UsbManager {
+
+    public HashMap<String, UsbDevice> getDeviceList() {
+        return new HashMap<String, UsbDevice>();
+    }
+
+    public UsbDeviceConnection openDevice(UsbDevice device) {
+        return null;
+    }
+
+    public boolean hasPermission(UsbDevice device) {
+        return false;
+    }
+
+}
@@ -0,0 +1,67 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+package android.hardware.usb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * JVM stand-in for an asynchronous USB request, which is queued and
+ * cancelled by its connection.
+ */
+public class UsbRequest {
+
+    private volatile UsbDeviceConnection mConnection;
+    private UsbEndpoint mEndpoint;
+    private Object mClientData;
+
+    public boolean initialize(UsbDeviceConnection connection, UsbEndpoint endpoint) {
+        mConnection = connection;
+        mEndpoint = endpoint;
+        return true;
+    }
+
+    public void close() {
+        mConnection = null;
+    }
+
+    public UsbEndpoint getEndpoint() {
+        return mEndpoint;
+    }
+
+    public Object getClientData() {
+        return mClientData;
+    }
+
+    public void setClientData(Object data) {
+        mClientData = data;
+    }
+
+    public boolean queue(ByteBuffer buffer, int length) {
+        final UsbDeviceConnection connection = mConnection;
+        return connection != null && connection.queueRequest(this, buffer, length);
+    }
+
+    public boolean cancel() {
+        final UsbDeviceConnection connection = mConnection;
+        return connection != null && connection.cancelRequest(this);
+    }
+
+}
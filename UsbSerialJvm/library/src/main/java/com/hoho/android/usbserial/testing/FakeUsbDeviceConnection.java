@@ -0,0 +1,430 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.testing;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+import android.os.Build;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-process USB device behind a {@link UsbDeviceConnection}, for running
+ * the drivers on a plain JVM.
+ * <p>
+ * Data given to {@link #addInput(byte[])} is returned by bulk IN transfers
+ * and requests, at most one chunk per transfer, and data written is kept
+ * for {@link #takeOutput()}.  Subclasses override
+ * {@link #onBulkIn(UsbEndpoint, byte[], int, int)} and
+ * {@link #onBulkOut(UsbEndpoint, byte[], int, int)} to act as a particular
+ * device, or to stream without keeping anything.  Control transfers
+ * succeed, and their setup fields are kept for
+ * {@link #takeControlTransfers()}.
+ * <p>
+ * Queued IN requests complete in the order they were queued on each
+ * endpoint, once data is available and {@link #setLatencyNanos(long)} has
+ * passed since they were queued; OUT requests complete at once.  As on
+ * Android, completions are returned by {@link #requestWait()}, and a
+ * completed request's buffer position is the number of bytes transferred
+ * only where http://b.android.com/28023 is fixed, from
+ * {@code Build.VERSION.SDK_INT} JELLY_BEAN_MR1.  Request buffers must have
+ * arrays.
+ */
+public class FakeUsbDeviceConnection extends UsbDeviceConnection {
+
+    /**
+     * Waits shorter than this spin instead of blocking, for accuracy, since
+     * {@code Object.wait()} rounds up to whole milliseconds.
+     */
+    private static final long SPIN_NANOS = 1000000;
+
+    /** State of a request; one per request, reused.  Guarded by the connection. */
+    private static final class Slot {
+        final UsbRequest mRequest;
+        ByteBuffer mBuffer;
+        int mLength;
+        long mQueuedNanos;
+        boolean mQueued;
+
+        Slot(UsbRequest request) {
+            mRequest = request;
+        }
+    }
+
+    // Guarded by 'this'
+    private final Map<UsbRequest, Slot> mSlots = new IdentityHashMap<UsbRequest, Slot>();
+    private final ArrayList<Slot> mPendingIn = new ArrayList<Slot>();
+    private final ArrayDeque<UsbRequest> mCompleted = new ArrayDeque<UsbRequest>();
+    private final ArrayList<UsbEndpoint> mTried = new ArrayList<UsbEndpoint>();
+    private final ArrayDeque<byte[]> mInput = new ArrayDeque<byte[]>();
+    private int mInputOffset = 0;
+    private final ByteArrayOutputStream mOutput = new ByteArrayOutputStream();
+    private byte[] mRawDescriptors;
+    private int mControlTransfers = 0;
+    private final ArrayList<int[]> mControlSetups = new ArrayList<int[]>();
+    private boolean mClosed = false;
+
+    private volatile long mLatencyNanos = 0;
+    private volatile long mTransferOverheadNanos = 0;
+
+    /**
+     * Sets the least time an IN transfer takes, from when it is started or
+     * queued, as for a round trip to the device.
+     */
+    public void setLatencyNanos(long nanos) {
+        mLatencyNanos = nanos;
+    }
+
+    /**
+     * Sets the CPU time spent by the caller on each transfer, request queued
+     * and request reaped, as for the system call.
+     */
+    public void setTransferOverheadNanos(long nanos) {
+        mTransferOverheadNanos = nanos;
+    }
+
+    /** Sets the descriptors returned by {@link #getRawDescriptors()}. */
+    public synchronized void setRawDescriptors(byte[] rawDescriptors) {
+        mRawDescriptors = rawDescriptors;
+    }
+
+    @Override
+    public synchronized byte[] getRawDescriptors() {
+        return mRawDescriptors;
+    }
+
+    /** Queues data for the bulk IN endpoints, returned by later transfers. */
+    public synchronized void addInput(byte[] data) {
+        mInput.add(data);
+        notifyAll();
+    }
+
+    /** Returns whether all data given to {@link #addInput(byte[])} was read. */
+    public synchronized boolean isInputEmpty() {
+        return mInput.isEmpty();
+    }
+
+    /** Returns the data written since the last call, and forgets it. */
+    public synchronized byte[] takeOutput() {
+        final byte[] output = mOutput.toByteArray();
+        mOutput.reset();
+        return output;
+    }
+
+    public synchronized int getControlTransferCount() {
+        return mControlTransfers;
+    }
+
+    /**
+     * Returns the control transfers made since the last call, each as
+     * {@code {requestType, request, value, index}}, and forgets them.
+     */
+    public synchronized List<int[]> takeControlTransfers() {
+        final List<int[]> setups = new ArrayList<int[]>(mControlSetups);
+        mControlSetups.clear();
+        return setups;
+    }
+
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    /** Returns the number of requests queued and not yet complete. */
+    public synchronized int getQueuedRequestCount() {
+        int count = 0;
+        for (final Slot slot : mSlots.values()) {
+            if (slot.mQueued) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Fills an IN transfer, with the connection's lock held.  By default
+     * returns data from {@link #addInput(byte[])} on bulk endpoints.
+     *
+     * @return the number of bytes transferred, or {@code -1} if there is no
+     *         data yet
+     */
+    protected int onBulkIn(UsbEndpoint endpoint, byte[] buffer, int offset, int length) {
+        if (endpoint.getType() != UsbConstants.USB_ENDPOINT_XFER_BULK) {
+            return -1;
+        }
+        final byte[] input = mInput.peek();
+        if (input == null) {
+            return -1;
+        }
+        final int count = Math.min(length, input.length - mInputOffset);
+        System.arraycopy(input, mInputOffset, buffer, offset, count);
+        mInputOffset += count;
+        if (mInputOffset == input.length) {
+            mInput.poll();
+            mInputOffset = 0;
+        }
+        return count;
+    }
+
+    /**
+     * Returns how long after {@link #onBulkIn(UsbEndpoint, byte[], int, int)}
+     * found no data it may have some without a call to {@code notifyAll()},
+     * with the connection's lock held.  The default returns {@code -1}:
+     * never, since {@link #addInput(byte[])} notifies.
+     *
+     * @return the time to wait in nanoseconds, at least {@code 1}, or
+     *         {@code -1} to wait until notified
+     */
+    protected long getInputDelayNanos() {
+        return -1;
+    }
+
+    /**
+     * Accepts an OUT transfer, with the connection's lock held.  By default
+     * keeps the data for {@link #takeOutput()}.
+     *
+     * @return the number of bytes transferred
+     */
+    protected int onBulkOut(UsbEndpoint endpoint, byte[] buffer, int offset, int length) {
+        mOutput.write(buffer, offset, length);
+        return length;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public int controlTransfer(int requestType, int request, int value, int index,
+            byte[] buffer, int offset, int length, int timeout) {
+        spin(mTransferOverheadNanos);
+        synchronized (this) {
+            if (mClosed) {
+                return -1;
+            }
+            mControlTransfers++;
+            mControlSetups.add(new int[] { requestType, request, value, index });
+            return length;
+        }
+    }
+
+    @Override
+    public int bulkTransfer(UsbEndpoint endpoint, byte[] buffer, int offset, int length,
+            int timeout) {
+        final long startNanos = System.nanoTime();
+        spin(mTransferOverheadNanos);
+        if (endpoint.getDirection() == UsbConstants.USB_DIR_OUT) {
+            synchronized (this) {
+                return mClosed ? -1 : onBulkOut(endpoint, buffer, offset, length);
+            }
+        }
+        final long deadline = startNanos + TimeUnit.MILLISECONDS.toNanos(timeout);
+        int count;
+        while (true) {
+            synchronized (this) {
+                if (mClosed) {
+                    return -1;
+                }
+                count = onBulkIn(endpoint, buffer, offset, length);
+                if (count >= 0) {
+                    break;
+                }
+                long waitNanos = getInputDelayNanos();
+                if (timeout > 0) {
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    waitNanos = waitNanos < 0 ? remaining : Math.min(waitNanos, remaining);
+                }
+                try {
+                    if (waitNanos < 0) {
+                        wait();
+                        continue;
+                    } else if (waitNanos > SPIN_NANOS) {
+                        TimeUnit.NANOSECONDS.timedWait(this, waitNanos - SPIN_NANOS);
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+            }
+            // Data is nearly due; spin for it without the lock.
+            Thread.yield();
+        }
+        spin(startNanos + mLatencyNanos - System.nanoTime());
+        return count;
+    }
+
+    @Override
+    protected boolean queueRequest(UsbRequest request, ByteBuffer buffer, int length) {
+        if (!buffer.hasArray()) {
+            throw new IllegalArgumentException("Buffer without array.");
+        }
+        spin(mTransferOverheadNanos);
+        synchronized (this) {
+            if (mClosed) {
+                return false;
+            }
+            Slot slot = mSlots.get(request);
+            if (slot == null) {
+                slot = new Slot(request);
+                mSlots.put(request, slot);
+            }
+            if (slot.mQueued) {
+                return false;
+            }
+            slot.mBuffer = buffer;
+            slot.mLength = Math.min(length, buffer.capacity());
+            slot.mQueuedNanos = System.nanoTime();
+            slot.mQueued = true;
+            final UsbEndpoint endpoint = request.getEndpoint();
+            if (endpoint.getDirection() == UsbConstants.USB_DIR_OUT) {
+                complete(slot, onBulkOut(endpoint, buffer.array(), buffer.arrayOffset(),
+                        slot.mLength));
+            } else {
+                mPendingIn.add(slot);
+            }
+            notifyAll();
+            return true;
+        }
+    }
+
+    @Override
+    protected synchronized boolean cancelRequest(UsbRequest request) {
+        final Slot slot = mSlots.get(request);
+        if (slot == null || !slot.mQueued) {
+            return false;
+        }
+        mPendingIn.remove(slot);
+        complete(slot, 0);
+        notifyAll();
+        return true;
+    }
+
+    @Override
+    public UsbRequest requestWait() {
+        while (true) {
+            synchronized (this) {
+                if (mClosed) {
+                    return null;
+                }
+                UsbRequest request = mCompleted.poll();
+                if (request == null) {
+                    final long waitNanos = completeReady();
+                    request = mCompleted.poll();
+                    if (request == null) {
+                        try {
+                            if (waitNanos < 0) {
+                                wait();
+                                continue;
+                            } else if (waitNanos > SPIN_NANOS) {
+                                TimeUnit.NANOSECONDS.timedWait(this, waitNanos - SPIN_NANOS);
+                                continue;
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return null;
+                        }
+                    }
+                }
+                if (request != null) {
+                    spin(mTransferOverheadNanos);
+                    return request;
+                }
+            }
+            // A request is nearly due; spin for it without the lock.
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Completes the first IN request which is due and has data, keeping the
+     * order of requests on each endpoint.
+     *
+     * @return {@code 0} if a request completed, else the time until the
+     *         next request is due, or {@code -1} if all are waiting for data
+     */
+    private long completeReady() {
+        final long now = System.nanoTime();
+        final long latencyNanos = mLatencyNanos;
+        long waitNanos = -1;
+        mTried.clear();
+        for (int i = 0; i < mPendingIn.size(); i++) {
+            final Slot slot = mPendingIn.get(i);
+            final UsbEndpoint endpoint = slot.mRequest.getEndpoint();
+            if (mTried.contains(endpoint)) {
+                continue;
+            }
+            mTried.add(endpoint);
+            final long due = slot.mQueuedNanos + latencyNanos - now;
+            if (due > 0) {
+                waitNanos = waitNanos < 0 ? due : Math.min(waitNanos, due);
+                continue;
+            }
+            final int count = onBulkIn(endpoint, slot.mBuffer.array(),
+                    slot.mBuffer.arrayOffset(), slot.mLength);
+            if (count >= 0) {
+                mPendingIn.remove(i);
+                complete(slot, count);
+                return 0;
+            }
+            final long delay = getInputDelayNanos();
+            if (delay >= 0) {
+                waitNanos = waitNanos < 0 ? delay : Math.min(waitNanos, delay);
+            }
+        }
+        return waitNanos;
+    }
+
+    private void complete(Slot slot, int count) {
+        slot.mQueued = false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            slot.mBuffer.position(Math.max(count, 0));
+        }
+        mCompleted.add(slot.mRequest);
+    }
+
+    private static void spin(long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        final long end = System.nanoTime() + nanos;
+        while (System.nanoTime() - end < 0) {
+            // Busy wait: sleeping is far coarser than the times simulated.
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.testing;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+
+import com.hoho.android.usbserial.driver.UsbId;
+
+/**
+ * Builds {@link UsbDevice}s laid out as each driver expects, for use with
+ * {@link FakeUsbDeviceConnection}.
+ */
+public final class FakeUsbDevices {
+
+    private static int sDeviceNumber = 1;
+
+    private FakeUsbDevices() {
+    }
+
+    private static synchronized String nextName() {
+        return "/dev/bus/usb/001/" + String.format("%03d", Integer.valueOf(++sDeviceNumber));
+    }
+
+    private static UsbEndpoint bulkIn(int number, int maxPacketSize) {
+        return new UsbEndpoint(UsbConstants.USB_DIR_IN | number,
+                UsbConstants.USB_ENDPOINT_XFER_BULK, maxPacketSize);
+    }
+
+    private static UsbEndpoint bulkOut(int number, int maxPacketSize) {
+        return new UsbEndpoint(UsbConstants.USB_DIR_OUT | number,
+                UsbConstants.USB_ENDPOINT_XFER_BULK, maxPacketSize);
+    }
+
+    private static UsbEndpoint interruptIn(int number, int maxPacketSize) {
+        return new UsbEndpoint(UsbConstants.USB_DIR_IN | number,
+                UsbConstants.USB_ENDPOINT_XFER_INT, maxPacketSize);
+    }
+
+    /** An Arduino Uno R3: a CDC ACM device with a notification endpoint. */
+    public static UsbDevice cdcAcm(int maxPacketSize) {
+        return new UsbDevice(nextName(), UsbId.VENDOR_ARDUINO, UsbId.ARDUINO_UNO_R3,
+                UsbConstants.USB_CLASS_COMM, 0, 0,
+                new UsbInterface(0, UsbConstants.USB_CLASS_COMM, 0x02, 0x01,
+                        interruptIn(1, 16)),
+                new UsbInterface(1, UsbConstants.USB_CLASS_CDC_DATA, 0, 0,
+                        bulkOut(2, maxPacketSize), bulkIn(3, maxPacketSize)));
+    }
+
+    /**
+     * An FTDI device with {@code ports} ports, each an interface with its own
+     * pair of bulk endpoints.
+     */
+    public static UsbDevice ftdi(int productId, int ports, int maxPacketSize) {
+        final UsbInterface[] interfaces = new UsbInterface[ports];
+        for (int i = 0; i < ports; i++) {
+            interfaces[i] = new UsbInterface(i, UsbConstants.USB_CLASS_VENDOR_SPEC, 0xff, 0xff,
+                    bulkIn(2 * i + 1, maxPacketSize), bulkOut(2 * i + 2, maxPacketSize));
+        }
+        return new UsbDevice(nextName(), UsbId.VENDOR_FTDI, productId,
+                UsbConstants.USB_CLASS_PER_INTERFACE, 0, 0, interfaces);
+    }
+
+    /** A CP2102. */
+    public static UsbDevice cp2102() {
+        return new UsbDevice(nextName(), UsbId.VENDOR_SILAB, UsbId.SILAB_CP2102,
+                UsbConstants.USB_CLASS_PER_INTERFACE, 0, 0,
+                new UsbInterface(0, UsbConstants.USB_CLASS_VENDOR_SPEC, 0, 0,
+                        bulkIn(1, 64), bulkOut(1, 64)));
+    }
+
+    /** A PL2303, with its interrupt status endpoint. */
+    public static UsbDevice pl2303() {
+        return new UsbDevice(nextName(), UsbId.VENDOR_PROLIFIC, UsbId.PROLIFIC_PL2303,
+                UsbConstants.USB_CLASS_PER_INTERFACE, 0, 0,
+                new UsbInterface(0, UsbConstants.USB_CLASS_VENDOR_SPEC, 0, 0,
+                        interruptIn(1, 10), bulkOut(2, 64), bulkIn(3, 64)));
+    }
+
+}
@@ -0,0 +1,135 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.driver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.hoho.android.usbserial.testing.FakeUsbDeviceConnection;
+import com.hoho.android.usbserial.testing.FakeUsbDevices;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+public class CdcAcmSerialDriverTest {
+
+    private FakeUsbDeviceConnection mConnection;
+    private CdcAcmSerialDriver mDriver;
+
+    @Before
+    public void setUp() throws IOException {
+        mConnection = new FakeUsbDeviceConnection();
+        mDriver = new CdcAcmSerialDriver(FakeUsbDevices.cdcAcm(64), mConnection);
+        mDriver.open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mDriver.close();
+    }
+
+    /** 96 characters of 10 bits at 9600 baud take 100 ms to send. */
+    @Test
+    public void drainWaitsForLineRate() throws IOException {
+        mDriver.setParameters(9600, 8, UsbSerialDriver.STOPBITS_1, UsbSerialDriver.PARITY_NONE);
+        mDriver.write(new byte[96], 0);
+        assertFalse(mDriver.drain(10));
+
+        mDriver.write(new byte[96], 0);
+        final long start = System.nanoTime();
+        assertTrue(mDriver.drain(0));
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Drained after " + elapsedMillis + " ms", elapsedMillis >= 150);
+        assertTrue(mDriver.drain(1));
+    }
+
+    @Test
+    public void characterNanos() throws IOException {
+        assertEquals(0, mDriver.getCharacterNanos());
+        // Start, 8 data and 1 stop bit.
+        mDriver.setParameters(9600, 8, UsbSerialDriver.STOPBITS_1, UsbSerialDriver.PARITY_NONE);
+        assertEquals(1041666, mDriver.getCharacterNanos());
+        // Start, 8 data, parity and 2 stop bits.
+        mDriver.setParameters(9600, 8, UsbSerialDriver.STOPBITS_2, UsbSerialDriver.PARITY_EVEN);
+        assertEquals(1250000, mDriver.getCharacterNanos());
+        mDriver.setParameters(115200, 8, UsbSerialDriver.STOPBITS_1,
+                UsbSerialDriver.PARITY_NONE);
+        assertEquals(86805, mDriver.getCharacterNanos());
+    }
+
+    @Test
+    public void drainWithoutLineCoding() throws IOException {
+        mDriver.write(new byte[96], 0);
+        assertTrue(mDriver.drain(1));
+    }
+
+
+    @Test
+    public void xonXoffRemovedFromReads() throws IOException {
+        final byte[] data = { 'a', 0x13, 'b', 0x11, 'c' };
+        final byte[] buffer = new byte[64];
+        mConnection.addInput(data.clone());
+        assertEquals(5, mDriver.read(buffer, 0));
+
+        mDriver.setFlowControl(UsbSerialDriver.FLOWCONTROL_XONXOFF_OUT);
+        mConnection.addInput(data.clone());
+        assertEquals(3, mDriver.read(buffer, 0));
+        assertArrayEquals(new byte[] { 'a', 'b', 'c' }, Arrays.copyOf(buffer, 3));
+    }
+
+    @Test
+    public void xoffPausesWrites() throws IOException {
+        mDriver.setFlowControl(UsbSerialDriver.FLOWCONTROL_XONXOFF_OUT);
+        final byte[] buffer = new byte[64];
+        assertEquals(64, mDriver.getWriteChunkLimit());
+
+        mConnection.addInput(new byte[] { 0x13 });
+        assertEquals(0, mDriver.read(buffer, 0));
+        assertEquals(0, mDriver.getWriteChunkLimit());
+        assertEquals(0, mDriver.write(new byte[100], 20));
+        assertEquals(0, mConnection.takeOutput().length);
+
+        mConnection.addInput(new byte[] { 0x11 });
+        assertEquals(0, mDriver.read(buffer, 0));
+        assertEquals(100, mDriver.write(new byte[100], 20));
+        assertEquals(100, mConnection.takeOutput().length);
+    }
+
+    @Test
+    public void flowControlOff() throws IOException {
+        mDriver.setFlowControl(UsbSerialDriver.FLOWCONTROL_XONXOFF_OUT);
+        mConnection.addInput(new byte[] { 0x13 });
+        mDriver.read(new byte[64], 0);
+
+        mDriver.setFlowControl(UsbSerialDriver.FLOWCONTROL_NONE);
+        assertEquals(Integer.MAX_VALUE, mDriver.getWriteChunkLimit());
+        assertEquals(100, mDriver.write(new byte[100], 20));
+    }
+
+}
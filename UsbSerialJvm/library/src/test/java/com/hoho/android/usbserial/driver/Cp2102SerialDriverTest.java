@@ -0,0 +1,102 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.driver;
+
+import static org.junit.Assert.assertEquals;
+
+import com.hoho.android.usbserial.testing.FakeUsbDeviceConnection;
+import com.hoho.android.usbserial.testing.FakeUsbDevices;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class Cp2102SerialDriverTest {
+
+    private static final int SET_FLOW = 0x13;
+
+    /** Data of the last SET_FLOW request. */
+    private byte[] mFlow;
+
+    private final FakeUsbDeviceConnection mConnection = new FakeUsbDeviceConnection() {
+        @Override
+        public int controlTransfer(int requestType, int request, int value, int index,
+                byte[] buffer, int offset, int length, int timeout) {
+            if (request == SET_FLOW) {
+                mFlow = Arrays.copyOfRange(buffer, offset, offset + length);
+            }
+            return super.controlTransfer(requestType, request, value, index, buffer, offset,
+                    length, timeout);
+        }
+    };
+
+    private Cp2102SerialDriver mDriver;
+
+    @Before
+    public void setUp() throws IOException {
+        mDriver = new Cp2102SerialDriver(FakeUsbDevices.cp2102(), mConnection);
+        mDriver.open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mDriver.close();
+    }
+
+    private int flowInt(int offset) {
+        return (mFlow[offset] & 0xff) | ((mFlow[offset + 1] & 0xff) << 8)
+                | ((mFlow[offset + 2] & 0xff) << 16) | ((mFlow[offset + 3] & 0xff) << 24);
+    }
+
+    /** XON/XOFF is handled by the chip: ulFlowReplace bits 0 and 1. */
+    @Test
+    public void xonXoffRequest() throws IOException {
+        mDriver.setFlowControl(UsbSerialDriver.FLOWCONTROL_XONXOFF_OUT);
+        assertEquals(16, mFlow.length);
+        assertEquals(0, flowInt(0));
+        assertEquals(0x01, flowInt(4));
+        assertEquals(128, flowInt(8));
+        assertEquals(128, flowInt(12));
+
+        mDriver.setFlowControl(UsbSerialDriver.FLOWCONTROL_XONXOFF_IN
+                | UsbSerialDriver.FLOWCONTROL_XONXOFF_OUT);
+        assertEquals(0x03, flowInt(4));
+        assertEquals(Integer.MAX_VALUE, mDriver.getWriteChunkLimit());
+    }
+
+    /** CTS handshake in ulControlHandshake, RTS flow in ulFlowReplace. */
+    @Test
+    public void rtsCtsRequest() throws IOException {
+        mDriver.setFlowControl(UsbSerialDriver.FLOWCONTROL_RTSCTS_IN
+                | UsbSerialDriver.FLOWCONTROL_RTSCTS_OUT);
+        assertEquals(0x08, flowInt(0));
+        assertEquals(0x80, flowInt(4));
+
+        mDriver.setFlowControl(UsbSerialDriver.FLOWCONTROL_NONE);
+        assertEquals(0, flowInt(0));
+        assertEquals(0, flowInt(4));
+    }
+
+}
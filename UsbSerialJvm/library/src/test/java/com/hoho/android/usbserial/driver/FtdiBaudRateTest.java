@@ -0,0 +1,213 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+package com.hoho.android.usbserial.driver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.hoho.android.usbserial.driver.FtdiSerialDriver.DeviceType;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Checks {@link FtdiBaudRate} against properties of the divisor encoding
+ * (AN232B-05, AN_120), for many random rates on every chip type.
+ */
+public class FtdiBaudRateTest {
+
+    private static final int TRIALS = 20000;
+
+    /** Eighths of the divisor for each 3-bit fraction code. */
+    private static final int[] FRAC_EIGHTHS = {
+            0, 4, 2, 1, 3, 5, 6, 7
+    };
+
+    private static boolean isHClock(DeviceType type) {
+        return type == DeviceType.TYPE_2232H || type == DeviceType.TYPE_4232H
+                || type == DeviceType.TYPE_232H;
+    }
+
+    /** Whether {@code wIndex} carries the port number in its low byte. */
+    private static boolean hasPortIndex(DeviceType type) {
+        return isHClock(type) || type == DeviceType.TYPE_2232C || type == DeviceType.TYPE_230X;
+    }
+
+    /** Computes the rate which a chip derives from a SIO_SET_BAUD_RATE request. */
+    private static double decode(DeviceType type, int value, int index) {
+        final int encoded = value | (hasPortIndex(type) ? (index & 0xff00) << 8 : index << 16);
+        final double base = (encoded & 0x20000) != 0 ? 12000000.0 : 3000000.0;
+        final int divisor = encoded & 0x1ffff;
+        if (divisor == 0) {
+            return base;
+        } else if (divisor == 1) {
+            return base / 1.5;
+        }
+        final int eighths = (divisor & 0x3fff) * 8 + FRAC_EIGHTHS[divisor >> 14];
+        return base * 8 / eighths;
+    }
+
+    private static int randomRate(Random random, int min, int max) {
+        // Uniform in log scale, so that low rates are tried as often as high.
+        return (int) Math.round(min * Math.pow((double) max / min, random.nextDouble()));
+    }
+
+    @Test
+    public void actualRateMatchesEncoding() {
+        final Random random = new Random(1);
+        for (final DeviceType type : DeviceType.values()) {
+            final FtdiBaudRate rate = new FtdiBaudRate(type);
+            for (int i = 0; i < TRIALS; i++) {
+                final int requested = randomRate(random, 200, isHClock(type) ? 12000000 : 3000000);
+                rate.solve(requested);
+                final double decoded = decode(type, rate.getValue(), rate.getIndex(0));
+                assertEquals(type + " at " + requested, decoded, rate.getActualBaudRate(), 1.0);
+                assertEquals(requested, rate.getRequestedBaudRate());
+            }
+        }
+    }
+
+    @Test
+    public void errorWithinToleranceWhereDivisorAllowsIt() {
+        // With eighths, the divisor is within 1/16 of ideal; relative to a
+        // divisor of at least 2 that is at most 3.125%, plus rounding.
+        final Random random = new Random(2);
+        for (final DeviceType type : DeviceType.values()) {
+            if (type == DeviceType.TYPE_AM) {
+                continue;
+            }
+            final int max = isHClock(type) ? 6000000 : 1500000;
+            final FtdiBaudRate rate = new FtdiBaudRate(type);
+            for (int i = 0; i < TRIALS; i++) {
+                final int requested = randomRate(random, 200, max);
+                final double error = rate.solve(requested).getErrorPercent();
+                assertTrue(type + " at " + requested + ": " + error, Math.abs(error) <= 3.2);
+            }
+        }
+    }
+
+    @Test
+    public void amErrorWithinTolerance() {
+        // The AM only has fractions 0, 1/8, 1/4 and 1/2, so the divisor is
+        // within 1/4 of ideal; relative to a divisor of at least 8 that is
+        // at most 3.125%.
+        final Random random = new Random(3);
+        final FtdiBaudRate rate = new FtdiBaudRate(DeviceType.TYPE_AM);
+        for (int i = 0; i < TRIALS; i++) {
+            final int requested = randomRate(random, 200, 375000);
+            final double error = rate.solve(requested).getErrorPercent();
+            assertTrue("AM at " + requested + ": " + error, Math.abs(error) <= 3.2);
+        }
+    }
+
+    @Test
+    public void errorSignMatchesActualRate() {
+        final Random random = new Random(4);
+        final FtdiBaudRate rate = new FtdiBaudRate(DeviceType.TYPE_R);
+        for (int i = 0; i < TRIALS; i++) {
+            rate.solve(randomRate(random, 200, 3000000));
+            final double error = rate.getErrorPercent();
+            final int difference = rate.getActualBaudRate() - rate.getRequestedBaudRate();
+            assertEquals(Integer.signum(difference), (int) Math.signum(error));
+        }
+    }
+
+    @Test
+    public void solveIsRepeatable() {
+        final Random random = new Random(5);
+        for (final DeviceType type : DeviceType.values()) {
+            final FtdiBaudRate a = new FtdiBaudRate(type);
+            final FtdiBaudRate b = new FtdiBaudRate(type);
+            for (int i = 0; i < 1000; i++) {
+                final int requested = randomRate(random, 200, 12000000);
+                a.solve(requested);
+                // Solve something else first, so no state carries over.
+                b.solve(randomRate(random, 200, 12000000)).solve(requested);
+                assertEquals(a.getValue(), b.getValue());
+                assertEquals(a.getIndex(0), b.getIndex(0));
+                assertEquals(a.getActualBaudRate(), b.getActualBaudRate());
+            }
+        }
+    }
+
+    @Test
+    public void knownDivisors() {
+        final FtdiBaudRate bm = new FtdiBaudRate(DeviceType.TYPE_BM);
+        // 3 MHz / 9600 = 312.5 (AN232B-05).
+        assertEquals(0x4138, bm.solve(9600).getValue());
+        assertEquals(0, bm.getIndex(0));
+        assertEquals(9600, bm.getActualBaudRate());
+        assertEquals(26, bm.solve(115200).getValue());
+        assertEquals(115385, bm.getActualBaudRate());
+        assertEquals(0, bm.solve(3000000).getValue());
+        assertEquals(1, bm.solve(2000000).getValue());
+
+        final FtdiBaudRate am = new FtdiBaudRate(DeviceType.TYPE_AM);
+        assertEquals(0x4138, am.solve(9600).getValue());
+        assertEquals(0, am.solve(3000000).getValue());
+        // The AM has no divisors between 1 and 2, so 2 Mbaud is BM only.
+        assertEquals(2, am.solve(2000000).getValue());
+        assertEquals(1500000, am.getActualBaudRate());
+    }
+
+    @Test
+    public void hClockReachesTwelveMegabaud() {
+        final FtdiBaudRate h = new FtdiBaudRate(DeviceType.TYPE_232H);
+        h.solve(12000000);
+        assertEquals(12000000, h.getActualBaudRate());
+        assertEquals(0, h.getValue());
+        assertEquals(0x0200 | 2, h.getIndex(2));
+
+        // Slow rates fall back to the 48 MHz clock divided by 16.
+        h.solve(300);
+        assertEquals(0, h.getIndex(0) & 0x0200);
+        assertEquals(300, h.getActualBaudRate());
+    }
+
+    @Test
+    public void portInIndexOnlyForMultiPortEncodings() {
+        assertEquals(1, new FtdiBaudRate(DeviceType.TYPE_2232C).solve(9600).getIndex(1) & 0xff);
+        assertEquals(0, new FtdiBaudRate(DeviceType.TYPE_R).solve(9600).getIndex(1) & 0xfe);
+    }
+
+    @Test
+    public void solveReturnsThis() {
+        final FtdiBaudRate rate = new FtdiBaudRate(DeviceType.TYPE_R);
+        assertSame(rate, rate.solve(9600));
+        assertSame(DeviceType.TYPE_R, rate.getDeviceType());
+    }
+
+    @Test
+    public void rejectsNonPositiveRates() {
+        final FtdiBaudRate rate = new FtdiBaudRate(DeviceType.TYPE_R);
+        for (final int bad : new int[] { 0, -9600 }) {
+            try {
+                rate.solve(bad);
+                fail("Accepted " + bad);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+}
@@ -0,0 +1,302 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+package com.hoho.android.usbserial.driver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.hoho.android.usbserial.testing.FakeUsbDeviceConnection;
+import com.hoho.android.usbserial.testing.FakeUsbDevices;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class FtdiSerialDriverTest {
+
+    private static final int PACKET_SIZE = 64;
+
+    /** An unopened driver, for stripping headers. */
+    private final FtdiSerialDriver mDriver = new FtdiSerialDriver(
+            FakeUsbDevices.ftdi(UsbId.FTDI_FT232R, 1, PACKET_SIZE), new FakeUsbDeviceConnection());
+
+    /** Status changes reported to the listener, as {@code {status, changed}}. */
+    private final List<int[]> mChanges = new ArrayList<int[]>();
+
+    private final ModemStatusListener mListener = new ModemStatusListener() {
+        @Override
+        public void onModemStatusChanged(UsbSerialDriver driver, int status, int changed) {
+            mChanges.add(new int[] { status, changed });
+        }
+    };
+
+    /**
+     * Builds data as the device sends it: each payload in its own packet,
+     * after a two-byte status header.  Payloads must fit one packet.
+     */
+    private static byte[] packets(byte[]... payloads) {
+        int length = 0;
+        for (final byte[] payload : payloads) {
+            length += 2 + payload.length;
+        }
+        final byte[] data = new byte[length];
+        int offset = 0;
+        for (final byte[] payload : payloads) {
+            data[offset] = 0x01;
+            data[offset + 1] = 0x60;
+            System.arraycopy(payload, 0, data, offset + 2, payload.length);
+            offset += 2 + payload.length;
+        }
+        return data;
+    }
+
+    private static byte[] payload(int length, int seed) {
+        final byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (seed + i);
+        }
+        return payload;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (final byte[] part : parts) {
+            length += part.length;
+        }
+        final byte[] result = new byte[length];
+        int offset = 0;
+        for (final byte[] part : parts) {
+            System.arraycopy(part, 0, result, offset, part.length);
+            offset += part.length;
+        }
+        return result;
+    }
+
+    private byte[] strip(byte[] data, int offset, int maxPacketSize) {
+        final byte[] buffer = new byte[offset + data.length];
+        System.arraycopy(data, 0, buffer, offset, data.length);
+        final int length = mDriver.stripStatusHeaders(buffer, offset, data.length,
+                maxPacketSize);
+        return Arrays.copyOfRange(buffer, offset, offset + length);
+    }
+
+    @Test
+    public void headerOnlyPacketHasNoPayload() {
+        assertEquals(0, strip(packets(new byte[0]), 0, PACKET_SIZE).length);
+    }
+
+    @Test
+    public void truncatedHeaderHasNoPayload() {
+        assertEquals(0, strip(new byte[] { 0x01 }, 0, PACKET_SIZE).length);
+    }
+
+    @Test
+    public void shortPacket() {
+        final byte[] payload = payload(10, 1);
+        assertArrayEquals(payload, strip(packets(payload), 0, PACKET_SIZE));
+    }
+
+    @Test
+    public void fullPacketsFollowedByShortPacket() {
+        final byte[] a = payload(PACKET_SIZE - 2, 0);
+        final byte[] b = payload(PACKET_SIZE - 2, 100);
+        final byte[] c = payload(7, 200);
+        assertArrayEquals(concat(a, b, c), strip(packets(a, b, c), 0, PACKET_SIZE));
+    }
+
+    @Test
+    public void headerOnlyPacketBetweenFullPackets() {
+        // A status-only packet is short, so it can only be last in a
+        // transfer; but stripping must not depend on that.
+        final byte[] a = payload(PACKET_SIZE - 2, 0);
+        final byte[] b = payload(PACKET_SIZE - 2, 50);
+        final byte[] data = concat(packets(a), packets(b));
+        assertArrayEquals(concat(a, b), strip(data, 0, PACKET_SIZE));
+    }
+
+    @Test
+    public void atOffset() {
+        final byte[] a = payload(PACKET_SIZE - 2, 3);
+        final byte[] b = payload(1, 9);
+        assertArrayEquals(concat(a, b), strip(packets(a, b), 5, PACKET_SIZE));
+    }
+
+    @Test
+    public void highSpeedPackets() {
+        final byte[] a = payload(510, 0);
+        final byte[] b = payload(510, 77);
+        final byte[] c = payload(2, 5);
+        assertArrayEquals(concat(a, b, c), strip(packets(a, b, c), 0, 512));
+    }
+
+    @Test
+    public void everyLength() {
+        for (int length = 0; length <= 4 * PACKET_SIZE; length++) {
+            final byte[] data = payload(length, 0);
+            int expected = 0;
+            for (int start = 0; start < length; start += PACKET_SIZE) {
+                expected += Math.max(0, Math.min(length - start, PACKET_SIZE) - 2);
+            }
+            final byte[] stripped = strip(data, 0, PACKET_SIZE);
+            assertEquals("length " + length, expected, stripped.length);
+            for (int i = 0; i < stripped.length; i++) {
+                // Payload byte i sits after (i / 62 + 1) headers.
+                assertEquals((byte) (i + 2 * (i / (PACKET_SIZE - 2) + 1)), stripped[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads queued outside the driver do not call read(), so the timer
+     * chosen while filtering them is set by applyDeferredSettings().
+     */
+    @Test
+    public void autoLatencyAppliedByDeferredSettings() throws IOException {
+        final FakeUsbDeviceConnection connection = new FakeUsbDeviceConnection();
+        final FtdiSerialDriver driver = new FtdiSerialDriver(
+                FakeUsbDevices.ftdi(UsbId.FTDI_FT232R, 1, PACKET_SIZE), connection);
+        driver.open();
+        try {
+            driver.setAutoLatency(1, 16);
+            connection.takeControlTransfers();
+            final byte[] full = packets(payload(PACKET_SIZE - 2, 0));
+            for (int i = 0; i < 8; i++) {
+                driver.filterReadData(full.clone(), full.length);
+            }
+            assertTrue(connection.takeControlTransfers().isEmpty());
+
+            driver.applyDeferredSettings();
+            final List<int[]> setups = connection.takeControlTransfers();
+            assertEquals(1, setups.size());
+            assertEquals(0x09, setups.get(0)[1]);
+            assertEquals(16, setups.get(0)[2]);
+        } finally {
+            driver.close();
+        }
+    }
+
+    /** Each packet's header is recorded, not only the last one's. */
+    @Test
+    public void statusOfEveryPacket() {
+        mDriver.setModemStatusListener(mListener);
+        final byte[] data = packets(payload(PACKET_SIZE - 2, 0), payload(PACKET_SIZE - 2, 0),
+                payload(3, 0));
+        data[0] = (byte) 0x11;  // CTS
+        data[PACKET_SIZE] = (byte) 0x91;  // CTS and DCD
+        data[2 * PACKET_SIZE] = (byte) 0x01;  // nothing
+        strip(data, 0, PACKET_SIZE);
+
+        assertEquals(3, mChanges.size());
+        assertEquals(UsbSerialDriver.MS_CTS_MASK, mChanges.get(0)[1]);
+        assertEquals(UsbSerialDriver.MS_DCD_MASK, mChanges.get(1)[1]);
+        assertEquals(UsbSerialDriver.MS_CTS_MASK | UsbSerialDriver.MS_DCD_MASK,
+                mChanges.get(2)[1]);
+        assertEquals(0, mChanges.get(2)[0] & 0xff);
+    }
+
+    /**
+     * The polled status has the header's polarity, and changes reach the
+     * listener; DTR and RTS are as last set.
+     */
+    @Test
+    public void pollModemStatus() throws IOException {
+        final FakeUsbDeviceConnection connection = new FakeUsbDeviceConnection() {
+            @Override
+            public int controlTransfer(int requestType, int request, int value, int index,
+                    byte[] buffer, int offset, int length, int timeout) {
+                if (request == 0x05) {
+                    buffer[offset] = (byte) 0x91;  // CTS and DCD
+                    buffer[offset + 1] = 0x60;
+                }
+                return super.controlTransfer(requestType, request, value, index, buffer,
+                        offset, length, timeout);
+            }
+        };
+        final FtdiSerialDriver driver = new FtdiSerialDriver(
+                FakeUsbDevices.ftdi(UsbId.FTDI_FT232R, 1, PACKET_SIZE), connection);
+        driver.open();
+        try {
+            driver.setDTR(true);
+            driver.setModemStatusListener(mListener);
+            assertTrue(driver.getCD());
+            assertTrue(driver.getCTS());
+            assertFalse(driver.getDSR());
+            assertFalse(driver.getRI());
+            assertTrue(driver.getDTR());
+            assertFalse(driver.getRTS());
+            assertEquals(1, mChanges.size());
+            assertEquals(UsbSerialDriver.MS_CTS_MASK | UsbSerialDriver.MS_DCD_MASK,
+                    mChanges.get(0)[1]);
+        } finally {
+            driver.close();
+        }
+    }
+
+
+    /** The chip handles flow control; see SIO_SET_FLOW_CTRL. */
+    @Test
+    public void flowControlRequests() throws IOException {
+        final FakeUsbDeviceConnection connection = new FakeUsbDeviceConnection();
+        final FtdiSerialDriver driver = new FtdiSerialDriver(
+                FakeUsbDevices.ftdi(UsbId.FTDI_FT232R, 1, PACKET_SIZE), connection);
+        driver.open();
+        try {
+            connection.takeControlTransfers();
+            driver.setFlowControl(UsbSerialDriver.FLOWCONTROL_XONXOFF_IN
+                    | UsbSerialDriver.FLOWCONTROL_XONXOFF_OUT);
+            assertFlowControlRequest(connection, 0x1311, 0x0400);
+            driver.setFlowControl(UsbSerialDriver.FLOWCONTROL_RTSCTS_IN
+                    | UsbSerialDriver.FLOWCONTROL_RTSCTS_OUT);
+            assertFlowControlRequest(connection, 0, 0x0100);
+            driver.setFlowControl(UsbSerialDriver.FLOWCONTROL_NONE);
+            assertFlowControlRequest(connection, 0, 0);
+            // Writes are paused by the chip, not the host.
+            assertEquals(Integer.MAX_VALUE, driver.getWriteChunkLimit());
+
+            try {
+                driver.setFlowControl(UsbSerialDriver.FLOWCONTROL_RTSCTS_OUT
+                        | UsbSerialDriver.FLOWCONTROL_XONXOFF_OUT);
+                fail();
+            } catch (UnsupportedOperationException expected) {
+            }
+            assertTrue(connection.takeControlTransfers().isEmpty());
+        } finally {
+            driver.close();
+        }
+    }
+
+    private static void assertFlowControlRequest(FakeUsbDeviceConnection connection,
+            int value, int mode) {
+        final List<int[]> setups = connection.takeControlTransfers();
+        assertEquals(1, setups.size());
+        assertEquals(0x40, setups.get(0)[0]);
+        assertEquals(0x02, setups.get(0)[1]);
+        assertEquals(value, setups.get(0)[2]);
+        assertEquals(mode, setups.get(0)[3] & 0xff00);
+    }
+
+}
@@ -0,0 +1,101 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.driver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.hoho.android.usbserial.testing.FakeUsbDeviceConnection;
+import com.hoho.android.usbserial.testing.FakeUsbDevices;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+public class Pl2303SerialDriverTest {
+
+    /** Opens a PL2303, or a PL2303HX with its 64-byte control endpoint. */
+    private static Pl2303SerialDriver open(FakeUsbDeviceConnection connection, boolean hx)
+            throws IOException {
+        if (hx) {
+            final byte[] descriptors = new byte[18];
+            descriptors[7] = 64;
+            connection.setRawDescriptors(descriptors);
+        }
+        final Pl2303SerialDriver driver =
+                new Pl2303SerialDriver(FakeUsbDevices.pl2303(), connection);
+        driver.open();
+        connection.takeControlTransfers();
+        return driver;
+    }
+
+    /** Asserts one vendor write of the flow control register. */
+    private static void assertFlowControlRequest(FakeUsbDeviceConnection connection,
+            int mode) {
+        final List<int[]> setups = connection.takeControlTransfers();
+        assertEquals(1, setups.size());
+        assertEquals(0x40, setups.get(0)[0]);
+        assertEquals(0x01, setups.get(0)[1]);
+        assertEquals(0, setups.get(0)[2]);
+        assertEquals(mode, setups.get(0)[3]);
+    }
+
+    @Test
+    public void flowControlRequests() throws IOException {
+        final FakeUsbDeviceConnection connection = new FakeUsbDeviceConnection();
+        final Pl2303SerialDriver driver = open(connection, false);
+        try {
+            driver.setFlowControl(UsbSerialDriver.FLOWCONTROL_XONXOFF_IN
+                    | UsbSerialDriver.FLOWCONTROL_XONXOFF_OUT);
+            assertFlowControlRequest(connection, 0xc0);
+            driver.setFlowControl(UsbSerialDriver.FLOWCONTROL_RTSCTS_OUT);
+            assertFlowControlRequest(connection, 0x41);
+            driver.setFlowControl(UsbSerialDriver.FLOWCONTROL_NONE);
+            assertFlowControlRequest(connection, 0x00);
+            assertEquals(Integer.MAX_VALUE, driver.getWriteChunkLimit());
+
+            try {
+                driver.setFlowControl(UsbSerialDriver.FLOWCONTROL_RTSCTS_IN
+                        | UsbSerialDriver.FLOWCONTROL_XONXOFF_IN);
+                fail();
+            } catch (UnsupportedOperationException expected) {
+            }
+        } finally {
+            driver.close();
+        }
+    }
+
+    @Test
+    public void rtsCtsRequestHx() throws IOException {
+        final FakeUsbDeviceConnection connection = new FakeUsbDeviceConnection();
+        final Pl2303SerialDriver driver = open(connection, true);
+        try {
+            driver.setFlowControl(UsbSerialDriver.FLOWCONTROL_RTSCTS_IN
+                    | UsbSerialDriver.FLOWCONTROL_RTSCTS_OUT);
+            assertFlowControlRequest(connection, 0x61);
+        } finally {
+            driver.close();
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.driver;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbManager;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Registrations are global, so each test registers ids no other test
+ * uses.
+ */
+public class UsbSerialProberTest {
+
+    /** Opens every device. */
+    private static final UsbManager MANAGER = new UsbManager() {
+        @Override
+        public UsbDeviceConnection openDevice(UsbDevice device) {
+            return new UsbDeviceConnection();
+        }
+    };
+
+    /** Builds one driver, whatever the device. */
+    private static final class CustomFactory implements UsbSerialDriverFactory {
+        final UsbSerialDriver mDriver = (UsbSerialDriver) Proxy.newProxyInstance(
+                UsbSerialDriver.class.getClassLoader(), new Class<?>[] {UsbSerialDriver.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return null;
+                    }
+                });
+
+        @Override
+        public UsbSerialDriver newDriver(UsbDevice usbDevice, UsbDeviceConnection connection) {
+            return mDriver;
+        }
+    }
+
+    private static UsbDevice vendorDevice(int vendorId, int productId) {
+        return new UsbDevice("/dev/bus/usb/001/002", vendorId, productId,
+                UsbConstants.USB_CLASS_PER_INTERFACE, 0, 0,
+                new UsbInterface(0, UsbConstants.USB_CLASS_VENDOR_SPEC, 0, 0));
+    }
+
+    @Test
+    public void registeredFactoryDoesNotHideListedDevice() {
+        final CustomFactory factory = new CustomFactory();
+        UsbSerialProber.registerDevice(UsbId.VENDOR_FTDI, UsbId.FTDI_FT4232H, factory);
+        final UsbDevice device = vendorDevice(UsbId.VENDOR_FTDI, UsbId.FTDI_FT4232H);
+
+        assertTrue(UsbSerialProber.FTDI_SERIAL.getDevice(MANAGER, device)
+                instanceof FtdiSerialDriver);
+        assertSame(factory.mDriver, UsbSerialProber.acquire(MANAGER, device));
+    }
+
+    @Test
+    public void deviceRegisteredToProber() {
+        UsbSerialProber.registerDevice(0x1234, 0x5678, UsbSerialProber.SILAB_SERIAL);
+        final UsbDevice device = vendorDevice(0x1234, 0x5678);
+
+        assertTrue(UsbSerialProber.SILAB_SERIAL.getDevice(MANAGER, device)
+                instanceof Cp2102SerialDriver);
+        assertNull(UsbSerialProber.FTDI_SERIAL.getDevice(MANAGER, device));
+    }
+
+    @Test
+    public void unlistedCdcAcmDeviceOnlyAcquired() {
+        final UsbDevice device = new UsbDevice("/dev/bus/usb/001/003", 0x1111, 0x2222,
+                UsbConstants.USB_CLASS_COMM, 0, 0,
+                new UsbInterface(0, UsbConstants.USB_CLASS_COMM, 0x02, 0x01),
+                new UsbInterface(1, UsbConstants.USB_CLASS_CDC_DATA, 0, 0));
+
+        assertNull(UsbSerialProber.CDC_ACM_SERIAL.getDevice(MANAGER, device));
+        final UsbSerialDriver driver = UsbSerialProber.acquire(MANAGER, device);
+        assertNotNull(driver);
+        assertTrue(driver instanceof CdcAcmSerialDriver);
+    }
+
+    @Test
+    public void unsupportedDevice() {
+        final UsbDevice device = vendorDevice(0x1111, 0x3333);
+
+        for (final UsbSerialProber prober : UsbSerialProber.values()) {
+            assertNull(prober.getDevice(MANAGER, device));
+        }
+        assertNull(UsbSerialProber.acquire(MANAGER, device));
+    }
+
+}
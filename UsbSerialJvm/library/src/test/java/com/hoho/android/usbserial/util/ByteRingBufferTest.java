@@ -0,0 +1,168 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+package com.hoho.android.usbserial.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+public class ByteRingBufferTest {
+
+    /**
+     * A driver whose reads return one packet of a counting byte sequence,
+     * and which fails any read shorter than the largest packet, as a real
+     * device would overflow it.
+     */
+    private static final class CountingDevice implements InvocationHandler {
+        int mNext = 0;
+        int mReads = 0;
+        int mPacketLength = ByteRingBuffer.MAX_PACKET_SIZE;
+
+        UsbSerialDriver driver() {
+            return (UsbSerialDriver) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { UsbSerialDriver.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (!method.getName().equals("read") || args.length != 4) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+            final byte[] dest = (byte[]) args[0];
+            final int offset = (Integer) args[1];
+            final int length = (Integer) args[2];
+            assertTrue("Read of " + length + " bytes cuts a packet short",
+                    length >= ByteRingBuffer.MAX_PACKET_SIZE
+                            && length % ByteRingBuffer.MAX_PACKET_SIZE == 0);
+            mReads++;
+            for (int i = 0; i < mPacketLength; i++) {
+                dest[offset + i] = (byte) mNext++;
+            }
+            return mPacketLength;
+        }
+    }
+
+    private static void assertCounting(byte[] data, int first) {
+        for (int i = 0; i < data.length; i++) {
+            assertEquals((byte) (first + i), data[i]);
+        }
+    }
+
+    @Test
+    public void writeAndReadWrap() {
+        final ByteRingBuffer ring = new ByteRingBuffer(8);
+        final byte[] out = new byte[8];
+        assertEquals(6, ring.write(new byte[] { 0, 1, 2, 3, 4, 5 }, 0, 6));
+        assertEquals(4, ring.read(out, 0, 4));
+        assertEquals(6, ring.write(new byte[] { 6, 7, 8, 9, 10, 11 }, 0, 6));
+        assertEquals(0, ring.remaining());
+        assertEquals(8, ring.read(out, 0, 8));
+        assertArrayEquals(new byte[] { 4, 5, 6, 7, 8, 9, 10, 11 }, out);
+    }
+
+    @Test
+    public void clearDiscardsAvailable() {
+        final ByteRingBuffer ring = new ByteRingBuffer(8);
+        final byte[] out = new byte[8];
+        ring.write(new byte[] { 0, 1, 2, 3, 4, 5 }, 0, 6);
+        ring.read(out, 0, 2);
+        assertEquals(4, ring.clear());
+        assertEquals(0, ring.available());
+        assertEquals(0, ring.clear());
+        ring.write(new byte[] { 6, 7 }, 0, 2);
+        assertEquals(2, ring.read(out, 0, 8));
+        assertEquals(6, out[0]);
+    }
+
+    @Test
+    public void readFromNeverReadsLessThanAPacket() throws Exception {
+        final CountingDevice device = new CountingDevice();
+        final UsbSerialDriver driver = device.driver();
+        final ByteRingBuffer ring = new ByteRingBuffer(2048);
+        final byte[] out = new byte[2048];
+
+        // Short packets until less than a packet is free: 4 * 400 bytes.
+        device.mPacketLength = 400;
+        while (ring.readFrom(driver, 0) > 0) {
+        }
+        assertEquals(4, device.mReads);
+        assertEquals(448, ring.remaining());
+
+        // Free space wraps with 448 bytes before the end: a whole packet is
+        // read into scratch and copied around the end.
+        device.mPacketLength = ByteRingBuffer.MAX_PACKET_SIZE;
+        final int consumed = ring.read(out, 0, 1000);
+        assertCounting(Arrays.copyOf(out, 1000), 0);
+        assertEquals(ByteRingBuffer.MAX_PACKET_SIZE, ring.readFrom(driver, 0));
+
+        // Contiguous free space of 936 bytes: read as one packet.
+        assertEquals(ByteRingBuffer.MAX_PACKET_SIZE, ring.readFrom(driver, 0));
+        assertEquals(0, ring.readFrom(driver, 0));
+        assertEquals(6, device.mReads);
+
+        final byte[] rest = new byte[ring.available()];
+        ring.read(rest, 0, rest.length);
+        assertCounting(rest, consumed);
+        assertEquals(consumed + rest.length, device.mNext);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void readFromNeedsRoomForAPacket() throws Exception {
+        new ByteRingBuffer(256).readFrom(new CountingDevice().driver(), 0);
+    }
+
+    @Test
+    public void awaitWritableWaitsForMinimum() throws Exception {
+        final ByteRingBuffer ring = new ByteRingBuffer(1024);
+        ring.write(new byte[1024], 0, 1024);
+        ring.skip(100);
+        assertEquals(100, ring.awaitWritable(1, 0, TimeUnit.MILLISECONDS));
+        assertEquals(100, ring.awaitWritable(512, 1, TimeUnit.MILLISECONDS));
+
+        final Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 10; i++) {
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    ring.skip(50);
+                }
+            }
+        });
+        consumer.start();
+        assertTrue(ring.awaitWritable(512, 10, TimeUnit.SECONDS) >= 512);
+        consumer.join();
+    }
+
+}
@@ -0,0 +1,470 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+package com.hoho.android.usbserial.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.hoho.android.usbserial.driver.CdcAcmSerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.testing.FakeUsbDeviceConnection;
+import com.hoho.android.usbserial.testing.FakeUsbDevices;
+import com.hoho.android.usbserial.util.FrameDecoder.FrameListener;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+public class FrameDecoderTest {
+
+    /** Collects copies of the frames it receives. */
+    private static final class Frames implements FrameListener {
+        final List<byte[]> mFrames = new ArrayList<byte[]>();
+        ByteBuffer mLastView;
+
+        @Override
+        public void onFrame(ByteBuffer frame) {
+            assertEquals(0, frame.position());
+            final byte[] copy = new byte[frame.remaining()];
+            frame.get(copy);
+            mFrames.add(copy);
+            mLastView = frame;
+        }
+    }
+
+    private static byte[] bytes(int... values) {
+        final byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+    private static byte[] ascii(String s) {
+        final byte[] result = new byte[s.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) s.charAt(i);
+        }
+        return result;
+    }
+
+    /** Feeds {@code data} in chunks of {@code chunk} bytes, at an offset. */
+    private static Frames decode(FrameDecoder decoder, byte[] data, int chunk) {
+        final Frames frames = new Frames();
+        for (int i = 0; i < data.length; i += chunk) {
+            final int length = Math.min(chunk, data.length - i);
+            final byte[] padded = new byte[length + 3];
+            System.arraycopy(data, i, padded, 3, length);
+            decoder.decode(padded, 3, length, 0, frames);
+        }
+        return frames;
+    }
+
+    private static void assertFrames(List<byte[]> actual, byte[]... expected) {
+        assertEquals(expected.length, actual.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals("frame " + i, expected[i], actual.get(i));
+        }
+    }
+
+    private static byte[] randomPayload(Random random, int maxLength, int zeroPercent) {
+        final byte[] payload = new byte[random.nextInt(maxLength + 1)];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = random.nextInt(100) < zeroPercent ? 0 : (byte) (1 + random.nextInt(255));
+        }
+        return payload;
+    }
+
+    // Delimiter
+
+    @Test
+    public void delimiterAtEveryChunkSize() {
+        final byte[] data = ascii("ab\r\n\r\r\n\r\nxyz\r\ntail");
+        for (int chunk = 1; chunk <= data.length; chunk++) {
+            final FrameDecoder decoder = new FrameDecoder.Delimiter(ascii("\r\n"), 16);
+            assertFrames(decode(decoder, data, chunk).mFrames,
+                    ascii("ab"), ascii("\r"), ascii(""), ascii("xyz"));
+        }
+    }
+
+    @Test
+    public void delimiterWithSelfOverlap() {
+        // After "aab" fails at 'a', the input still ends with "a".
+        final FrameDecoder decoder = new FrameDecoder.Delimiter(ascii("aab"), 16);
+        assertFrames(decode(decoder, ascii("xaaab" + "aaab" + "abaab"), 1).mFrames,
+                ascii("xa"), ascii("a"), ascii("ab"));
+    }
+
+    @Test
+    public void delimiterMaxLength() {
+        final FrameDecoder decoder = new FrameDecoder.Delimiter(ascii(";"), 4);
+        final Frames frames = decode(decoder, ascii("abcd;abcde;ab;"), 3);
+        assertFrames(frames.mFrames, ascii("abcd"), ascii("ab"));
+        assertEquals(1, decoder.getErrorCount());
+        assertEquals(2, decoder.getFrameCount());
+    }
+
+    @Test
+    public void delimiterFoundWhileDiscarding() {
+        // The delimiter straddles reads after the frame overflowed.
+        final FrameDecoder decoder = new FrameDecoder.Delimiter(ascii("\r\n"), 2);
+        final Frames frames = decode(decoder, ascii("abcdef\r\nok\r\n"), 7);
+        assertFrames(frames.mFrames, ascii("ok"));
+        assertEquals(1, decoder.getErrorCount());
+    }
+
+    @Test
+    public void delimiterRandomRoundTrip() {
+        final Random random = new Random(1);
+        final byte[] delimiter = ascii("\r\n");
+        for (int trial = 0; trial < 200; trial++) {
+            final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            final List<byte[]> expected = new ArrayList<byte[]>();
+            for (int i = 0; i < 20; i++) {
+                // Lowercase letters and lone '\r', never "\r\n".
+                final byte[] frame = new byte[random.nextInt(30)];
+                for (int j = 0; j < frame.length; j++) {
+                    frame[j] = random.nextInt(8) == 0 && (j + 1 < frame.length)
+                            ? (byte) '\r' : (byte) ('a' + random.nextInt(26));
+                }
+                expected.add(frame);
+                stream.write(frame, 0, frame.length);
+                stream.write(delimiter, 0, delimiter.length);
+            }
+            final FrameDecoder decoder = new FrameDecoder.Delimiter(delimiter, 30);
+            assertFrames(decode(decoder, stream.toByteArray(), 1 + random.nextInt(64)).mFrames,
+                    expected.toArray(new byte[0][]));
+        }
+    }
+
+    @Test
+    public void frameViewIsReused() {
+        final FrameDecoder decoder = new FrameDecoder.Delimiter(ascii(";"), 4);
+        final Frames frames = new Frames();
+        decoder.decode(ascii("a;"), 0, 2, 0, frames);
+        final ByteBuffer first = frames.mLastView;
+        decoder.decode(ascii("bc;"), 0, 3, 0, frames);
+        assertSame(first, frames.mLastView);
+    }
+
+    // LengthPrefix
+
+    @Test
+    public void lengthPrefixBigEndian() {
+        final byte[] data = bytes(0, 2, 9, 8, 0, 0, 1, 0x2c);
+        final byte[] payload = new byte[300];
+        final byte[] all = new byte[data.length + payload.length];
+        System.arraycopy(data, 0, all, 0, data.length);
+        for (int chunk = 1; chunk < 40; chunk++) {
+            final FrameDecoder decoder =
+                    new FrameDecoder.LengthPrefix(2, ByteOrder.BIG_ENDIAN, 300);
+            assertFrames(decode(decoder, all, chunk).mFrames, bytes(9, 8), bytes(), payload);
+            assertEquals(0, decoder.getErrorCount());
+        }
+    }
+
+    @Test
+    public void lengthPrefixLittleEndianFourBytes() {
+        final FrameDecoder decoder = new FrameDecoder.LengthPrefix(4, ByteOrder.LITTLE_ENDIAN, 8);
+        assertFrames(decode(decoder, bytes(3, 0, 0, 0, 7, 8, 9, 1, 0, 0, 0, 5), 5).mFrames,
+                bytes(7, 8, 9), bytes(5));
+    }
+
+    @Test
+    public void lengthPrefixOneByte() {
+        final FrameDecoder decoder = new FrameDecoder.LengthPrefix(1, ByteOrder.BIG_ENDIAN, 255);
+        assertFrames(decode(decoder, bytes(1, 0xff, 2, 0, 0), 2).mFrames,
+                bytes(0xff), bytes(0, 0));
+    }
+
+    @Test
+    public void lengthPrefixTooLong() {
+        final FrameDecoder decoder = new FrameDecoder.LengthPrefix(2, ByteOrder.BIG_ENDIAN, 3);
+        // 0x0004 is too long; decoding restarts with the next byte.
+        assertFrames(decode(decoder, bytes(0, 4, 0, 1, 6), 1).mFrames, bytes(6));
+        assertEquals(1, decoder.getErrorCount());
+    }
+
+    @Test
+    public void lengthPrefixLargeUnsignedLength() {
+        final FrameDecoder decoder = new FrameDecoder.LengthPrefix(4, ByteOrder.BIG_ENDIAN, 8);
+        decode(decoder, bytes(0xff, 0xff, 0xff, 0xff), 4);
+        assertEquals(1, decoder.getErrorCount());
+    }
+
+    // Slip
+
+    private static byte[] slipEncode(byte[] payload) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(FrameDecoder.Slip.END);
+        for (final byte b : payload) {
+            if (b == FrameDecoder.Slip.END) {
+                out.write(FrameDecoder.Slip.ESC);
+                out.write(FrameDecoder.Slip.ESC_END);
+            } else if (b == FrameDecoder.Slip.ESC) {
+                out.write(FrameDecoder.Slip.ESC);
+                out.write(FrameDecoder.Slip.ESC_ESC);
+            } else {
+                out.write(b);
+            }
+        }
+        out.write(FrameDecoder.Slip.END);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void slipEscapes() {
+        final FrameDecoder decoder = new FrameDecoder.Slip(16);
+        assertFrames(decode(decoder, bytes(0xc0, 1, 0xdb, 0xdc, 2, 0xdb, 0xdd, 0xc0, 0xc0, 3,
+                0xc0), 1).mFrames, bytes(1, 0xc0, 2, 0xdb), bytes(3));
+    }
+
+    @Test
+    public void slipKeepsWronglyEscapedByte() {
+        final FrameDecoder decoder = new FrameDecoder.Slip(16);
+        assertFrames(decode(decoder, bytes(0xdb, 0x41, 0xc0), 1).mFrames, bytes(0x41));
+    }
+
+    @Test
+    public void slipOverflow() {
+        final FrameDecoder decoder = new FrameDecoder.Slip(2);
+        final Frames frames = decode(decoder, bytes(1, 2, 3, 0xc0, 4, 0xc0), 2);
+        assertFrames(frames.mFrames, bytes(4));
+        assertEquals(1, decoder.getErrorCount());
+    }
+
+    @Test
+    public void slipRandomRoundTrip() {
+        final Random random = new Random(2);
+        for (int trial = 0; trial < 200; trial++) {
+            final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            final List<byte[]> expected = new ArrayList<byte[]>();
+            for (int i = 0; i < 10; i++) {
+                final byte[] payload = randomPayload(random, 100, 0);
+                if (payload.length == 0) {
+                    continue;
+                }
+                expected.add(payload);
+                final byte[] encoded = slipEncode(payload);
+                stream.write(encoded, 0, encoded.length);
+            }
+            final FrameDecoder decoder = new FrameDecoder.Slip(100);
+            assertFrames(decode(decoder, stream.toByteArray(), 1 + random.nextInt(64)).mFrames,
+                    expected.toArray(new byte[0][]));
+        }
+    }
+
+    // Cobs
+
+    private static byte[] cobsEncode(byte[] payload) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] block = new byte[254];
+        int blockLength = 0;
+        for (int i = 0; i <= payload.length; i++) {
+            if (i == payload.length || payload[i] == 0) {
+                out.write(blockLength + 1);
+                out.write(block, 0, blockLength);
+                blockLength = 0;
+            } else {
+                block[blockLength++] = payload[i];
+                if (blockLength == 254) {
+                    out.write(0xff);
+                    out.write(block, 0, blockLength);
+                    blockLength = 0;
+                    if (i + 1 == payload.length) {
+                        // Ends exactly after a full block: no empty block.
+                        out.write(0);
+                        return out.toByteArray();
+                    }
+                }
+            }
+        }
+        out.write(0);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void cobsKnownEncodings() {
+        // Examples from the COBS paper and Wikipedia.
+        final FrameDecoder decoder = new FrameDecoder.Cobs(16);
+        assertFrames(decode(decoder, bytes(1, 1, 0, 3, 0x11, 0x22, 2, 0x33, 0, 1, 0), 1).mFrames,
+                bytes(0), bytes(0x11, 0x22, 0, 0x33), bytes());
+    }
+
+    @Test
+    public void cobsTruncatedBlock() {
+        final FrameDecoder decoder = new FrameDecoder.Cobs(16);
+        assertFrames(decode(decoder, bytes(3, 1, 0, 2, 5, 0), 2).mFrames, bytes(5));
+        assertEquals(1, decoder.getErrorCount());
+    }
+
+    @Test
+    public void cobsLongRuns() {
+        for (final int length : new int[] { 253, 254, 255, 508, 509, 600 }) {
+            final byte[] payload = new byte[length];
+            for (int i = 0; i < length; i++) {
+                payload[i] = (byte) (1 + i % 255);
+            }
+            final FrameDecoder decoder = new FrameDecoder.Cobs(1000);
+            assertFrames(decode(decoder, cobsEncode(payload), 7).mFrames, payload);
+        }
+    }
+
+    @Test
+    public void cobsRandomRoundTrip() {
+        final Random random = new Random(3);
+        for (int trial = 0; trial < 200; trial++) {
+            final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            final List<byte[]> expected = new ArrayList<byte[]>();
+            for (int i = 0; i < 10; i++) {
+                final byte[] payload = randomPayload(random, 700, random.nextInt(3) * 20);
+                expected.add(payload);
+                final byte[] encoded = cobsEncode(payload);
+                stream.write(encoded, 0, encoded.length);
+            }
+            final FrameDecoder decoder = new FrameDecoder.Cobs(700);
+            final Frames frames = decode(decoder, stream.toByteArray(), 1 + random.nextInt(300));
+            assertFrames(frames.mFrames, expected.toArray(new byte[0][]));
+            assertEquals(0, decoder.getErrorCount());
+        }
+    }
+
+    @Test
+    public void cobsOverflow() {
+        final FrameDecoder decoder = new FrameDecoder.Cobs(2);
+        final Frames frames = decode(decoder, bytes(4, 1, 2, 3, 0, 2, 9, 0), 3);
+        assertFrames(frames.mFrames, bytes(9));
+        assertEquals(1, decoder.getErrorCount());
+    }
+
+    // IdleGap
+
+    @Test
+    public void idleGapEndsFrameOnSilence() {
+        final FrameDecoder decoder = new FrameDecoder.IdleGap(1, TimeUnit.MILLISECONDS, 16);
+        final Frames frames = new Frames();
+        decoder.decode(bytes(1, 2), 0, 2, 0, frames);
+        decoder.decode(bytes(3), 0, 1, 900000, frames);
+        decoder.onIdle(1800000, frames);
+        assertFrames(frames.mFrames);
+        decoder.onIdle(1900001, frames);
+        assertFrames(frames.mFrames, bytes(1, 2, 3));
+        // The first byte after a gap ends the previous frame before it.
+        decoder.decode(bytes(4), 0, 1, 5000000, frames);
+        decoder.decode(bytes(5), 0, 1, 7000000, frames);
+        assertFrames(frames.mFrames, bytes(1, 2, 3), bytes(4));
+    }
+
+    @Test
+    public void idleGapIgnoresIdleWithoutFrame() {
+        final FrameDecoder decoder = new FrameDecoder.IdleGap(1, TimeUnit.MILLISECONDS, 16);
+        final Frames frames = new Frames();
+        decoder.onIdle(5000000, frames);
+        decoder.decode(new byte[0], 0, 0, 9000000, frames);
+        assertFrames(frames.mFrames);
+    }
+
+    @Test
+    public void idleGapOverflow() {
+        final FrameDecoder decoder = new FrameDecoder.IdleGap(1, TimeUnit.MILLISECONDS, 2);
+        final Frames frames = new Frames();
+        decoder.decode(bytes(1, 2, 3), 0, 3, 0, frames);
+        decoder.onIdle(2000000, frames);
+        decoder.decode(bytes(4), 0, 1, 3000000, frames);
+        decoder.onIdle(5000000, frames);
+        assertFrames(frames.mFrames, bytes(4));
+        assertEquals(1, decoder.getErrorCount());
+    }
+
+    @Test
+    public void idleGapInCharacters() throws IOException {
+        final CdcAcmSerialDriver driver = new CdcAcmSerialDriver(FakeUsbDevices.cdcAcm(64),
+                new FakeUsbDeviceConnection());
+        driver.open();
+        try {
+            final FrameDecoder.IdleGap decoder =
+                    new FrameDecoder.IdleGap(driver, 3.5, 1750, TimeUnit.MICROSECONDS, 16);
+            // The minimum while the line coding is unknown.
+            assertEquals(1750000, decoder.getGapNanos());
+            driver.setParameters(9600, 8, UsbSerialDriver.STOPBITS_1,
+                    UsbSerialDriver.PARITY_NONE);
+            assertEquals(3645831, decoder.getGapNanos());
+            // 3.5 characters at 115200 baud are shorter than the minimum.
+            driver.setParameters(115200, 8, UsbSerialDriver.STOPBITS_1,
+                    UsbSerialDriver.PARITY_NONE);
+            assertEquals(1750000, decoder.getGapNanos());
+        } finally {
+            driver.close();
+        }
+    }
+
+    /** The gap follows a change of baud rate made after the decoder was created. */
+    @Test
+    public void idleGapFollowsBaudRate() throws IOException {
+        final CdcAcmSerialDriver driver = new CdcAcmSerialDriver(FakeUsbDevices.cdcAcm(64),
+                new FakeUsbDeviceConnection());
+        driver.open();
+        try {
+            driver.setParameters(9600, 8, UsbSerialDriver.STOPBITS_1,
+                    UsbSerialDriver.PARITY_NONE);
+            final FrameDecoder decoder =
+                    new FrameDecoder.IdleGap(driver, 3.5, 1, TimeUnit.MICROSECONDS, 16);
+            final Frames frames = new Frames();
+            // 3.5 characters of 1041666 ns at 9600 baud.
+            decoder.decode(bytes(1, 2), 0, 2, 0, frames);
+            decoder.onIdle(3645831, frames);
+            assertFrames(frames.mFrames);
+            decoder.onIdle(3645832, frames);
+            assertFrames(frames.mFrames, bytes(1, 2));
+
+            // 3.5 characters of 86805 ns at 115200 baud.
+            driver.setParameters(115200, 8, UsbSerialDriver.STOPBITS_1,
+                    UsbSerialDriver.PARITY_NONE);
+            decoder.decode(bytes(3), 0, 1, 10000000, frames);
+            decoder.decode(bytes(4), 0, 1, 10000000 + 303817, frames);
+            decoder.onIdle(10000000 + 2 * 303817, frames);
+            assertFrames(frames.mFrames, bytes(1, 2));
+            decoder.onIdle(10000000 + 2 * 303817 + 1, frames);
+            assertFrames(frames.mFrames, bytes(1, 2), bytes(3, 4));
+        } finally {
+            driver.close();
+        }
+    }
+
+    @Test
+    public void resetDiscardsPartialFrame() {
+        final FrameDecoder decoder = new FrameDecoder.Slip(16);
+        final Frames frames = new Frames();
+        decoder.decode(bytes(1, 2, 0xdb), 0, 3, 0, frames);
+        decoder.reset();
+        decoder.decode(bytes(0xdc, 3, 0xc0), 0, 3, 0, frames);
+        assertFrames(frames.mFrames, bytes(0xdc, 3));
+    }
+
+}
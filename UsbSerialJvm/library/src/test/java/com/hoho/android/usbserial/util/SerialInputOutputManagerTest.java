@@ -0,0 +1,399 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.hardware.usb.UsbRequest;
+import android.os.Build;
+
+import com.hoho.android.usbserial.driver.CommonUsbSerialDriver;
+import com.hoho.android.usbserial.driver.Cp2102SerialDriver;
+import com.hoho.android.usbserial.driver.UsbRequestDispatcher;
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.testing.FakeUsbDeviceConnection;
+import com.hoho.android.usbserial.testing.FakeUsbDevices;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class SerialInputOutputManagerTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private FakeUsbDeviceConnection mConnection;
+    private UsbSerialDriver mDriver;
+    private SerialInputOutputManager mManager;
+    private Thread mThread;
+    private final BlockingQueue<byte[]> mReceived = new LinkedBlockingQueue<byte[]>();
+    private volatile Exception mError;
+
+    /** If set, the listener waits for it before taking data. */
+    private volatile CountDownLatch mListenerGate;
+
+    /** If set, counted down by the listener before waiting for the gate. */
+    private volatile CountDownLatch mListenerEntered;
+
+    @Before
+    public void setUp() throws IOException {
+        mConnection = new FakeUsbDeviceConnection();
+        mDriver = new Cp2102SerialDriver(FakeUsbDevices.cp2102(), mConnection);
+        mDriver.open();
+        mManager = new SerialInputOutputManager(mDriver, new SerialInputOutputManager.Listener() {
+            @Override
+            public void onNewData(byte[] data) {
+                final CountDownLatch entered = mListenerEntered;
+                if (entered != null) {
+                    entered.countDown();
+                }
+                final CountDownLatch gate = mListenerGate;
+                if (gate != null) {
+                    try {
+                        gate.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                mReceived.add(data);
+            }
+
+            @Override
+            public void onRunError(Exception e) {
+                mError = e;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Build.VERSION.SDK_INT = Build.VERSION_CODES.JELLY_BEAN_MR2;
+        if (mThread != null) {
+            mManager.stop();
+            mThread.join(TIMEOUT_MILLIS);
+            assertFalse("Manager did not stop", mThread.isAlive());
+        }
+        mDriver.close();
+    }
+
+    private void start() {
+        mThread = new Thread(mManager, "SerialInputOutputManagerTest");
+        mThread.start();
+    }
+
+    private static byte[] chunk(int length, int seed) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed + i);
+        }
+        return data;
+    }
+
+    /** Returns the next {@code length} bytes delivered to the listener. */
+    private byte[] receive(int length) throws InterruptedException {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (received.size() < length) {
+            final byte[] data = mReceived.poll(deadline - System.currentTimeMillis(),
+                    TimeUnit.MILLISECONDS);
+            if (data == null) {
+                throw new AssertionError("Received " + received.size() + " of " + length
+                        + " bytes, error=" + mError);
+            }
+            received.write(data, 0, data.length);
+        }
+        assertEquals(length, received.size());
+        return received.toByteArray();
+    }
+
+    /** Waits until the device has {@code count} requests queued. */
+    private void awaitQueuedRequests(int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mConnection.getQueuedRequestCount() != count) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Queued requests: "
+                        + mConnection.getQueuedRequestCount() + ", expected " + count);
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private byte[] awaitOutput(int length) throws InterruptedException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (output.size() < length && System.currentTimeMillis() < deadline) {
+            final byte[] data = mConnection.takeOutput();
+            output.write(data, 0, data.length);
+            Thread.sleep(1);
+        }
+        return output.toByteArray();
+    }
+
+    @Test
+    public void queuedReadsStayQueued() throws Exception {
+        mManager.setReadQueueDepth(4);
+        start();
+        awaitQueuedRequests(4);
+
+        for (int i = 0; i < 10; i++) {
+            final byte[] data = chunk(64, 10 * i);
+            mConnection.addInput(data);
+            assertArrayEquals(data, receive(64));
+            awaitQueuedRequests(4);
+        }
+    }
+
+    @Test
+    public void queuedReadsDeliverInCompletionOrder() throws Exception {
+        mManager.setReadQueueDepth(8);
+        start();
+        awaitQueuedRequests(8);
+
+        // More transfers than requests, completed back to back.
+        final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        for (int i = 0; i < 50; i++) {
+            final byte[] data = chunk(1 + i % 64, i);
+            sent.write(data, 0, data.length);
+            mConnection.addInput(data);
+        }
+        assertArrayEquals(sent.toByteArray(), receive(sent.size()));
+    }
+
+    /**
+     * A listener which does not return holds up neither the other requests
+     * on the connection nor, once it returns, any data: reads beyond the
+     * backlog wait until it catches up.
+     */
+    @Test
+    public void slowListenerDoesNotBlockDispatcher() throws Exception {
+        final int depth = 4;
+        mListenerGate = new CountDownLatch(1);
+        mManager.setReadQueueDepth(depth);
+        start();
+        awaitQueuedRequests(depth);
+
+        final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        for (int i = 0; i < 3 * depth; i++) {
+            final byte[] data = chunk(32, i);
+            sent.write(data, 0, data.length);
+            mConnection.addInput(data);
+        }
+        // All reads complete and park, with the listener still stuck.
+        awaitQueuedRequests(0);
+
+        final CommonUsbSerialDriver driver = (CommonUsbSerialDriver) mDriver;
+        final UsbRequest request = new UsbRequest();
+        request.initialize(mConnection, driver.getWriteEndpoint());
+        final CountDownLatch written = new CountDownLatch(1);
+        driver.getRequestDispatcher().queue(request, ByteBuffer.wrap(chunk(8, 0)), 8,
+                new UsbRequestDispatcher.Callback() {
+                    @Override
+                    public void onRequestComplete(UsbRequest r) {
+                        written.countDown();
+                    }
+
+                    @Override
+                    public void onRequestFailed(UsbRequest r, IOException e) {
+                    }
+                });
+        assertTrue("Dispatcher blocked by listener",
+                written.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        mListenerGate.countDown();
+        assertArrayEquals(sent.toByteArray(), receive(sent.size()));
+        awaitQueuedRequests(depth);
+    }
+
+    /** Reads completed but not yet delivered when purging are dropped. */
+    @Test
+    public void purgeDropsUndeliveredReads() throws Exception {
+        final int depth = 4;
+        final int count = 4 * depth;
+        mListenerGate = new CountDownLatch(1);
+        mListenerEntered = new CountDownLatch(1);
+        mManager.setReadQueueDepth(depth);
+        start();
+        awaitQueuedRequests(depth);
+
+        for (int i = 0; i < count; i++) {
+            mConnection.addInput(chunk(8, 8 * i));
+        }
+        // The listener holds the first chunk, the rest of the backlog waits.
+        awaitQueuedRequests(0);
+        assertTrue(mListenerEntered.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        mManager.purge(true, false);
+        mListenerGate.countDown();
+
+        // Chunks are delivered whole; the first, then those read after the
+        // purge, up to the last.
+        int chunks = 0;
+        int next = 0;
+        while (next < count) {
+            final byte[] data = receive(8);
+            final int index = (data[0] & 0xff) / 8;
+            assertArrayEquals(chunk(8, 8 * index), data);
+            assertTrue("Chunk " + index + " after " + next, chunks == 0 ? index == 0
+                    : chunks == 1 ? index > depth : index == next);
+            next = index + 1;
+            chunks++;
+        }
+        assertTrue("All " + chunks + " chunks delivered", chunks <= count - depth);
+        awaitQueuedRequests(depth);
+    }
+
+    @Test
+    public void purgeResetsFrameDecoder() throws Exception {
+        final BlockingQueue<byte[]> frames = new LinkedBlockingQueue<byte[]>();
+        mManager.setFrameDecoder(new FrameDecoder.Delimiter(new byte[] { ';' }, 16),
+                new FrameDecoder.FrameListener() {
+                    @Override
+                    public void onFrame(ByteBuffer frame) {
+                        final byte[] data = new byte[frame.remaining()];
+                        frame.get(data);
+                        frames.add(data);
+                    }
+                });
+        start();
+
+        // The partial frame is decoded with the complete one.
+        mConnection.addInput(new byte[] { 'a', ';', 'b', 'c' });
+        assertArrayEquals(new byte[] { 'a' }, frames.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        mManager.purge(true, false);
+        mConnection.addInput(new byte[] { 'd', ';' });
+        assertArrayEquals(new byte[] { 'd' }, frames.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Once the buffer pool is warm, the thread reading and delivering to a
+     * {@link SerialInputOutputManager.BufferListener} allocates nothing.
+     */
+    @Test
+    public void bufferListenerReadsWithoutAllocating() throws Exception {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        final long[] packets = new long[1];
+        mManager.setBufferListener(new SerialInputOutputManager.BufferListener() {
+            @Override
+            public void onNewData(ByteBuffer data) {
+                synchronized (packets) {
+                    packets[0]++;
+                    packets.notifyAll();
+                }
+                mManager.releaseBuffer(data);
+            }
+
+            @Override
+            public void onRunError(Exception e) {
+                mError = e;
+            }
+        });
+        start();
+
+        final byte[] data = chunk(64, 0);
+        final int warmUp = 5000;
+        final int count = 20000;
+        feed(data, packets, warmUp);
+        final long before = threads.getThreadAllocatedBytes(mThread.getId());
+        feed(data, packets, warmUp + count);
+        // The VM itself allocates a little now and then, but not per packet.
+        final long allocated = threads.getThreadAllocatedBytes(mThread.getId()) - before;
+        assertEquals("Bytes allocated per packet, " + allocated + " in all", 0,
+                allocated / count);
+    }
+
+    /** Sends {@code data} until {@code packets[0]} reaches {@code total}. */
+    private void feed(byte[] data, long[] packets, long total) throws InterruptedException {
+        synchronized (packets) {
+            while (packets[0] < total) {
+                final long next = packets[0] + 1;
+                mConnection.addInput(data);
+                final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+                while (packets[0] < next) {
+                    final long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new AssertionError("Packet " + next + " not delivered, error="
+                                + mError);
+                    }
+                    packets.wait(remaining);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void writesWhileReadsQueued() throws Exception {
+        mManager.setReadQueueDepth(4);
+        start();
+        awaitQueuedRequests(4);
+
+        final byte[] data = chunk(100, 7);
+        mManager.writeAsync(data);
+        assertArrayEquals(data, awaitOutput(data.length));
+    }
+
+    @Test
+    public void stopCancelsQueuedReads() throws Exception {
+        mManager.setReadQueueDepth(4);
+        start();
+        awaitQueuedRequests(4);
+
+        mManager.stop();
+        mThread.join(TIMEOUT_MILLIS);
+        assertFalse(mThread.isAlive());
+        assertEquals(0, mConnection.getQueuedRequestCount());
+        mThread = null;
+    }
+
+    /**
+     * Before http://b.android.com/28023 was fixed, a completed request does
+     * not tell how much it read, so reads must block instead.
+     */
+    @Test
+    public void blockingReadsBefore28023Fix() throws Exception {
+        Build.VERSION.SDK_INT = Build.VERSION_CODES.JELLY_BEAN;
+        mManager.setReadQueueDepth(4);
+        start();
+
+        final byte[] data = chunk(64, 3);
+        mConnection.addInput(data);
+        assertArrayEquals(data, receive(64));
+        assertEquals(0, mConnection.getQueuedRequestCount());
+    }
+
+}
@@ -0,0 +1,273 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.Build;
+
+import com.hoho.android.usbserial.driver.CdcAcmSerialDriver;
+import com.hoho.android.usbserial.driver.Cp2102SerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.testing.FakeUsbDeviceConnection;
+import com.hoho.android.usbserial.testing.FakeUsbDevices;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class SerialIoSchedulerTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final int DEPTH = 4;
+
+    private FakeUsbDeviceConnection mConnection;
+    private UsbSerialDriver mDriver;
+    private ExecutorService mExecutor;
+    private SerialIoScheduler mScheduler;
+    private SerialIoScheduler.Port mPort;
+    private final BlockingQueue<byte[]> mReceived = new LinkedBlockingQueue<byte[]>();
+    private final Set<ByteBuffer> mBuffers =
+            Collections.synchronizedSet(Collections.newSetFromMap(
+                    new IdentityHashMap<ByteBuffer, Boolean>()));
+    private volatile Exception mError;
+
+    /** If set, the listener waits for it before taking data. */
+    private volatile CountDownLatch mListenerGate;
+
+    private final SerialInputOutputManager.BufferListener mListener =
+            new SerialInputOutputManager.BufferListener() {
+        @Override
+        public void onNewData(ByteBuffer data) {
+            final CountDownLatch gate = mListenerGate;
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            mBuffers.add(data);
+            final byte[] copy = new byte[data.remaining()];
+            data.get(copy);
+            mReceived.add(copy);
+            mPort.releaseBuffer(data);
+        }
+
+        @Override
+        public void onRunError(Exception e) {
+            mError = e;
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        mConnection = new FakeUsbDeviceConnection();
+        mDriver = new Cp2102SerialDriver(FakeUsbDevices.cp2102(), mConnection);
+        mDriver.open();
+        mExecutor = Executors.newSingleThreadExecutor();
+        mScheduler = new SerialIoScheduler(mExecutor, DEPTH);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Build.VERSION.SDK_INT = Build.VERSION_CODES.JELLY_BEAN_MR2;
+        if (mListenerGate != null) {
+            mListenerGate.countDown();
+        }
+        mScheduler.shutdown();
+        mExecutor.shutdown();
+        assertTrue(mExecutor.awaitTermination(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        mDriver.close();
+    }
+
+    private static byte[] chunk(int length, int seed) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed + i);
+        }
+        return data;
+    }
+
+    /** Returns the next {@code length} bytes delivered to the listener. */
+    private byte[] receive(int length) throws InterruptedException {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (received.size() < length) {
+            final byte[] data = mReceived.poll(deadline - System.currentTimeMillis(),
+                    TimeUnit.MILLISECONDS);
+            if (data == null) {
+                throw new AssertionError("Received " + received.size() + " of " + length
+                        + " bytes, error=" + mError);
+            }
+            received.write(data, 0, data.length);
+        }
+        assertEquals(length, received.size());
+        return received.toByteArray();
+    }
+
+    /** Waits until the device has {@code count} requests queued. */
+    private void awaitQueuedRequests(int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mConnection.getQueuedRequestCount() != count) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Queued requests: "
+                        + mConnection.getQueuedRequestCount() + ", expected " + count);
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void buffersAreRecycled() throws Exception {
+        mPort = mScheduler.addPort(mDriver, mListener);
+        awaitQueuedRequests(DEPTH);
+
+        final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        for (int i = 0; i < 50; i++) {
+            final byte[] data = chunk(1 + i % 64, i);
+            sent.write(data, 0, data.length);
+            mConnection.addInput(data);
+        }
+        assertArrayEquals(sent.toByteArray(), receive(sent.size()));
+        assertTrue("Buffers used: " + mBuffers.size(), mBuffers.size() <= 3 * DEPTH);
+    }
+
+    /**
+     * A listener which does not return holds up no data once it does: reads
+     * beyond the backlog wait until it catches up.
+     */
+    @Test
+    public void slowListenerParksReads() throws Exception {
+        mListenerGate = new CountDownLatch(1);
+        mPort = mScheduler.addPort(mDriver, mListener);
+        awaitQueuedRequests(DEPTH);
+
+        final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        for (int i = 0; i < 3 * DEPTH; i++) {
+            final byte[] data = chunk(32, i);
+            sent.write(data, 0, data.length);
+            mConnection.addInput(data);
+        }
+        awaitQueuedRequests(0);
+        assertFalse(mConnection.isInputEmpty());
+
+        mListenerGate.countDown();
+        assertArrayEquals(sent.toByteArray(), receive(sent.size()));
+        awaitQueuedRequests(DEPTH);
+    }
+
+    /** Replaces the CP2102 with a CDC/ACM device. */
+    private CdcAcmSerialDriver openCdcAcm() throws IOException {
+        mDriver.close();
+        mConnection = new FakeUsbDeviceConnection();
+        final CdcAcmSerialDriver driver =
+                new CdcAcmSerialDriver(FakeUsbDevices.cdcAcm(64), mConnection);
+        mDriver = driver;
+        mDriver.open();
+        return driver;
+    }
+
+    /** Scheduled writes stop at XOFF, and resume when XON is read. */
+    @Test
+    public void xoffPausesWrites() throws Exception {
+        final CdcAcmSerialDriver driver = openCdcAcm();
+        mDriver.setFlowControl(UsbSerialDriver.FLOWCONTROL_XONXOFF_OUT);
+        mPort = mScheduler.addPort(mDriver, mListener);
+        // Plus the driver's SERIAL_STATE notification request.
+        awaitQueuedRequests(DEPTH + 1);
+
+        mConnection.addInput(new byte[] { 0x13 });
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (driver.getWriteChunkLimit() != 0) {
+            assertTrue("XOFF not seen", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        final byte[] data = chunk(200, 0);
+        mPort.writeAsync(data);
+        Thread.sleep(50);
+        assertEquals(0, mConnection.takeOutput().length);
+        assertEquals(200, mPort.getWriteBytesPending());
+
+        mConnection.addInput(new byte[] { 'x', 0x11 });
+        assertArrayEquals(new byte[] { 'x' }, receive(1));
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        while (written.size() < data.length) {
+            assertTrue("Wrote " + written.size(), System.currentTimeMillis() < deadline);
+            final byte[] output = mConnection.takeOutput();
+            written.write(output, 0, output.length);
+            Thread.sleep(1);
+        }
+        assertArrayEquals(data, written.toByteArray());
+    }
+
+    /** Bytes sent by scheduled writes count towards the drain estimate. */
+    @Test
+    public void writesCountedForDrain() throws Exception {
+        final CdcAcmSerialDriver driver = openCdcAcm();
+        // 96 characters of 10 bits at 9600 baud take 100 ms to send.
+        driver.setParameters(9600, 8, UsbSerialDriver.STOPBITS_1, UsbSerialDriver.PARITY_NONE);
+        mPort = mScheduler.addPort(mDriver, mListener);
+        mPort.writeAsync(new byte[96]);
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        // Counted once the completion reaches the dispatcher's callback.
+        while (driver.drain(1)) {
+            assertTrue("Not counted", System.currentTimeMillis() < deadline);
+        }
+        assertEquals(96, mConnection.takeOutput().length);
+        assertTrue(driver.drain(0));
+        assertTrue(driver.drain(1));
+    }
+
+    /**
+     * Before http://b.android.com/28023 was fixed, a completed request does
+     * not tell how much it read, so the scheduler cannot be used.
+     */
+    @Test
+    public void unsupportedBefore28023Fix() throws Exception {
+        Build.VERSION.SDK_INT = Build.VERSION_CODES.JELLY_BEAN;
+        try {
+            mScheduler.addPort(mDriver, mListener);
+            fail("Port added");
+        } catch (UnsupportedOperationException expected) {
+        }
+        assertEquals(0, mConnection.getQueuedRequestCount());
+    }
+
+}
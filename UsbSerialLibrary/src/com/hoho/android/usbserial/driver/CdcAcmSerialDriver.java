@@ -5,9 +5,12 @@ import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbRequest;
 import android.util.Log;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -33,6 +36,13 @@ public class CdcAcmSerialDriver extends CommonUsbSerialDriver {
     private boolean mRts = false;
     private boolean mDtr = false;
 
+    /**
+     * Host-side XON/XOFF output flow control: whether the device has sent
+     * XOFF and not yet XON.  Guarded by {@link #mTxFlowLock}.
+     */
+    private boolean mTxPaused = false;
+    private final Object mTxFlowLock = new Object();
+
     private static final int USB_RECIP_INTERFACE = 0x01;
     private static final int USB_RT_ACM = UsbConstants.USB_TYPE_CLASS | USB_RECIP_INTERFACE;
 
@@ -41,12 +51,69 @@ public class CdcAcmSerialDriver extends CommonUsbSerialDriver {
     private static final int SET_CONTROL_LINE_STATE = 0x22;
     private static final int SEND_BREAK = 0x23;
 
+    private static final int SERIAL_STATE = 0x20;  // USB PSTN 1.2 section 6.5.4
+    private static final int SERIAL_STATE_LENGTH = 10;
+    private static final int SERIAL_STATE_DCD = 0x01;  // bRxCarrier
+    private static final int SERIAL_STATE_DSR = 0x02;  // bTxCarrier
+    private static final int SERIAL_STATE_RI = 0x08;   // bRingSignal
+
+    /** Lines reported by SERIAL_STATE notifications. */
+    private static final int SERIAL_STATE_MS_MASK = MS_DCD_MASK | MS_DSR_MASK | MS_RI_MASK;
+
+    /** Notifications are short; a transfer ends with the first short packet. */
+    private static final int NOTIFICATION_BUFFER_SIZE = 64;
+
+    /**
+     * Interrupt request kept queued on {@link #mControlEndpoint} while open.
+     * Guarded by 'this'.
+     */
+    private UsbRequest mStatusRequest;
+    private final ByteBuffer mStatusBuffer = ByteBuffer.allocate(NOTIFICATION_BUFFER_SIZE);
+    private boolean mOpen = false;
+
+    private final UsbRequestDispatcher.Callback mStatusCallback =
+            new UsbRequestDispatcher.Callback() {
+        @Override
+        public void onRequestComplete(UsbRequest request) {
+            synchronized (CdcAcmSerialDriver.this) {
+                if (!mOpen) {
+                    request.close();
+                    return;
+                }
+            }
+            parseNotification(mStatusBuffer);
+            synchronized (CdcAcmSerialDriver.this) {
+                if (!mOpen) {
+                    request.close();
+                    return;
+                }
+                try {
+                    queueStatusRequest();
+                } catch (IOException e) {
+                    Log.w(TAG, "Stopped reading notifications: " + e.getMessage());
+                }
+            }
+        }
+
+        @Override
+        public void onRequestFailed(UsbRequest request, IOException e) {
+            synchronized (CdcAcmSerialDriver.this) {
+                if (!mOpen) {
+                    request.close();
+                    return;
+                }
+            }
+            Log.w(TAG, "Stopped reading notifications: " + e.getMessage());
+        }
+    };
+
     public CdcAcmSerialDriver(UsbDevice device, UsbDeviceConnection connection) {
         super(device, connection);
     }
 
     @Override
     public void open() throws IOException {
+        invalidateLineState();
         Log.d(TAG, "claiming interfaces, count=" + mDevice.getInterfaceCount());
 
         Log.d(TAG, "Claiming control interface.");
@@ -72,6 +139,61 @@ public class CdcAcmSerialDriver extends CommonUsbSerialDriver {
         Log.d(TAG, "Read endpoint direction: " + mReadEndpoint.getDirection());
         mWriteEndpoint = mDataInterface.getEndpoint(0);
         Log.d(TAG, "Write endpoint direction: " + mWriteEndpoint.getDirection());
+
+        startStatusRequest();
+    }
+
+    /**
+     * Keeps a request queued on the notification endpoint, so that modem
+     * status changes are seen as soon as the device reports them rather than
+     * when next polled.
+     */
+    private synchronized void startStatusRequest() {
+        mOpen = true;
+        if (mControlEndpoint.getType() != UsbConstants.USB_ENDPOINT_XFER_INT
+                || mControlEndpoint.getDirection() != UsbConstants.USB_DIR_IN) {
+            Log.d(TAG, "No notification endpoint, modem status unavailable.");
+            return;
+        }
+        final UsbRequest request = new UsbRequest();
+        if (!request.initialize(mConnection, mControlEndpoint)) {
+            Log.w(TAG, "Error initializing notification request.");
+            return;
+        }
+        mStatusRequest = request;
+        try {
+            queueStatusRequest();
+        } catch (IOException e) {
+            Log.w(TAG, "Error queueing notification request: " + e.getMessage());
+            mStatusRequest.close();
+            mStatusRequest = null;
+        }
+    }
+
+    /** Caller must hold the driver's lock. */
+    private void queueStatusRequest() throws IOException {
+        mStatusBuffer.clear();
+        getRequestDispatcher().queue(mStatusRequest, mStatusBuffer, NOTIFICATION_BUFFER_SIZE,
+                mStatusCallback);
+    }
+
+    /**
+     * Handles a notification in {@code buffer}.  Its length is taken from
+     * the notification header rather than the buffer position, which is not
+     * set on all platforms (http://b.android.com/28023).
+     */
+    private void parseNotification(ByteBuffer buffer) {
+        if ((buffer.get(0) & 0xff) != (UsbConstants.USB_DIR_IN | USB_RT_ACM)
+                || (buffer.get(1) & 0xff) != SERIAL_STATE
+                || (buffer.get(6) & 0xff) + ((buffer.get(7) & 0xff) << 8)
+                        < SERIAL_STATE_LENGTH - 8) {
+            return;
+        }
+        final int state = (buffer.get(8) & 0xff) | ((buffer.get(9) & 0xff) << 8);
+        updateModemStatus(((state & SERIAL_STATE_DCD) == 0 ? 0 : MS_DCD_MASK)
+                | ((state & SERIAL_STATE_DSR) == 0 ? 0 : MS_DSR_MASK)
+                | ((state & SERIAL_STATE_RI) == 0 ? 0 : MS_RI_MASK),
+                SERIAL_STATE_MS_MASK);
     }
 
     private int sendAcmControlMessage(int request, int value, byte[] buf) {
@@ -81,61 +203,148 @@ public class CdcAcmSerialDriver extends CommonUsbSerialDriver {
 
     @Override
     public void close() throws IOException {
+        synchronized (this) {
+            mOpen = false;
+            if (mStatusRequest != null) {
+                // Closed by its callback once the cancellation completes.
+                mStatusRequest.cancel();
+                mStatusRequest = null;
+            }
+        }
         mConnection.close();
     }
 
     @Override
-    public int read(byte[] dest, int timeoutMillis) throws IOException {
-        final int numBytesRead;
-        synchronized (mReadBufferLock) {
-            int readAmt = Math.min(dest.length, mReadBuffer.length);
-            numBytesRead = mConnection.bulkTransfer(mReadEndpoint, mReadBuffer, readAmt,
-                    timeoutMillis);
-            if (numBytesRead < 0) {
-                // This sucks: we get -1 on timeout, not 0 as preferred.
-                // We *should* use UsbRequest, except it has a bug/api oversight
-                // where there is no way to determine the number of bytes read
-                // in response :\ -- http://b.android.com/28023
-                return 0;
+    public UsbEndpoint getReadEndpoint() {
+        return mReadEndpoint;
+    }
+
+    @Override
+    public UsbEndpoint getWriteEndpoint() {
+        return mWriteEndpoint;
+    }
+
+    @Override
+    public int read(byte[] dest, int offset, int length, int timeoutMillis) throws IOException {
+        final int numBytesRead = bulkRead(mReadEndpoint, dest, offset, length, timeoutMillis);
+        return numBytesRead > 0 ? filterFlowChars(dest, offset, numBytesRead) : numBytesRead;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * With XON/XOFF output flow control, removes XON and XOFF from the data
+     * and pauses or resumes writes accordingly.
+     */
+    @Override
+    public int filterReadData(byte[] buffer, int length) {
+        return filterFlowChars(buffer, 0, length);
+    }
+
+    private int filterFlowChars(byte[] buffer, int offset, int length) {
+        if ((getFlowControl() & FLOWCONTROL_XONXOFF_OUT) == 0) {
+            return length;
+        }
+        int kept = 0;
+        int flowChar = -1;
+        for (int i = 0; i < length; i++) {
+            final int c = buffer[offset + i] & 0xff;
+            if (c == XON_CHAR || c == XOFF_CHAR) {
+                flowChar = c;
+            } else {
+                buffer[offset + kept++] = buffer[offset + i];
             }
-            System.arraycopy(mReadBuffer, 0, dest, 0, numBytesRead);
         }
-        return numBytesRead;
+        if (flowChar >= 0) {
+            synchronized (mTxFlowLock) {
+                mTxPaused = flowChar == XOFF_CHAR;
+                mTxFlowLock.notifyAll();
+            }
+        }
+        return kept;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * With XON/XOFF output flow control, returns {@code 0} while the device
+     * has sent XOFF, and one packet otherwise, as {@code write()} sends.
+     */
     @Override
-    public int write(byte[] src, int timeoutMillis) throws IOException {
-        // TODO(mikey): Nearly identical to FtdiSerial write. Refactor.
-        int offset = 0;
-
-        while (offset < src.length) {
-            final int writeLength;
-            final int amtWritten;
-
-            synchronized (mWriteBufferLock) {
-                final byte[] writeBuffer;
-
-                writeLength = Math.min(src.length - offset, mWriteBuffer.length);
-                if (offset == 0) {
-                    writeBuffer = src;
-                } else {
-                    // bulkTransfer does not support offsets, make a copy.
-                    System.arraycopy(src, offset, mWriteBuffer, 0, writeLength);
-                    writeBuffer = mWriteBuffer;
-                }
+    public int getWriteChunkLimit() {
+        if ((getFlowControl() & FLOWCONTROL_XONXOFF_OUT) == 0) {
+            return Integer.MAX_VALUE;
+        }
+        synchronized (mTxFlowLock) {
+            return mTxPaused ? 0 : mWriteEndpoint.getMaxPacketSize();
+        }
+    }
 
-                amtWritten = mConnection.bulkTransfer(mWriteEndpoint, writeBuffer, writeLength,
-                        timeoutMillis);
-            }
-            if (amtWritten <= 0) {
-                throw new IOException("Error writing " + writeLength
-                        + " bytes at offset " + offset + " length=" + src.length);
+    @Override
+    public int write(byte[] src, int offset, int length, int timeoutMillis) throws IOException {
+        if ((getFlowControl() & FLOWCONTROL_XONXOFF_OUT) == 0) {
+            return bulkWrite(mWriteEndpoint, src, offset, length, timeoutMillis);
+        }
+        // Write a packet at a time, so that an XOFF stops the write soon.
+        checkOffsetAndLength(src, offset, length);
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        final int chunkSize = mWriteEndpoint.getMaxPacketSize();
+        int numBytesWritten = 0;
+        while (numBytesWritten < length && awaitTxResumed(timeoutMillis, deadline)) {
+            numBytesWritten += bulkWrite(mWriteEndpoint, src, offset + numBytesWritten,
+                    Math.min(chunkSize, length - numBytesWritten), timeoutMillis);
+        }
+        return numBytesWritten;
+    }
+
+    /**
+     * Waits until the device has not sent XOFF, or until {@code deadline}
+     * unless {@code timeoutMillis} is {@code 0}.
+     *
+     * @return {@code false} if still paused at the deadline
+     */
+    private boolean awaitTxResumed(int timeoutMillis, long deadline) throws IOException {
+        synchronized (mTxFlowLock) {
+            while (mTxPaused) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (timeoutMillis != 0 && remaining <= 0) {
+                    return false;
+                }
+                try {
+                    mTxFlowLock.wait(timeoutMillis != 0 ? remaining : 0);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for XON.");
+                }
             }
+            return true;
+        }
+    }
 
-            Log.d(TAG, "Wrote amt=" + amtWritten + " attempted=" + writeLength);
-            offset += amtWritten;
+    /**
+     * {@inheritDoc}
+     * <p>
+     * CDC/ACM has no flow control of its own, so only
+     * {@link #FLOWCONTROL_XONXOFF_OUT} is supported, by the host: data read
+     * is scanned for XON and XOFF, which are removed, and writes wait while
+     * the device has sent XOFF.  The device must be read from, for example
+     * with {@link com.hoho.android.usbserial.util.SerialInputOutputManager},
+     * for XOFF to be seen.  Writes queued by a
+     * {@link com.hoho.android.usbserial.util.SerialIoScheduler} wait too;
+     * see {@link #getWriteChunkLimit()}.
+     */
+    @Override
+    public void setFlowControl(int flowControl) throws IOException {
+        checkFlowControl(flowControl);
+        if ((flowControl & ~FLOWCONTROL_XONXOFF_OUT) != 0) {
+            throw new UnsupportedOperationException(
+                    "Only XON/XOFF output flow control is supported");
+        }
+        setFlowControlCurrent(flowControl);
+        synchronized (mTxFlowLock) {
+            mTxPaused = false;
+            mTxFlowLock.notifyAll();
         }
-        return offset;
     }
 
     @Override
@@ -158,6 +367,9 @@ public class CdcAcmSerialDriver extends CommonUsbSerialDriver {
             default: throw new IllegalArgumentException("Bad value for parity: " + parity);
         }
 
+        if (isLineCodingCurrent(baudRate, dataBits, stopBits, parity, 1)) {
+            return;
+        }
         byte[] msg = {
                 (byte) ( baudRate & 0xff),
                 (byte) ((baudRate >> 8 ) & 0xff),
@@ -166,28 +378,24 @@ public class CdcAcmSerialDriver extends CommonUsbSerialDriver {
                 stopBitsByte,
                 parityBitesByte,
                 (byte) dataBits};
-        sendAcmControlMessage(SET_LINE_CODING, 0, msg);
+        if (sendAcmControlMessage(SET_LINE_CODING, 0, msg) >= 0) {
+            setLineCodingCurrent(baudRate, dataBits, stopBits, parity);
+        }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * DCD, DSR and RI are as last reported by the device's SERIAL_STATE
+     * notification, which it sends whenever they change; CDC has no way to
+     * report CTS.  RTS and DTR are as last set.
+     */
     @Override
     public int getModemStatus() throws IOException {
-        // TODO Auto-generated method stub
-        return 0;
-    }
-
-    @Override
-    public boolean getCD() throws IOException {
-        return false;  // TODO
-    }
-
-    @Override
-    public boolean getCTS() throws IOException {
-        return false;  // TODO
-    }
-
-    @Override
-    public boolean getDSR() throws IOException {
-        return false;  // TODO
+        return (lastModemStatus & (SERIAL_STATE_MS_MASK | (SERIAL_STATE_MS_MASK << 8)))
+                | ((MS_RTS_MASK | MS_DTR_MASK) << 8)
+                | (mRts ? MS_RTS_MASK : 0)
+                | (mDtr ? MS_DTR_MASK : 0);
     }
 
     @Override
@@ -197,13 +405,13 @@ public class CdcAcmSerialDriver extends CommonUsbSerialDriver {
 
     @Override
     public void setDTR(boolean value) throws IOException {
+        if (isDtrCurrent(value)) {
+            return;
+        }
         mDtr = value;
-        setDtrRts();
-    }
-
-    @Override
-    public boolean getRI() throws IOException {
-        return false;  // TODO
+        if (setDtrRts()) {
+            setDtrCurrent(value);
+        }
     }
 
     @Override
@@ -213,13 +421,18 @@ public class CdcAcmSerialDriver extends CommonUsbSerialDriver {
 
     @Override
     public void setRTS(boolean value) throws IOException {
+        if (isRtsCurrent(value)) {
+            return;
+        }
         mRts = value;
-        setDtrRts();
+        if (setDtrRts()) {
+            setRtsCurrent(value);
+        }
     }
 
-    private void setDtrRts() {
+    private boolean setDtrRts() {
         int value = (mRts ? 0x2 : 0) | (mDtr ? 0x1 : 0);
-        sendAcmControlMessage(SET_CONTROL_LINE_STATE, value, null);
+        return sendAcmControlMessage(SET_CONTROL_LINE_STATE, value, null) >= 0;
     }
 
     public static Map<Integer, int[]> getSupportedDevices() {
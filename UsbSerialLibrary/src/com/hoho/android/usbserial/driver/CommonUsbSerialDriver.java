@@ -22,19 +22,41 @@ package com.hoho.android.usbserial.driver;
 
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.os.Build;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 
 /**
  * A base class shared by several driver implementations.
  *
  * @author mike wakerly (opensource@hoho.com)
  */
-abstract class CommonUsbSerialDriver implements UsbSerialDriver {
+public abstract class CommonUsbSerialDriver implements UsbSerialDriver {
 
     public static final int DEFAULT_READ_BUFFER_SIZE = 16 * 1024;
     public static final int DEFAULT_WRITE_BUFFER_SIZE = 16 * 1024;
 
+    /**
+     * Whether {@link UsbDeviceConnection#bulkTransfer(UsbEndpoint, byte[], int, int, int)},
+     * which accepts an offset, is available.
+     */
+    protected static final boolean BULK_TRANSFER_HAS_OFFSET =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+
+    /**
+     * Returns whether a completed {@link android.hardware.usb.UsbRequest}
+     * gives the number of bytes transferred as its buffer's position.
+     * Before JELLY_BEAN_MR1 it does not (http://b.android.com/28023), so a
+     * queued read cannot tell how much data it received, and reads must
+     * block instead.
+     */
+    public static boolean isRequestLengthReported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1;
+    }
+
     protected final UsbDevice mDevice;
     protected final UsbDeviceConnection mConnection;
 
@@ -47,8 +69,58 @@ abstract class CommonUsbSerialDriver implements UsbSerialDriver {
     /** Internal write buffer.  Guarded by {@link #mWriteBufferLock}. */
     protected byte[] mWriteBuffer;
 
+    // Synchronized by 'this'
+    private UsbRequestDispatcher mRequestDispatcher;
+
     /** Store last result {@link #getModemStatus()}*/
-    protected int lastModemStatus =0;
+    protected volatile int lastModemStatus =0;
+
+    /** Lines whose changes are reported to the {@link ModemStatusListener}. */
+    /** Longest interval between polls of {@link #isWriteBufferEmpty()}. */
+    private static final int MAX_DRAIN_POLL_MILLIS = 16;
+
+    private static final int INPUT_MS_MASK = MS_DCD_MASK | MS_CTS_MASK | MS_DSR_MASK | MS_RI_MASK;
+
+    /** Serializes {@link #updateModemStatus(int, int)}. */
+    private final Object mModemStatusLock = new Object();
+
+    private volatile ModemStatusListener mModemStatusListener;
+
+    /**
+     * Line coding and control lines last set on the device, so that
+     * unchanged values need not be sent again.  Unknown values are
+     * {@code 0} for the baud rate and {@code -1} for the lines.  Guarded by
+     * {@link #mLineStateLock}.
+     */
+    private int mCachedBaudRate = 0;
+    private int mCachedDataBits;
+    private int mCachedStopBits;
+    private int mCachedParity;
+    private int mCachedDtr = -1;
+    private int mCachedRts = -1;
+    private long mControlTransfersAvoided = 0;
+    private final Object mLineStateLock = new Object();
+
+    /**
+     * Time one character takes at the cached line coding, or {@code 0};
+     * written under {@link #mLineStateLock} but read without it, since
+     * framing by timing reads it for every packet.
+     */
+    private volatile long mCharacterNanos = 0;
+
+    /**
+     * When the data written so far should have left the device, from
+     * {@link System#nanoTime()}, estimated from {@link #mCharacterNanos}.
+     * Guarded by {@link #mWireLock}.
+     */
+    private long mWireIdleNanos = 0;
+    private final Object mWireLock = new Object();
+
+    /** Characters for XON/XOFF flow control (DC1 and DC3). */
+    protected static final int XON_CHAR = 0x11;
+    protected static final int XOFF_CHAR = 0x13;
+
+    private volatile int mFlowControl = FLOWCONTROL_NONE;
 
     public CommonUsbSerialDriver(UsbDevice device, UsbDeviceConnection connection) {
         mDevice = device;
@@ -67,6 +139,103 @@ abstract class CommonUsbSerialDriver implements UsbSerialDriver {
         return mDevice;
     }
 
+    /**
+     * Returns the connection used to talk to the device.
+     *
+     * @return the connection
+     */
+    public final UsbDeviceConnection getConnection() {
+        return mConnection;
+    }
+
+    /**
+     * Returns the bulk IN endpoint carrying serial data, for callers that
+     * queue their own {@link android.hardware.usb.UsbRequest}s on it.
+     *
+     * @return the endpoint, or {@code null} if the driver is not open or does
+     *         not support reading this way
+     */
+    public UsbEndpoint getReadEndpoint() {
+        return null;
+    }
+
+    /**
+     * Returns the bulk OUT endpoint carrying serial data, for callers that
+     * queue their own {@link android.hardware.usb.UsbRequest}s on it.
+     *
+     * @return the endpoint, or {@code null} if the driver is not open or does
+     *         not support writing this way
+     */
+    public UsbEndpoint getWriteEndpoint() {
+        return null;
+    }
+
+    /**
+     * Returns the dispatcher through which all
+     * {@link android.hardware.usb.UsbRequest}s on this driver's connection
+     * must be queued, creating it on first use.
+     *
+     * @return the dispatcher
+     */
+    public synchronized UsbRequestDispatcher getRequestDispatcher() {
+        if (mRequestDispatcher == null) {
+            mRequestDispatcher = new UsbRequestDispatcher(mConnection);
+        }
+        return mRequestDispatcher;
+    }
+
+    /**
+     * Sets the dispatcher returned by {@link #getRequestDispatcher()}, for
+     * example to share one between drivers on the same connection or to run
+     * it on a particular executor.  Must be called before any request is
+     * queued.
+     *
+     * @param dispatcher a dispatcher for {@link #getConnection()}
+     */
+    public synchronized void setRequestDispatcher(UsbRequestDispatcher dispatcher) {
+        if (dispatcher.getConnection() != mConnection) {
+            throw new IllegalArgumentException("Dispatcher is for another connection.");
+        }
+        mRequestDispatcher = dispatcher;
+    }
+
+    /**
+     * Converts raw data received on {@link #getReadEndpoint()} into serial
+     * payload, in place.  Drivers for devices which add their own framing to
+     * the data stream override this; the default returns the data unchanged.
+     *
+     * @param buffer the received data, starting at offset 0
+     * @param length number of bytes received
+     * @return number of payload bytes now at the start of {@code buffer}
+     */
+    public int filterReadData(byte[] buffer, int length) {
+        return length;
+    }
+
+    /**
+     * Applies settings which the driver chose while filtering read data but
+     * defers until no transfer is in progress on the calling thread, such
+     * as an FTDI auto-latency timer.  {@link #read(byte[], int)} and
+     * {@link #write(byte[], int)} do this themselves; code which queues
+     * reads and calls {@link #filterReadData(byte[], int)} must call this
+     * after each read it delivers.  The default does nothing.
+     */
+    public void applyDeferredSettings() {
+    }
+
+    /**
+     * Returns the most bytes which code that queues its own writes,
+     * bypassing {@link #write(byte[], int)}, may send in one transfer now.
+     * Drivers with host-side flow control return {@code 0} while the device
+     * has paused output, and a small limit otherwise so that a pause takes
+     * effect soon; a pause only ends when
+     * {@link #filterReadData(byte[], int)} sees the device resume.  The
+     * default is {@link Integer#MAX_VALUE}.
+     */
+    public int getWriteChunkLimit() {
+        return Integer.MAX_VALUE;
+    }
+
     /**
      * Sets the size of the internal buffer used to exchange data with the USB
      * stack for read operations.  Most users should not need to change this.
@@ -104,18 +273,309 @@ abstract class CommonUsbSerialDriver implements UsbSerialDriver {
     public abstract void close() throws IOException;
 
     @Override
-    public abstract int read(final byte[] dest, final int timeoutMillis) throws IOException;
+    public int read(final byte[] dest, final int timeoutMillis) throws IOException {
+        return read(dest, 0, dest.length, timeoutMillis);
+    }
 
     @Override
-    public abstract int write(final byte[] src, final int timeoutMillis) throws IOException;
+    public abstract int read(final byte[] dest, final int offset, final int length,
+            final int timeoutMillis) throws IOException;
+
+    @Override
+    public int read(final ByteBuffer dest, final int timeoutMillis) throws IOException {
+        final int numBytesRead;
+        if (dest.hasArray()) {
+            numBytesRead = read(dest.array(), dest.arrayOffset() + dest.position(),
+                    dest.remaining(), timeoutMillis);
+            dest.position(dest.position() + numBytesRead);
+        } else {
+            final byte[] data = new byte[dest.remaining()];
+            numBytesRead = read(data, 0, data.length, timeoutMillis);
+            dest.put(data, 0, numBytesRead);
+        }
+        return numBytesRead;
+    }
+
+    @Override
+    public int write(final byte[] src, final int timeoutMillis) throws IOException {
+        return write(src, 0, src.length, timeoutMillis);
+    }
+
+    @Override
+    public abstract int write(final byte[] src, final int offset, final int length,
+            final int timeoutMillis) throws IOException;
+
+    @Override
+    public int write(final ByteBuffer src, final int timeoutMillis) throws IOException {
+        final int numBytesWritten;
+        if (src.hasArray()) {
+            numBytesWritten = write(src.array(), src.arrayOffset() + src.position(),
+                    src.remaining(), timeoutMillis);
+            src.position(src.position() + numBytesWritten);
+        } else {
+            final byte[] data = new byte[src.remaining()];
+            src.duplicate().get(data);
+            numBytesWritten = write(data, 0, data.length, timeoutMillis);
+            src.position(src.position() + numBytesWritten);
+        }
+        return numBytesWritten;
+    }
+
+    /**
+     * Reads from a bulk endpoint into part of {@code dest}, directly where the
+     * platform allows it and otherwise through {@link #mReadBuffer}.  At most
+     * the read buffer size is read.
+     *
+     * @return the number of bytes read, or {@code 0} on timeout
+     */
+    protected final int bulkRead(UsbEndpoint endpoint, byte[] dest, int offset, int length,
+            int timeoutMillis) {
+        checkOffsetAndLength(dest, offset, length);
+        synchronized (mReadBufferLock) {
+            final int readAmt = Math.min(length, mReadBuffer.length);
+            final int numBytesRead;
+            if (offset == 0) {
+                numBytesRead = mConnection.bulkTransfer(endpoint, dest, readAmt, timeoutMillis);
+            } else if (BULK_TRANSFER_HAS_OFFSET) {
+                numBytesRead = mConnection.bulkTransfer(endpoint, dest, offset, readAmt,
+                        timeoutMillis);
+            } else {
+                numBytesRead = mConnection.bulkTransfer(endpoint, mReadBuffer, readAmt,
+                        timeoutMillis);
+                if (numBytesRead > 0) {
+                    System.arraycopy(mReadBuffer, 0, dest, offset, numBytesRead);
+                }
+            }
+            if (numBytesRead < 0) {
+                // This sucks: we get -1 on timeout, not 0 as preferred.
+                // We *should* use UsbRequest, except it has a bug/api oversight
+                // where there is no way to determine the number of bytes read
+                // in response :\ -- http://b.android.com/28023
+                return 0;
+            }
+            return numBytesRead;
+        }
+    }
+
+    /**
+     * Writes part of {@code src} to a bulk endpoint in chunks of at most the
+     * write buffer size, directly where the platform allows it and otherwise
+     * through {@link #mWriteBuffer}.
+     *
+     * @return the number of bytes written, which is always {@code length}
+     * @throws IOException if a chunk could not be written
+     */
+    protected final int bulkWrite(UsbEndpoint endpoint, byte[] src, int offset, int length,
+            int timeoutMillis) throws IOException {
+        checkOffsetAndLength(src, offset, length);
+        int numBytesWritten = 0;
+
+        while (numBytesWritten < length) {
+            final int srcOffset = offset + numBytesWritten;
+            final int writeLength;
+            final int amtWritten;
+
+            synchronized (mWriteBufferLock) {
+                writeLength = Math.min(length - numBytesWritten, mWriteBuffer.length);
+                if (srcOffset == 0) {
+                    amtWritten = mConnection.bulkTransfer(endpoint, src, writeLength,
+                            timeoutMillis);
+                } else if (BULK_TRANSFER_HAS_OFFSET) {
+                    amtWritten = mConnection.bulkTransfer(endpoint, src, srcOffset, writeLength,
+                            timeoutMillis);
+                } else {
+                    // bulkTransfer does not support offsets, make a copy.
+                    System.arraycopy(src, srcOffset, mWriteBuffer, 0, writeLength);
+                    amtWritten = mConnection.bulkTransfer(endpoint, mWriteBuffer, writeLength,
+                            timeoutMillis);
+                }
+            }
+
+            if (amtWritten <= 0) {
+                throw new IOException("Error writing " + writeLength + " bytes: offset="
+                        + srcOffset + " length=" + length + " buffer length=" + src.length);
+            }
+            onDataWritten(amtWritten);
+            numBytesWritten += amtWritten;
+        }
+        return numBytesWritten;
+    }
+
+    protected static void checkOffsetAndLength(byte[] buffer, int offset, int length) {
+        if (offset < 0 || length < 0 || length > buffer.length - offset) {
+            throw new IndexOutOfBoundsException("offset=" + offset + " length=" + length
+                    + " buffer length=" + buffer.length);
+        }
+    }
 
     @Override
     public abstract void setParameters(
             int baudRate, int dataBits, int stopBits, int parity) throws IOException;
 
+    /**
+     * Returns the baud rate last set with
+     * {@link #setParameters(int, int, int, int)}, or {@code 0} if unknown.
+     */
+    public int getBaudRate() {
+        synchronized (mLineStateLock) {
+            return mCachedBaudRate;
+        }
+    }
+
+    /**
+     * Returns the time one character takes on the wire, counting the start,
+     * data, parity and stop bits of the line coding last set with
+     * {@link #setParameters(int, int, int, int)}, or {@code 0} if unknown.
+     */
+    public long getCharacterNanos() {
+        return mCharacterNanos;
+    }
+
+    /**
+     * Returns the number of control transfers skipped because they would have
+     * set a line coding or control line to the value it already had.
+     */
+    public long getControlTransfersAvoided() {
+        synchronized (mLineStateLock) {
+            return mControlTransfersAvoided;
+        }
+    }
+
+    /**
+     * Forgets the cached line coding and control lines, for use when the
+     * device may have changed them, e.g. after it is opened or reset.
+     */
+    protected void invalidateLineState() {
+        synchronized (mLineStateLock) {
+            mCachedBaudRate = 0;
+            mCharacterNanos = 0;
+            mCachedDtr = -1;
+            mCachedRts = -1;
+        }
+    }
+
+    /**
+     * Returns whether the device already has the given line coding, in which
+     * case {@code transfers} control transfers are counted as avoided.
+     */
+    protected boolean isLineCodingCurrent(int baudRate, int dataBits, int stopBits, int parity,
+            int transfers) {
+        synchronized (mLineStateLock) {
+            if (mCachedBaudRate != 0 && mCachedBaudRate == baudRate
+                    && mCachedDataBits == dataBits && mCachedStopBits == stopBits
+                    && mCachedParity == parity) {
+                mControlTransfersAvoided += transfers;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /** Records a line coding successfully sent to the device. */
+    protected void setLineCodingCurrent(int baudRate, int dataBits, int stopBits, int parity) {
+        synchronized (mLineStateLock) {
+            mCachedBaudRate = baudRate;
+            mCachedDataBits = dataBits;
+            mCachedStopBits = stopBits;
+            mCachedParity = parity;
+            // In half bits, for 1.5 stop bits.
+            final int halfBits = 2 * (1 + dataBits) + (parity == PARITY_NONE ? 0 : 2)
+                    + (stopBits == STOPBITS_1_5 ? 3 : 2 * stopBits);
+            mCharacterNanos = halfBits * 500000000L / baudRate;
+        }
+    }
+
+    /**
+     * Returns whether DTR is already {@code value}, in which case a control
+     * transfer is counted as avoided.
+     */
+    protected boolean isDtrCurrent(boolean value) {
+        synchronized (mLineStateLock) {
+            if (mCachedDtr == (value ? 1 : 0)) {
+                mControlTransfersAvoided++;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /** Records a DTR state successfully sent to the device. */
+    protected void setDtrCurrent(boolean value) {
+        synchronized (mLineStateLock) {
+            mCachedDtr = value ? 1 : 0;
+        }
+    }
+
+    /**
+     * Returns whether RTS is already {@code value}, in which case a control
+     * transfer is counted as avoided.
+     */
+    protected boolean isRtsCurrent(boolean value) {
+        synchronized (mLineStateLock) {
+            if (mCachedRts == (value ? 1 : 0)) {
+                mControlTransfersAvoided++;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /** Records an RTS state successfully sent to the device. */
+    protected void setRtsCurrent(boolean value) {
+        synchronized (mLineStateLock) {
+            mCachedRts = value ? 1 : 0;
+        }
+    }
+
+    /**
+     * Forgets only the cached RTS state, for use when the device drives RTS
+     * itself, e.g. for hardware flow control. The line coding stays cached.
+     */
+    protected void invalidateRtsState() {
+        synchronized (mLineStateLock) {
+            mCachedRts = -1;
+        }
+    }
+
     @Override
     public abstract int getModemStatus() throws IOException;
 
+    @Override
+    public void setModemStatusListener(ModemStatusListener listener) {
+        mModemStatusListener = listener;
+    }
+
+    @Override
+    public ModemStatusListener getModemStatusListener() {
+        return mModemStatusListener;
+    }
+
+    /**
+     * Merges newly reported status lines into {@link #lastModemStatus} and
+     * tells the {@link ModemStatusListener} if any of DCD, CTS, DSR and RI
+     * changed.
+     *
+     * @param status the reported {@code MS_*_MASK} bits
+     * @param mask the {@code MS_*_MASK} bits which {@code status} reports;
+     *            others are left unchanged
+     * @return the DCD, CTS, DSR and RI bits which changed
+     */
+    protected int updateModemStatus(int status, int mask) {
+        final int newStatus;
+        final int changed;
+        synchronized (mModemStatusLock) {
+            final int oldStatus = lastModemStatus;
+            newStatus = (oldStatus & ~(mask | (mask << 8))) | (mask << 8) | (status & mask);
+            lastModemStatus = newStatus;
+            changed = (oldStatus ^ newStatus) & mask & INPUT_MS_MASK;
+        }
+        final ModemStatusListener listener = mModemStatusListener;
+        if (changed != 0 && listener != null) {
+            listener.onModemStatusChanged(this, newStatus, changed);
+        }
+        return changed;
+    }
+
     @Override
     public boolean getCD() throws IOException {
         // TODO if (((getModemStatus() >>> 8) & MS_DCD_MASK) == 0) return null;
@@ -183,4 +643,111 @@ abstract class CommonUsbSerialDriver implements UsbSerialDriver {
     @Override
     public abstract void setDTR(boolean value) throws IOException;
 
+    @Override
+    public abstract void setFlowControl(int flowControl) throws IOException;
+
+    @Override
+    public int getFlowControl() {
+        return mFlowControl;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The default does nothing and returns {@code false}.
+     */
+    @Override
+    public boolean purgeHwBuffers(boolean purgeReadBuffers, boolean purgeWriteBuffers)
+            throws IOException {
+        return false;
+    }
+
+    /**
+     * Records {@code length} bytes handed to the device, for the estimate
+     * made by {@link #isWriteBufferEmpty()}.  {@link #write(byte[], int)}
+     * and the other write methods call this; callers writing to
+     * {@link #getWriteEndpoint()} with their own requests should too.
+     */
+    public void onDataWritten(int length) {
+        final long characterNanos = mCharacterNanos;
+        if (characterNanos == 0) {
+            return;
+        }
+        final long now = System.nanoTime();
+        synchronized (mWireLock) {
+            final long start = mWireIdleNanos - now > 0 ? mWireIdleNanos : now;
+            mWireIdleNanos = start + length * characterNanos;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * First sleeps for as long as the data written should take to send, see
+     * {@link #onDataWritten(int)}, then polls {@link #isWriteBufferEmpty()},
+     * which may take a control transfer, at intervals doubling from 1 ms up
+     * to {@value #MAX_DRAIN_POLL_MILLIS} ms.
+     */
+    @Override
+    public boolean drain(int timeoutMillis) throws IOException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        long pauseMillis;
+        synchronized (mWireLock) {
+            pauseMillis = (mWireIdleNanos - System.nanoTime() + 999999) / 1000000;
+        }
+        int pollMillis = 1;
+        while (true) {
+            if (timeoutMillis != 0) {
+                pauseMillis = Math.min(pauseMillis, deadline - System.currentTimeMillis());
+            }
+            if (pauseMillis > 0) {
+                try {
+                    Thread.sleep(pauseMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while draining.");
+                }
+            }
+            if (isWriteBufferEmpty()) {
+                return true;
+            }
+            if (timeoutMillis != 0 && System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            pauseMillis = pollMillis;
+            pollMillis = Math.min(2 * pollMillis, MAX_DRAIN_POLL_MILLIS);
+        }
+    }
+
+    /**
+     * Returns whether the device has sent all data written to it, for
+     * {@link #drain(int)}.  Devices which can report this should override
+     * it.  The default estimates it from the data written, see
+     * {@link #onDataWritten(int)}, and {@link #getCharacterNanos()},
+     * assuming that the device sends without pause.  With an unknown line
+     * coding, it returns {@code true} once the data was handed to the
+     * device.
+     */
+    protected boolean isWriteBufferEmpty() throws IOException {
+        synchronized (mWireLock) {
+            return mWireIdleNanos - System.nanoTime() <= 0;
+        }
+    }
+
+    /** Records flow control successfully set on the device. */
+    protected void setFlowControlCurrent(int flowControl) {
+        mFlowControl = flowControl;
+    }
+
+    /**
+     * Throws {@link IllegalArgumentException} unless {@code flowControl} is a
+     * combination of the {@code FLOWCONTROL_*} flags.
+     */
+    protected static void checkFlowControl(int flowControl) {
+        if ((flowControl & ~(FLOWCONTROL_RTSCTS_IN | FLOWCONTROL_RTSCTS_OUT
+                | FLOWCONTROL_XONXOFF_IN | FLOWCONTROL_XONXOFF_OUT)) != 0) {
+            throw new IllegalArgumentException("Bad value for flowControl: " + flowControl);
+        }
+    }
+
 }
@@ -39,6 +39,10 @@ public class Cp2102SerialDriver extends CommonUsbSerialDriver {
     private static final int SILABSER_SET_MHS_REQUEST_CODE = 0x07;
     // GET_MDMSTS 0x08 Get modem status.
     private static final int SILABSER_GET_MHS_REQUEST_CODE = 0x08;
+    private static final int SILABSER_GET_COMM_STATUS_REQUEST_CODE = 0x10;
+    private static final int SILABSER_PURGE_REQUEST_CODE = 0x12;
+    private static final int SILABSER_SET_FLOW_REQUEST_CODE = 0x13;
+    private static final int SILABSER_GET_FLOW_REQUEST_CODE = 0x14;
     private static final int SILABSER_SET_BAUDRATE = 0x1E;
     
     /*
@@ -62,6 +66,38 @@ public class Cp2102SerialDriver extends CommonUsbSerialDriver {
     private static final int CONTROL_WRITE_DTR = 0x0100;
     private static final int CONTROL_WRITE_RTS = 0x0200;    
 
+    /*
+     * SILABSER_PURGE_REQUEST_CODE AN571 5.26: each queue has two bits.
+     */
+    private static final int PURGE_TX = 0x0005;
+    private static final int PURGE_RX = 0x000A;
+
+    /*
+     * SILABSER_GET_COMM_STATUS_REQUEST_CODE AN571 5.25: a 19-byte structure
+     * with ulAmountInOutQueue at offset 12.
+     */
+    private static final int COMM_STATUS_SIZE = 19;
+    private static final int COMM_STATUS_OUT_QUEUE_OFFSET = 12;
+
+    /*
+     * SILABSER_SET_FLOW_REQUEST_CODE AN571 5.18: a 16-byte structure of
+     * ulControlHandshake, ulFlowReplace, ulXonLimit and ulXoffLimit.
+     */
+    private static final int FLOW_SIZE = 16;
+    // ulControlHandshake bit 3: transmit only while CTS is active
+    private static final int FLOW_CTS_HANDSHAKE = 0x00000008;
+    // ulFlowReplace bit 0: stop transmitting on XOFF
+    private static final int FLOW_AUTO_TRANSMIT = 0x00000001;
+    // ulFlowReplace bit 1: send XOFF when the receive buffer fills
+    private static final int FLOW_AUTO_RECEIVE = 0x00000002;
+    // ulFlowReplace bits 6-7: RTS statically active, or used for flow control
+    private static final int FLOW_RTS_MASK = 0x000000C0;
+    private static final int FLOW_RTS_ACTIVE = 0x00000040;
+    private static final int FLOW_RTS_FLOW = 0x00000080;
+    // Receive buffer levels, in bytes, at which XON and XOFF are sent
+    private static final int FLOW_XON_LIMIT = 128;
+    private static final int FLOW_XOFF_LIMIT = 128;
+
     /*
      * SILABSER_GET_MHS_REQUEST_CODE AN571 Rev. 0.1 p.11 5.10. GET_MDMSTS (0x08)
      */
@@ -78,8 +114,24 @@ public class Cp2102SerialDriver extends CommonUsbSerialDriver {
     // bit 7: DCD state (as set by end device).
     private static final int GET_MCR_DCD = 0x0080;
 
+    private static final int ALL_MS_MASK = MS_DCD_MASK | MS_CTS_MASK | MS_RTS_MASK | MS_DSR_MASK
+            | MS_DTR_MASK | MS_RI_MASK;
+
+    /**
+     * The CP2102 cannot notify the host of modem status changes, so they are
+     * polled while a {@link ModemStatusListener} is set: every
+     * {@value #STATUS_POLL_MIN_MILLIS} ms after a change, backing off to
+     * {@value #STATUS_POLL_MAX_MILLIS} ms while the lines are steady.
+     */
+    private static final int STATUS_POLL_MIN_MILLIS = 5;
+    private static final int STATUS_POLL_MAX_MILLIS = 160;
+
     private UsbEndpoint mReadEndpoint;
     private UsbEndpoint mWriteEndpoint; 
+
+    // Synchronized by 'this'
+    private boolean mOpen = false;
+    private Thread mStatusPoller;
     
     public Cp2102SerialDriver(UsbDevice device, UsbDeviceConnection connection) {
         super(device, connection);
@@ -93,6 +145,7 @@ public class Cp2102SerialDriver extends CommonUsbSerialDriver {
     @Override
     public void open() throws IOException {        
         boolean opened = false;
+        invalidateLineState();
         try {
             for (int i = 0; i < mDevice.getInterfaceCount(); i++) {                
                 UsbInterface usbIface = mDevice.getInterface(i);
@@ -120,6 +173,10 @@ public class Cp2102SerialDriver extends CommonUsbSerialDriver {
             setConfigSingle(SILABSER_SET_BAUDDIV_REQUEST_CODE, BAUD_RATE_GEN_FREQ / DEFAULT_BAUD_RATE);            
 //            setParameters(DEFAULT_BAUD_RATE, DEFAULT_DATA_BITS, DEFAULT_STOP_BITS, DEFAULT_PARITY);
             opened = true;
+            synchronized (this) {
+                mOpen = true;
+                updateStatusPoller();
+            }
         } finally {
             if (!opened) {
                 close();
@@ -129,61 +186,32 @@ public class Cp2102SerialDriver extends CommonUsbSerialDriver {
 
     @Override
     public void close() throws IOException {
+        synchronized (this) {
+            mOpen = false;
+            updateStatusPoller();
+        }
         setConfigSingle(SILABSER_IFC_ENABLE_REQUEST_CODE, UART_DISABLE);
         mConnection.close();
     }
 
     @Override
-    public int read(byte[] dest, int timeoutMillis) throws IOException {
-        final int numBytesRead;
-        synchronized (mReadBufferLock) {
-            int readAmt = Math.min(dest.length, mReadBuffer.length);
-            numBytesRead = mConnection.bulkTransfer(mReadEndpoint, mReadBuffer, readAmt,
-                    timeoutMillis);
-            if (numBytesRead < 0) {
-                // This sucks: we get -1 on timeout, not 0 as preferred.
-                // We *should* use UsbRequest, except it has a bug/api oversight
-                // where there is no way to determine the number of bytes read
-                // in response :\ -- http://b.android.com/28023
-                return 0;
-            }
-            System.arraycopy(mReadBuffer, 0, dest, 0, numBytesRead);
-        }
-        return numBytesRead;
+    public UsbEndpoint getReadEndpoint() {
+        return mReadEndpoint;
     }
 
     @Override
-    public int write(byte[] src, int timeoutMillis) throws IOException {
-        int offset = 0;
-
-        while (offset < src.length) {
-            final int writeLength;
-            final int amtWritten;
-
-            synchronized (mWriteBufferLock) {
-                final byte[] writeBuffer;
-
-                writeLength = Math.min(src.length - offset, mWriteBuffer.length);
-                if (offset == 0) {
-                    writeBuffer = src;
-                } else {
-                    // bulkTransfer does not support offsets, make a copy.
-                    System.arraycopy(src, offset, mWriteBuffer, 0, writeLength);
-                    writeBuffer = mWriteBuffer;
-                }
+    public UsbEndpoint getWriteEndpoint() {
+        return mWriteEndpoint;
+    }
 
-                amtWritten = mConnection.bulkTransfer(mWriteEndpoint, writeBuffer, writeLength,
-                        timeoutMillis);
-            }
-            if (amtWritten <= 0) {
-                throw new IOException("Error writing " + writeLength
-                        + " bytes at offset " + offset + " length=" + src.length);
-            }
+    @Override
+    public int read(byte[] dest, int offset, int length, int timeoutMillis) throws IOException {
+        return bulkRead(mReadEndpoint, dest, offset, length, timeoutMillis);
+    }
 
-            Log.d(TAG, "Wrote amt=" + amtWritten + " attempted=" + writeLength);
-            offset += amtWritten;
-        }
-        return offset;
+    @Override
+    public int write(byte[] src, int offset, int length, int timeoutMillis) throws IOException {
+        return bulkWrite(mWriteEndpoint, src, offset, length, timeoutMillis);
     }
 
     private void setBaudRate(int baudRate) throws IOException {   
@@ -203,57 +231,81 @@ public class Cp2102SerialDriver extends CommonUsbSerialDriver {
     @Override
     public void setParameters(int baudRate, int dataBits, int stopBits, int parity)
             throws IOException {
-        setBaudRate(baudRate);
-                
-        int configDataBits = 0;
+        // Data bits, parity and stop bits share one LINE_CTL word (AN571
+        // 5.6), so they must be set together.
+        int lineCtl;
         switch (dataBits) {
             case DATABITS_5:
-                configDataBits |= 0x0500;
-                break;
             case DATABITS_6:
-                configDataBits |= 0x0600;
-                break;
             case DATABITS_7:
-                configDataBits |= 0x0700;
-                break;
             case DATABITS_8:
-                configDataBits |= 0x0800;
+                lineCtl = dataBits << 8;
                 break;
             default:
-                configDataBits |= 0x0800;
-                break;
+                throw new IllegalArgumentException("Bad value for dataBits: " + dataBits);
         }
-        setConfigSingle(SILABSER_SET_LINE_CTL_REQUEST_CODE, configDataBits);
 
-        int configParityBits = 0; // PARITY_NONE
         switch (parity) {
+            case PARITY_NONE:
+                break;
             case PARITY_ODD:
-                configParityBits |= 0x0010;
+                lineCtl |= 0x0010;
                 break;
             case PARITY_EVEN:
-                configParityBits |= 0x0020;
-                break;            
+                lineCtl |= 0x0020;
+                break;
+            case PARITY_MARK:
+                lineCtl |= 0x0030;
+                break;
+            case PARITY_SPACE:
+                lineCtl |= 0x0040;
+                break;
+            default:
+                throw new IllegalArgumentException("Bad value for parity: " + parity);
         }
-        setConfigSingle(SILABSER_SET_LINE_CTL_REQUEST_CODE, configParityBits);
-        
-        int configStopBits = 0;
+
         switch (stopBits) {
             case STOPBITS_1:
-                configStopBits |= 0;
+                break;
+            case STOPBITS_1_5:
+                lineCtl |= 1;
                 break;
             case STOPBITS_2:
-                configStopBits |= 2;
+                lineCtl |= 2;
                 break;
+            default:
+                throw new IllegalArgumentException("Bad value for stopBits: " + stopBits);
+        }
+
+        if (isLineCodingCurrent(baudRate, dataBits, stopBits, parity, 2)) {
+            return;
+        }
+        setBaudRate(baudRate);
+        if (setConfigSingle(SILABSER_SET_LINE_CTL_REQUEST_CODE, lineCtl) < 0) {
+            throw new IOException("Error setting line control.");
         }
-        setConfigSingle(SILABSER_SET_LINE_CTL_REQUEST_CODE, configStopBits);        
+        setLineCodingCurrent(baudRate, dataBits, stopBits, parity);
     }
 
     @Override
     public int getModemStatus() throws IOException {
+        refreshModemStatus();
+        return lastModemStatus;
+    }
+
+    /**
+     * Reads the modem status lines into {@link #lastModemStatus}.
+     *
+     * @return the DCD, CTS, DSR and RI bits which changed
+     */
+    private int refreshModemStatus() throws IOException {
         byte[] buffer = new byte[1] ;
         int res;
-        mConnection.controlTransfer(REQTYPE_DEVICE_TO_HOST, SILABSER_GET_MHS_REQUEST_CODE, 0,
-                0, buffer, 1, USB_WRITE_TIMEOUT_MILLIS);
+        int result = mConnection.controlTransfer(REQTYPE_DEVICE_TO_HOST,
+                SILABSER_GET_MHS_REQUEST_CODE, 0, 0, buffer, 1, USB_WRITE_TIMEOUT_MILLIS);
+        if (result != 1) {
+            throw new IOException("Error reading modem status: result=" + result);
+        }
         /*
         Log.d(TAG, "GET_MDMSTS (0x08)"
                 + (((buffer[0] & GET_MCR_DCD) == 0) ? " dcd" : " DCD")
@@ -264,16 +316,160 @@ public class Cp2102SerialDriver extends CommonUsbSerialDriver {
                 + (((buffer[0] & GET_MCR_RI) == 0) ? " ri" : " RI")
                 );
         */
-        res = MS_DCD_MASK | MS_CTS_MASK | MS_RTS_MASK | MS_DSR_MASK | MS_DTR_MASK | MS_RI_MASK;
-        res <<= 8;
-        res = res | (((buffer[0] & GET_MCR_DCD) == 0) ? 0 : MS_DCD_MASK)
+        res = (((buffer[0] & GET_MCR_DCD) == 0) ? 0 : MS_DCD_MASK)
                 | (((buffer[0] & GET_MCR_CTS) == 0) ? 0 : MS_CTS_MASK)
                 | (((buffer[0] & GET_MCR_RTS) == 0) ? 0 : MS_RTS_MASK)
                 | (((buffer[0] & GET_MCR_DSR) == 0) ? 0 : MS_DSR_MASK)
                 | (((buffer[0] & GET_MCR_DTR) == 0) ? 0 : MS_DTR_MASK)
                 | (((buffer[0] & GET_MCR_RI) == 0) ? 0 : MS_RI_MASK);
-        lastModemStatus = res;
-        return res;
+        return updateModemStatus(res, ALL_MS_MASK);
+    }
+
+    @Override
+    public void setModemStatusListener(ModemStatusListener listener) {
+        super.setModemStatusListener(listener);
+        synchronized (this) {
+            updateStatusPoller();
+        }
+    }
+
+    /**
+     * Starts or stops the status poller, which runs only while the device is
+     * open and a listener is set.  Caller must hold the driver's lock.
+     */
+    private void updateStatusPoller() {
+        final boolean wanted = mOpen && getModemStatusListener() != null;
+        if (wanted && mStatusPoller == null) {
+            mStatusPoller = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    pollModemStatus();
+                }
+            }, TAG + "-status");
+            mStatusPoller.setDaemon(true);
+            mStatusPoller.start();
+        } else if (!wanted && mStatusPoller != null) {
+            mStatusPoller.interrupt();
+            mStatusPoller = null;
+        }
+    }
+
+    private void pollModemStatus() {
+        final Thread self = Thread.currentThread();
+        int intervalMillis = STATUS_POLL_MIN_MILLIS;
+        while (true) {
+            synchronized (this) {
+                if (mStatusPoller != self) {
+                    return;
+                }
+            }
+            try {
+                if (refreshModemStatus() != 0) {
+                    intervalMillis = STATUS_POLL_MIN_MILLIS;
+                } else {
+                    intervalMillis = Math.min(2 * intervalMillis, STATUS_POLL_MAX_MILLIS);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Modem status poll failed: " + e.getMessage());
+                intervalMillis = STATUS_POLL_MAX_MILLIS;
+            }
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * All combinations are supported.  Other handshaking settings are
+     * preserved.
+     */
+    @Override
+    public void setFlowControl(int flowControl) throws IOException {
+        checkFlowControl(flowControl);
+        final byte[] flow = new byte[FLOW_SIZE];
+        int result = mConnection.controlTransfer(REQTYPE_DEVICE_TO_HOST,
+                SILABSER_GET_FLOW_REQUEST_CODE, 0, 0, flow, FLOW_SIZE, USB_WRITE_TIMEOUT_MILLIS);
+        if (result != FLOW_SIZE) {
+            throw new IOException("Getting flow control failed: result=" + result);
+        }
+        int controlHandshake = getInt(flow, 0);
+        int flowReplace = getInt(flow, 4);
+
+        if ((flowControl & FLOWCONTROL_RTSCTS_OUT) != 0) {
+            controlHandshake |= FLOW_CTS_HANDSHAKE;
+        } else {
+            controlHandshake &= ~FLOW_CTS_HANDSHAKE;
+        }
+        if ((flowControl & FLOWCONTROL_RTSCTS_IN) != 0) {
+            flowReplace = (flowReplace & ~FLOW_RTS_MASK) | FLOW_RTS_FLOW;
+        } else if ((flowReplace & FLOW_RTS_MASK) == FLOW_RTS_FLOW) {
+            flowReplace = (flowReplace & ~FLOW_RTS_MASK) | FLOW_RTS_ACTIVE;
+        }
+        if ((flowControl & FLOWCONTROL_XONXOFF_OUT) != 0) {
+            flowReplace |= FLOW_AUTO_TRANSMIT;
+        } else {
+            flowReplace &= ~FLOW_AUTO_TRANSMIT;
+        }
+        if ((flowControl & FLOWCONTROL_XONXOFF_IN) != 0) {
+            flowReplace |= FLOW_AUTO_RECEIVE;
+        } else {
+            flowReplace &= ~FLOW_AUTO_RECEIVE;
+        }
+
+        putInt(flow, 0, controlHandshake);
+        putInt(flow, 4, flowReplace);
+        putInt(flow, 8, FLOW_XON_LIMIT);
+        putInt(flow, 12, FLOW_XOFF_LIMIT);
+        result = mConnection.controlTransfer(REQTYPE_HOST_TO_DEVICE,
+                SILABSER_SET_FLOW_REQUEST_CODE, 0, 0, flow, FLOW_SIZE, USB_WRITE_TIMEOUT_MILLIS);
+        if (result != FLOW_SIZE) {
+            throw new IOException("Setting flow control failed: result=" + result);
+        }
+        setFlowControlCurrent(flowControl);
+        if ((flowControl & FLOWCONTROL_RTSCTS_IN) != 0) {
+            // RTS now follows the receive buffer, not setRTS().
+            invalidateRtsState();
+        }
+    }
+
+    @Override
+    public boolean purgeHwBuffers(boolean purgeReadBuffers, boolean purgeWriteBuffers)
+            throws IOException {
+        final int value = (purgeReadBuffers ? PURGE_RX : 0) | (purgeWriteBuffers ? PURGE_TX : 0);
+        if (value != 0 && setConfigSingle(SILABSER_PURGE_REQUEST_CODE, value) < 0) {
+            throw new IOException("Purge failed.");
+        }
+        return true;
+    }
+
+    @Override
+    protected boolean isWriteBufferEmpty() throws IOException {
+        final byte[] status = new byte[COMM_STATUS_SIZE];
+        final int result = mConnection.controlTransfer(REQTYPE_DEVICE_TO_HOST,
+                SILABSER_GET_COMM_STATUS_REQUEST_CODE, 0, 0, status, COMM_STATUS_SIZE,
+                USB_WRITE_TIMEOUT_MILLIS);
+        if (result != COMM_STATUS_SIZE) {
+            throw new IOException("Getting comm status failed: result=" + result);
+        }
+        return getInt(status, COMM_STATUS_OUT_QUEUE_OFFSET) == 0;
+    }
+
+    private static int getInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff)
+                | ((buffer[offset + 1] & 0xff) << 8)
+                | ((buffer[offset + 2] & 0xff) << 16)
+                | ((buffer[offset + 3] & 0xff) << 24);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+        buffer[offset + 2] = (byte) (value >> 16);
+        buffer[offset + 3] = (byte) (value >> 24);
     }
 
     @Override
@@ -281,8 +477,14 @@ public class Cp2102SerialDriver extends CommonUsbSerialDriver {
         // TODO DTR and RTS values can be set only if the current handshaking
         // state of the interface allows direct control of the modem control
         // lines.
-        setConfigSingle(SILABSER_SET_MHS_REQUEST_CODE,
-                (CONTROL_WRITE_RTS | (value ? MCR_RTS : 0)));
+        if (isRtsCurrent(value)) {
+            return;
+        }
+        if (setConfigSingle(SILABSER_SET_MHS_REQUEST_CODE,
+                (CONTROL_WRITE_RTS | (value ? MCR_RTS : 0))) < 0) {
+            throw new IOException("Error setting RTS.");
+        }
+        setRtsCurrent(value);
     }
 
     @Override
@@ -290,8 +492,14 @@ public class Cp2102SerialDriver extends CommonUsbSerialDriver {
         // TODO DTR and RTS values can be set only if the current handshaking
         // state of the interface allows direct control of the modem control
         // lines.
-        setConfigSingle(SILABSER_SET_MHS_REQUEST_CODE,
-                (CONTROL_WRITE_DTR | (value ? MCR_DTR : 0)));
+        if (isDtrCurrent(value)) {
+            return;
+        }
+        if (setConfigSingle(SILABSER_SET_MHS_REQUEST_CODE,
+                (CONTROL_WRITE_DTR | (value ? MCR_DTR : 0))) < 0) {
+            throw new IOException("Error setting DTR.");
+        }
+        setDtrCurrent(value);
     }
 
     public static Map<Integer, int[]> getSupportedDevices() {
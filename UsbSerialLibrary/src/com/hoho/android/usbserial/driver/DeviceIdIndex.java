@@ -0,0 +1,126 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+package com.hoho.android.usbserial.driver;
+
+import java.util.Map;
+
+/**
+ * Map from USB vendor and product id to a value, using open addressing on
+ * primitive keys so that a lookup neither allocates nor boxes.
+ * <p>
+ * An index is filled by {@link #put(int, int, Object)} before it is shared,
+ * and not modified after; publish it through a {@code final} or
+ * {@code volatile} field.
+ */
+final class DeviceIdIndex<V> {
+
+    private static final long EMPTY = -1;
+
+    private final long[] mKeys;
+    private final Object[] mValues;
+    private final int mMask;
+    private int mSize = 0;
+
+    /**
+     * @param capacity the most entries that will be put
+     */
+    DeviceIdIndex(int capacity) {
+        // At most half full, so probe sequences stay short.
+        int tableSize = 16;
+        while (tableSize < 2 * capacity) {
+            tableSize <<= 1;
+        }
+        mKeys = new long[tableSize];
+        mValues = new Object[tableSize];
+        mMask = tableSize - 1;
+        for (int i = 0; i < tableSize; i++) {
+            mKeys[i] = EMPTY;
+        }
+    }
+
+    /**
+     * Creates a copy of {@code other} with room for {@code extra} more
+     * entries.
+     */
+    DeviceIdIndex(DeviceIdIndex<V> other, int extra) {
+        this(other.mSize + extra);
+        for (int i = 0; i < other.mKeys.length; i++) {
+            if (other.mKeys[i] != EMPTY) {
+                putKey(other.mKeys[i], other.mValues[i]);
+            }
+        }
+    }
+
+    /** Adds every vendor and product id in a driver's supported devices map. */
+    void putAll(Map<Integer, int[]> supportedDevices, V value) {
+        for (final Map.Entry<Integer, int[]> entry : supportedDevices.entrySet()) {
+            for (final int productId : entry.getValue()) {
+                put(entry.getKey().intValue(), productId, value);
+            }
+        }
+    }
+
+    /** Maps a vendor and product id to {@code value}, replacing any previous value. */
+    void put(int vendorId, int productId, V value) {
+        putKey(key(vendorId, productId), value);
+    }
+
+    /** Returns the value for a vendor and product id, or {@code null}. */
+    @SuppressWarnings("unchecked")
+    V get(int vendorId, int productId) {
+        final long key = key(vendorId, productId);
+        for (int i = slot(key); ; i = (i + 1) & mMask) {
+            if (mKeys[i] == key) {
+                return (V) mValues[i];
+            } else if (mKeys[i] == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    private void putKey(long key, Object value) {
+        int i = slot(key);
+        while (mKeys[i] != EMPTY && mKeys[i] != key) {
+            i = (i + 1) & mMask;
+        }
+        if (mKeys[i] == EMPTY) {
+            if (2 * (mSize + 1) > mKeys.length) {
+                throw new IllegalStateException("Index full.");
+            }
+            mKeys[i] = key;
+            mSize++;
+        }
+        mValues[i] = value;
+    }
+
+    private int slot(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mMask;
+    }
+
+    private static long key(int vendorId, int productId) {
+        return ((vendorId & 0xffffL) << 16) | (productId & 0xffffL);
+    }
+
+}
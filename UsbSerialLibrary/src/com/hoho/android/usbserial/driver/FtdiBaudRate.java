@@ -0,0 +1,262 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+package com.hoho.android.usbserial.driver;
+
+import com.hoho.android.usbserial.driver.FtdiSerialDriver.DeviceType;
+
+import java.util.Arrays;
+
+/**
+ * Baud rate divisor of an FTDI chip: the {@code wValue} and {@code wIndex} of
+ * its SIO_SET_BAUD_RATE request, and the rate it actually achieves.
+ * <p>
+ * The divisor has 14 integer and 3 fractional bits (AN232B-05).  AM chips
+ * support only some of the fractions.  BM and later chips divide a 48 MHz
+ * clock by 16, and H-series chips can instead divide a 120 MHz clock by 10,
+ * reaching 12 Mbaud (AN_120).  Divisors for standard rates are computed once
+ * per clock; others are solved as in libftdi.
+ * <p>
+ * {@link #solve(int)} reuses the instance, so setting a rate does not
+ * allocate.
+ */
+public final class FtdiBaudRate {
+
+    private static final int AM_CLK = 24000000;
+    private static final int C_CLK = 48000000;
+    private static final int H_CLK = 120000000;
+
+    /** Encoded divisor flag selecting the 120 MHz clock divided by 10. */
+    private static final int H_CLK_DIV_10 = 0x20000;
+
+    private static final int[] FRAC_CODE = {
+            0, 3, 2, 4, 1, 5, 6, 7
+    };
+    private static final int[] AM_ADJUST_UP = {
+            0, 0, 0, 1, 0, 3, 2, 1
+    };
+    private static final int[] AM_ADJUST_DN = {
+            0, 0, 0, 1, 0, 1, 2, 3
+    };
+
+    private static final int CLOCK_AM = 0;
+    private static final int CLOCK_BM = 1;
+    private static final int CLOCK_H = 2;
+
+    /** Sorted, for {@link Arrays#binarySearch(int[], int)}. */
+    private static final int[] STANDARD_RATES = {
+            300, 600, 1200, 2400, 4800, 9600, 14400, 19200, 28800, 38400, 57600,
+            76800, 115200, 230400, 460800, 500000, 921600, 1000000, 1500000,
+            2000000, 3000000, 4000000, 6000000, 8000000, 12000000
+    };
+
+    /** Encoded divisor and actual rate of each standard rate, by clock. */
+    private static final int[][] TABLE_DIVISOR = new int[3][STANDARD_RATES.length];
+    private static final int[][] TABLE_ACTUAL = new int[3][STANDARD_RATES.length];
+
+    static {
+        for (int clock = CLOCK_AM; clock <= CLOCK_H; clock++) {
+            for (int i = 0; i < STANDARD_RATES.length; i++) {
+                final long solution = solveDivisor(clock, STANDARD_RATES[i]);
+                TABLE_DIVISOR[clock][i] = (int) solution;
+                TABLE_ACTUAL[clock][i] = (int) (solution >>> 32);
+            }
+        }
+    }
+
+    private final DeviceType mType;
+    private final int mClock;
+
+    private int mRequestedBaudRate;
+    private int mActualBaudRate;
+    private int mEncodedDivisor;
+
+    public FtdiBaudRate(DeviceType type) {
+        mType = type;
+        switch (type) {
+            case TYPE_AM:
+                mClock = CLOCK_AM;
+                break;
+            case TYPE_2232H:
+            case TYPE_4232H:
+            case TYPE_232H:
+                mClock = CLOCK_H;
+                break;
+            default:
+                mClock = CLOCK_BM;
+                break;
+        }
+    }
+
+    /**
+     * Finds the divisor nearest to {@code baudRate}.
+     *
+     * @return this object, holding the divisor
+     */
+    public FtdiBaudRate solve(int baudRate) {
+        if (baudRate <= 0) {
+            throw new IllegalArgumentException("Bad value for baudRate: " + baudRate);
+        }
+        final int i = Arrays.binarySearch(STANDARD_RATES, baudRate);
+        if (i >= 0) {
+            mEncodedDivisor = TABLE_DIVISOR[mClock][i];
+            mActualBaudRate = TABLE_ACTUAL[mClock][i];
+        } else {
+            final long solution = solveDivisor(mClock, baudRate);
+            mEncodedDivisor = (int) solution;
+            mActualBaudRate = (int) (solution >>> 32);
+        }
+        mRequestedBaudRate = baudRate;
+        return this;
+    }
+
+    public DeviceType getDeviceType() {
+        return mType;
+    }
+
+    public int getRequestedBaudRate() {
+        return mRequestedBaudRate;
+    }
+
+    public int getActualBaudRate() {
+        return mActualBaudRate;
+    }
+
+    /**
+     * Returns how far the actual rate is from the requested one, in percent;
+     * positive if faster.  Most receivers tolerate about 3%.
+     */
+    public double getErrorPercent() {
+        return 100.0 * (mActualBaudRate - mRequestedBaudRate) / mRequestedBaudRate;
+    }
+
+    /** Returns the {@code wValue} of the SIO_SET_BAUD_RATE request. */
+    public int getValue() {
+        return mEncodedDivisor & 0xffff;
+    }
+
+    /**
+     * Returns the {@code wIndex} of the SIO_SET_BAUD_RATE request.
+     *
+     * @param port the port number of a multi-port chip, or {@code 0}
+     */
+    public int getIndex(int port) {
+        switch (mType) {
+            case TYPE_2232C:
+            case TYPE_2232H:
+            case TYPE_4232H:
+            case TYPE_232H:
+            case TYPE_230X:
+                return ((mEncodedDivisor >> 8) & 0xff00) | port;
+            default:
+                return (mEncodedDivisor >> 16) & 0xffff;
+        }
+    }
+
+    /**
+     * Returns the actual rate in the upper 32 bits and the encoded divisor in
+     * the lower 32 bits.
+     */
+    private static long solveDivisor(int clock, int baudRate) {
+        switch (clock) {
+            case CLOCK_AM:
+                return solveAm(baudRate);
+            case CLOCK_H:
+                if ((long) baudRate * 10 > H_CLK / 0x3fff) {
+                    return solveClkBits(baudRate, H_CLK, 10) | H_CLK_DIV_10;
+                }
+                return solveClkBits(baudRate, C_CLK, 16);
+            default:
+                return solveClkBits(baudRate, C_CLK, 16);
+        }
+    }
+
+    private static long solveClkBits(int baudRate, int clk, int clkDiv) {
+        final int bestBaud;
+        final int encodedDivisor;
+        if (baudRate >= clk / clkDiv) {
+            encodedDivisor = 0;
+            bestBaud = clk / clkDiv;
+        } else if (baudRate >= clk / (clkDiv + clkDiv / 2)) {
+            encodedDivisor = 1;
+            bestBaud = clk / (clkDiv + clkDiv / 2);
+        } else if (baudRate >= clk / (2 * clkDiv)) {
+            encodedDivisor = 2;
+            bestBaud = clk / (2 * clkDiv);
+        } else {
+            // Divide by 16 for 3 fractional bits and one bit for rounding.
+            final long scaledClk = (long) clk * 16 / clkDiv;
+            final long divisor = scaledClk / baudRate;
+            long bestDivisor = (divisor & 1) != 0 ? divisor / 2 + 1 : divisor / 2;
+            if (bestDivisor > 0x20000) {
+                bestDivisor = 0x1ffff;
+            }
+            final long baud = scaledClk / bestDivisor;
+            bestBaud = (int) ((baud & 1) != 0 ? baud / 2 + 1 : baud / 2);
+            encodedDivisor = (int) ((bestDivisor >> 3)
+                    | (FRAC_CODE[(int) (bestDivisor & 7)] << 14));
+        }
+        return ((long) bestBaud << 32) | encodedDivisor;
+    }
+
+    private static long solveAm(int baudRate) {
+        int divisor = AM_CLK / baudRate;
+        // Round down to a fraction the AM supports.
+        divisor -= AM_ADJUST_DN[divisor & 7];
+
+        // Try this divisor and the one above it, since division rounds down.
+        int bestDivisor = 0;
+        int bestBaud = 0;
+        int bestBaudDiff = 0;
+        for (int i = 0; i < 2; i++) {
+            int tryDivisor = divisor + i;
+            if (tryDivisor <= 8) {
+                tryDivisor = 8;
+            } else if (divisor < 16) {
+                // AM doesn't support divisors 9 through 15 inclusive
+                tryDivisor = 16;
+            } else {
+                tryDivisor += AM_ADJUST_UP[tryDivisor & 7];
+                if (tryDivisor > 0x1fff8) {
+                    tryDivisor = 0x1fff8;
+                }
+            }
+            final int baudEstimate = (AM_CLK + (tryDivisor / 2)) / tryDivisor;
+            final int baudDiff = Math.abs(baudEstimate - baudRate);
+            if (i == 0 || baudDiff < bestBaudDiff) {
+                bestDivisor = tryDivisor;
+                bestBaud = baudEstimate;
+                bestBaudDiff = baudDiff;
+                if (baudDiff == 0) {
+                    break;
+                }
+            }
+        }
+
+        int encodedDivisor = (bestDivisor >> 3) | (FRAC_CODE[bestDivisor & 7] << 14);
+        if (encodedDivisor == 1) {
+            encodedDivisor = 0; // 3000000 baud
+        } else if (encodedDivisor == 0x4001) {
+            encodedDivisor = 1; // 2000000 baud
+        }
+        return ((long) bestBaud << 32) | encodedDivisor;
+    }
+
+}
@@ -26,13 +26,14 @@ import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbRequest;
+import android.os.Build;
 import android.util.Log;
 
-import com.hoho.android.usbserial.util.HexDump;
-
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -77,6 +78,7 @@ import java.util.Map;
  * <li>{@value DeviceType#TYPE_2232C}</li>
  * <li>{@value DeviceType#TYPE_2232H}</li>
  * <li>{@value DeviceType#TYPE_4232H}</li>
+ * <li>{@value DeviceType#TYPE_232H}</li>
  * <li>{@value DeviceType#TYPE_AM}</li>
  * <li>{@value DeviceType#TYPE_BM}</li>
  * </ul>
@@ -123,6 +125,13 @@ public class FtdiSerialDriver extends CommonUsbSerialDriver {
      */
     private static final int SIO_SET_FLOW_CTRL_REQUEST = 2;
 
+    /**
+     * Flow control modes, in the high byte of the SIO_SET_FLOW_CTRL index.
+     */
+    private static final int SIO_DISABLE_FLOW_CTRL = 0x0;
+    private static final int SIO_RTS_CTS_HS = 0x1 << 8;
+    private static final int SIO_XON_XOFF_HS = 0x4 << 8;
+
     /**
      * Set baud rate.
      */
@@ -134,6 +143,8 @@ public class FtdiSerialDriver extends CommonUsbSerialDriver {
     private static final int SIO_SET_DATA_REQUEST = 4;
 
     private static final int SIO_RESET_SIO = 0;
+    private static final int SIO_RESET_PURGE_RX = 1;
+    private static final int SIO_RESET_PURGE_TX = 2;
 
     public static final int FTDI_DEVICE_OUT_REQTYPE =
             UsbConstants.USB_TYPE_VENDOR | USB_RECIP_DEVICE | USB_ENDPOINT_OUT;
@@ -142,13 +153,52 @@ public class FtdiSerialDriver extends CommonUsbSerialDriver {
             UsbConstants.USB_TYPE_VENDOR | USB_RECIP_DEVICE | USB_ENDPOINT_IN;
 
     private static final int SIO_POLL_MODEM_STATUS_REQUEST = 0x05;
+    private static final int SIO_SET_EVENT_CHAR_REQUEST = 0x06;
+    private static final int SIO_SET_ERROR_CHAR_REQUEST = 0x07;
+    private static final int SIO_SET_LATENCY_TIMER_REQUEST = 0x09;
+    private static final int SIO_GET_LATENCY_TIMER_REQUEST = 0x0A;
     private static final int SIO_READ_PINS_REQUEST = 0x0C;
 
+    /** Transmitter empty, in the line status byte of SIO_POLL_MODEM_STATUS. */
+    private static final int LINE_STATUS_TEMT = 0x40;
+
+    /** Enables the character passed to SIO_SET_EVENT_CHAR or SIO_SET_ERROR_CHAR. */
+    private static final int SIO_CHAR_ENABLE = 0x0100;
+
+    /**
+     * The chip's latency timer after power-up: how long it holds a partly
+     * filled packet before sending it.
+     */
+    public static final int DEFAULT_LATENCY_TIMER_MILLIS = 16;
+
     /**
-     * Length of the modem status header, transmitted with every read.
+     * Number of consecutive full, or short, packets after which auto-latency
+     * raises, or lowers, the latency timer.
+     */
+    private static final int AUTO_LATENCY_HYSTERESIS = 8;
+
+    /**
+     * Length of the modem status header, transmitted at the start of every
+     * packet read.
      */
     private static final int MODEM_STATUS_HEADER_LENGTH = 2;
 
+    /**
+     * Modem status bits in the first byte of the header, and of the
+     * SIO_POLL_MODEM_STATUS reply.
+     */
+    private static final int HEADER_CTS = 0x10;
+    private static final int HEADER_DSR = 0x20;
+    private static final int HEADER_RI = 0x40;
+    private static final int HEADER_DCD = 0x80;
+
+    /**
+     * Modem status signals reported by the header.
+     */
+    private static final int HEADER_MS_MASK = MS_DCD_MASK | MS_CTS_MASK | MS_DSR_MASK | MS_RI_MASK;
+
+    private static final int HEADER_STATUS_BITS = HEADER_CTS | HEADER_DSR | HEADER_RI | HEADER_DCD;
+
     private static final int SIO_SET_DTR_MASK = 0x0100;
     private static final int SIO_SET_RTS_MASK = 0x0200;
 
@@ -159,26 +209,151 @@ public class FtdiSerialDriver extends CommonUsbSerialDriver {
 
     private DeviceType mType;
 
+    /**
+     * Divisor of the current baud rate, or {@code null} until the device type
+     * is known.  Guarded by {@link #mBaudRateLock}.
+     */
+    private FtdiBaudRate mBaudRate;
+    private final Object mBaudRateLock = new Object();
+
+    /**
+     * Latency timer last set, or {@code -1} if unknown.  Guarded by
+     * {@link #mLatencyLock}, which is held while the timer is set.
+     */
+    private int mLatencyTimerMillis = -1;
+    private final Object mLatencyLock = new Object();
+
+    /**
+     * Auto-latency state; {@code mAutoLatencyLowMillis} is {@code 0} when it
+     * is off, and {@code mAutoLatencyTargetMillis} is the timer last chosen
+     * for the traffic.  Guarded by {@link #mAutoLatencyLock}, which is never
+     * held during a transfer, so the read path does not wait for one.
+     */
+    private int mAutoLatencyLowMillis = 0;
+    private int mAutoLatencyHighMillis = 0;
+    private int mAutoLatencyTargetMillis = 0;
+    private int mLatencyStreak = 0;
+    private final Object mAutoLatencyLock = new Object();
+
+    /**
+     * Latency timer chosen by auto-latency but not yet set, or {@code 0}.
+     * Set from the read path and applied by the next read or write.
+     */
+    private volatile int mPendingLatencyMillis = 0;
+
     /**
      * FTDI chip types.
      */
-    private static enum DeviceType {
-        TYPE_BM, TYPE_AM, TYPE_2232C, TYPE_R, TYPE_2232H, TYPE_4232H;
+    public static enum DeviceType {
+        TYPE_BM, TYPE_AM, TYPE_2232C, TYPE_R, TYPE_2232H, TYPE_4232H, TYPE_232H, TYPE_230X;
+
+        /**
+         * Identifies a chip from its device descriptor, as libftdi does.
+         *
+         * @param bcdDevice the device release number
+         * @param iSerialNumber the index of the serial number string
+         * @return the chip type, or {@code null} if unknown
+         */
+        public static DeviceType fromDescriptor(int bcdDevice, int iSerialNumber) {
+            switch (bcdDevice) {
+                case 0x0200:
+                    // BM chips without a serial number report 0x0200.
+                    return iSerialNumber == 0 ? TYPE_BM : TYPE_AM;
+                case 0x0400:
+                    return TYPE_BM;
+                case 0x0500:
+                    return TYPE_2232C;
+                case 0x0600:
+                    return TYPE_R;
+                case 0x0700:
+                    return TYPE_2232H;
+                case 0x0800:
+                    return TYPE_4232H;
+                case 0x0900:
+                    return TYPE_232H;
+                case 0x1000:
+                    return TYPE_230X;
+                default:
+                    return null;
+            }
+        }
     }
 
-    private int mInterface = 0; /* INTERFACE_ANY */
+    /**
+     * Counts the open ports of a device, so that the connection they share
+     * is closed with the last of them.
+     */
+    private static final class PortGroup {
+        // Synchronized by 'this'
+        int mOpenPorts = 0;
+    }
 
-    private int mMaxPacketSize = 64; // TODO(mikey): detect
+    private final PortGroup mPortGroup;
+
+    /** Interface number of this port. */
+    private final int mPortNumber;
+
+    /**
+     * {@code wIndex} of control requests: the port number plus one on
+     * multi-port chips, zero on single-port chips.
+     */
+    private final int mIndex;
+
+    // Synchronized by mPortGroup
+    private boolean mOpen = false;
+
+    /** Max packet size of the bulk IN endpoint: 64, or 512 on high-speed chips. */
+    private int mMaxPacketSize = 64;
 
     private UsbEndpoint mReadEndpoint;
     private UsbEndpoint mWriteEndpoint; 
 
     /**
      * Due to http://b.android.com/28023 , we cannot use UsbRequest async reads
-     * since it gives no indication of number of bytes read. Set this to
-     * {@code true} on platforms where it is fixed.
+     * on all platforms since it gives no indication of number of bytes read.
+     * Enabled with {@link #setAsyncReadsEnabled(boolean)} on platforms where it
+     * is fixed.
+     */
+    private volatile boolean mAsyncReads = false;
+
+    /**
+     * Request reused by every async read.  Guarded by {@link #mReadBufferLock}.
      */
-    private static final boolean ENABLE_ASYNC_READS = false;
+    private UsbRequest mAsyncReadRequest;
+
+    /**
+     * Wraps {@link #mReadBuffer} for async reads.  Guarded by
+     * {@link #mReadBufferLock}.
+     */
+    private ByteBuffer mAsyncReadBuffer;
+
+    /**
+     * Completion state of {@link #mAsyncReadRequest}.  Guarded by
+     * {@link #mAsyncReadDoneLock}.
+     */
+    private boolean mAsyncReadDone = false;
+    private IOException mAsyncReadError;
+    private final Object mAsyncReadDoneLock = new Object();
+
+    private final UsbRequestDispatcher.Callback mAsyncReadCallback =
+            new UsbRequestDispatcher.Callback() {
+        @Override
+        public void onRequestComplete(UsbRequest request) {
+            synchronized (mAsyncReadDoneLock) {
+                mAsyncReadDone = true;
+                mAsyncReadDoneLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void onRequestFailed(UsbRequest request, IOException e) {
+            synchronized (mAsyncReadDoneLock) {
+                mAsyncReadDone = true;
+                mAsyncReadError = e;
+                mAsyncReadDoneLock.notifyAll();
+            }
+        }
+    };
 
     /**
      * Constructor.
@@ -189,45 +364,156 @@ public class FtdiSerialDriver extends CommonUsbSerialDriver {
      *             with this driver
      */
     public FtdiSerialDriver(UsbDevice usbDevice, UsbDeviceConnection usbConnection) {
+        this(usbDevice, usbConnection, 0, new PortGroup());
+    }
+
+    private FtdiSerialDriver(UsbDevice usbDevice, UsbDeviceConnection usbConnection,
+            int portNumber, PortGroup portGroup) {
         super(usbDevice, usbConnection);
+        if (portNumber < 0 || portNumber >= usbDevice.getInterfaceCount()) {
+            throw new IllegalArgumentException("Bad port number: " + portNumber);
+        }
         mType = null;
+        mPortNumber = portNumber;
+        mIndex = usbDevice.getInterfaceCount() > 1 ? portNumber + 1 : 0;
+        mPortGroup = portGroup;
+    }
+
+    /**
+     * Creates a driver for each port of a device, such as the four of an
+     * FT4232H.  The drivers share {@code connection} and one
+     * {@link UsbRequestDispatcher}, but are otherwise independent: each
+     * claims only its own interface and can be used concurrently with the
+     * others.  The connection is closed when the last open port is closed.
+     *
+     * @param usbDevice the {@link UsbDevice} to use
+     * @param usbConnection the {@link UsbDeviceConnection} to use
+     * @return one driver per interface, in interface order
+     */
+    public static List<FtdiSerialDriver> createPorts(UsbDevice usbDevice,
+            UsbDeviceConnection usbConnection) {
+        final PortGroup portGroup = new PortGroup();
+        final UsbRequestDispatcher dispatcher = new UsbRequestDispatcher(usbConnection);
+        final List<FtdiSerialDriver> ports = new ArrayList<FtdiSerialDriver>();
+        for (int i = 0; i < usbDevice.getInterfaceCount(); i++) {
+            final FtdiSerialDriver port =
+                    new FtdiSerialDriver(usbDevice, usbConnection, i, portGroup);
+            port.setRequestDispatcher(dispatcher);
+            ports.add(port);
+        }
+        return ports;
+    }
+
+    /** Returns the interface number of this port. */
+    public int getPortNumber() {
+        return mPortNumber;
     }
 
     public void reset() throws IOException {
         int result = mConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE, SIO_RESET_REQUEST,
-                SIO_RESET_SIO, 0 /* index */, null, 0, USB_WRITE_TIMEOUT_MILLIS);
+                SIO_RESET_SIO, mIndex, null, 0, USB_WRITE_TIMEOUT_MILLIS);
         if (result != 0) {
             throw new IOException("Reset failed: result=" + result);
         }
+        invalidateLineState();
+
+        if (mType == null) {
+            mType = detectDeviceType();
+            synchronized (mBaudRateLock) {
+                mBaudRate = new FtdiBaudRate(mType);
+            }
+            Log.d(TAG, "Device type " + mType);
+        }
+    }
+
+    /**
+     * Identifies the chip from its device descriptor, assuming an FT232R if
+     * the descriptor is unavailable.
+     */
+    private DeviceType detectDeviceType() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR2) {
+            final byte[] rawDescriptors = mConnection.getRawDescriptors();
+            if (rawDescriptors != null && rawDescriptors.length > 16) {
+                final int bcdDevice = (rawDescriptors[12] & 0xff)
+                        | ((rawDescriptors[13] & 0xff) << 8);
+                final DeviceType type =
+                        DeviceType.fromDescriptor(bcdDevice, rawDescriptors[16] & 0xff);
+                if (type != null) {
+                    return type;
+                }
+                Log.w(TAG, "Unknown bcdDevice " + Integer.toHexString(bcdDevice));
+            }
+        }
+        return DeviceType.TYPE_R;
+    }
+
+    /**
+     * Returns the chip type, detected when the device is opened, or
+     * {@code null} before then.
+     */
+    public DeviceType getDeviceType() {
+        return mType;
+    }
+
+    /**
+     * Returns the divisor this chip would use for {@code baudRate}, including
+     * the rate it actually achieves, without setting it.  Valid after
+     * {@link #open()}.
+     */
+    public FtdiBaudRate solveBaudRate(int baudRate) {
+        if (mType == null) {
+            throw new IllegalStateException("Device type not yet known.");
+        }
+        return new FtdiBaudRate(mType).solve(baudRate);
+    }
 
-        // TODO(mikey): autodetect.
-        mType = DeviceType.TYPE_R;
+    /**
+     * Returns the baud rate the chip actually runs at, which may differ from
+     * {@link #getBaudRate()} by the error of its divisor, or {@code 0} if
+     * unknown.
+     */
+    public int getActualBaudRate() {
+        synchronized (mBaudRateLock) {
+            return mBaudRate != null && getBaudRate() != 0 ? mBaudRate.getActualBaudRate() : 0;
+        }
     }
 
     @Override
     public void open() throws IOException {
+        synchronized (mPortGroup) {
+            if (mOpen) {
+                throw new IOException("Already open.");
+            }
+            mOpen = true;
+            mPortGroup.mOpenPorts++;
+        }
         boolean opened = false;
         try {
-            for (int i = 0; i < mDevice.getInterfaceCount(); i++) {
-                if (mConnection.claimInterface(mDevice.getInterface(i), true)) {
-                    Log.d(TAG, "claimInterface " + i + " SUCCESS");
-                } else {
-                    throw new IOException("Error claiming interface " + i);
-                }
+            UsbInterface dataIface = mDevice.getInterface(mPortNumber);
+            if (mConnection.claimInterface(dataIface, true)) {
+                Log.d(TAG, "claimInterface " + mPortNumber + " SUCCESS");
+            } else {
+                throw new IOException("Error claiming interface " + mPortNumber);
             }
 
-            UsbInterface dataIface = mDevice.getInterface(mDevice.getInterfaceCount() - 1);
             for (int i = 0; i < dataIface.getEndpointCount(); i++) {
                 UsbEndpoint ep = dataIface.getEndpoint(i);
                 if (ep.getType() == UsbConstants.USB_ENDPOINT_XFER_BULK) {
                     if (ep.getDirection() == UsbConstants.USB_DIR_IN) {
                         mReadEndpoint = ep;
+                        mMaxPacketSize = ep.getMaxPacketSize();
                     } else {
                         mWriteEndpoint = ep;
                     }
                 }
             }
 
+            synchronized (mLatencyLock) {
+                mLatencyTimerMillis = -1;
+            }
+            synchronized (mAutoLatencyLock) {
+                mAutoLatencyTargetMillis = 0;
+            }
             reset();
             opened = true;
         } finally {
@@ -239,115 +525,292 @@ public class FtdiSerialDriver extends CommonUsbSerialDriver {
 
     @Override
     public void close() throws IOException {
-        setRTS(false);
-        setDTR(false);
-        reset();
-        mConnection.close();
+        synchronized (mPortGroup) {
+            if (!mOpen) {
+                return;
+            }
+        }
+        try {
+            setRTS(false);
+            setDTR(false);
+            reset();
+        } finally {
+            synchronized (mReadBufferLock) {
+                if (mAsyncReadRequest != null) {
+                    mAsyncReadRequest.close();
+                    mAsyncReadRequest = null;
+                }
+            }
+            mConnection.releaseInterface(mDevice.getInterface(mPortNumber));
+            synchronized (mPortGroup) {
+                mOpen = false;
+                if (--mPortGroup.mOpenPorts == 0) {
+                    mConnection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Selects whether {@link #read(byte[], int)} uses a {@link UsbRequest}
+     * instead of a bulk transfer.  Requires a platform where
+     * http://b.android.com/28023 is fixed; elsewhere reads keep using bulk
+     * transfers.  The request is queued through
+     * {@link #getRequestDispatcher()}, so it may share the connection with
+     * other requests.
+     *
+     * @param enabled {@code true} to read asynchronously
+     * @see #isRequestLengthReported()
+     */
+    public void setAsyncReadsEnabled(boolean enabled) {
+        if (enabled && !isRequestLengthReported()) {
+            Log.w(TAG, "Async reads need a newer platform, using bulk transfers.");
+            enabled = false;
+        }
+        mAsyncReads = enabled;
+    }
+
+    public boolean isAsyncReadsEnabled() {
+        return mAsyncReads;
     }
 
     @Override
-    public int read(byte[] dest, int timeoutMillis) throws IOException {
+    public UsbEndpoint getReadEndpoint() {
+        return mReadEndpoint;
+    }
 
-        if (ENABLE_ASYNC_READS) {
-            final int readAmt;
-            synchronized (mReadBufferLock) {
-                // mReadBuffer is only used for maximum read size.
-                readAmt = Math.min(dest.length, mReadBuffer.length);
-            }
+    @Override
+    public UsbEndpoint getWriteEndpoint() {
+        return mWriteEndpoint;
+    }
 
-            final UsbRequest request = new UsbRequest();
-            request.initialize(mConnection, mReadEndpoint);
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Strips the modem status header from every packet, recording the
+     * modem status of each.
+     */
+    @Override
+    public int filterReadData(byte[] buffer, int length) {
+        return filterReadData(buffer, 0, length);
+    }
 
-            final ByteBuffer buf = ByteBuffer.wrap(dest);
-            if (!request.queue(buf, readAmt)) {
-                throw new IOException("Error queueing request.");
-            }
+    private int filterReadData(byte[] buffer, int offset, int length) {
+        if (length >= MODEM_STATUS_HEADER_LENGTH) {
+            final int lastPacketStart = ((length - 1) / mMaxPacketSize) * mMaxPacketSize;
+            adaptLatencyTimer(length - lastPacketStart == mMaxPacketSize);
+        }
+        return stripStatusHeaders(buffer, offset, length, mMaxPacketSize);
+    }
 
-            final UsbRequest response = mConnection.requestWait();
-            if (response == null) {
-                throw new IOException("Null response");
+    /**
+     * Removes the {@value #MODEM_STATUS_HEADER_LENGTH}-byte header which the
+     * device prepends to every packet, in place and in a single pass,
+     * recording the modem status of each packet as it goes.
+     *
+     * @param buffer data as received
+     * @param offset index of the first header in {@code buffer}
+     * @param length number of bytes received
+     * @param maxPacketSize the read endpoint's max packet size
+     * @return number of payload bytes now at {@code offset}
+     */
+    int stripStatusHeaders(byte[] buffer, int offset, int length, int maxPacketSize) {
+        int payloadLength = 0;
+        int lastHeader = -1;
+        for (int packetStart = 0; packetStart < length; packetStart += maxPacketSize) {
+            final int packetPayloadLength = Math.min(length - packetStart, maxPacketSize)
+                    - MODEM_STATUS_HEADER_LENGTH;
+            if (packetPayloadLength < 0) {
+                // A truncated header.
+                continue;
             }
+            // Most packets repeat the status of the one before.
+            final int header = buffer[offset + packetStart] & HEADER_STATUS_BITS;
+            if (header != lastHeader) {
+                updateModemStatus(toModemStatus(header), HEADER_MS_MASK);
+                lastHeader = header;
+            }
+            if (packetPayloadLength > 0) {
+                System.arraycopy(buffer, offset + packetStart + MODEM_STATUS_HEADER_LENGTH,
+                        buffer, offset + payloadLength, packetPayloadLength);
+                payloadLength += packetPayloadLength;
+            }
+        }
+        return payloadLength;
+    }
 
-            final int payloadBytesRead = buf.position() - MODEM_STATUS_HEADER_LENGTH;
-            if (payloadBytesRead > 0) {
-                Log.d(TAG, HexDump.dumpHexString(dest, 0, Math.min(32, dest.length)));
-                return payloadBytesRead;
-            } else {
-                return 0;
+    /**
+     * Converts the modem status byte of a packet header or of the
+     * SIO_POLL_MODEM_STATUS reply to {@code MS_*_MASK} bits.  DTR and RTS
+     * are not reported there.
+     */
+    private static int toModemStatus(int header) {
+        return ((header & HEADER_DCD) == 0 ? 0 : MS_DCD_MASK)
+                | ((header & HEADER_CTS) == 0 ? 0 : MS_CTS_MASK)
+                | ((header & HEADER_DSR) == 0 ? 0 : MS_DSR_MASK)
+                | ((header & HEADER_RI) == 0 ? 0 : MS_RI_MASK);
+    }
+
+    @Override
+    public int read(byte[] dest, int offset, int length, int timeoutMillis)
+            throws IOException {
+        checkOffsetAndLength(dest, offset, length);
+        applyAutoLatency();
+        synchronized (mReadBufferLock) {
+            final int maxReadAmt = Math.min(length, mReadBuffer.length);
+            if (!mAsyncReads && maxReadAmt >= mMaxPacketSize
+                    && (offset == 0 || BULK_TRANSFER_HAS_OFFSET)) {
+                // Whole packets fit in dest: read and strip headers in place.
+                final int readAmt = (maxReadAmt / mMaxPacketSize) * mMaxPacketSize;
+                final int totalBytesRead;
+                if (offset == 0) {
+                    totalBytesRead = mConnection.bulkTransfer(mReadEndpoint, dest,
+                            readAmt, timeoutMillis);
+                } else {
+                    totalBytesRead = mConnection.bulkTransfer(mReadEndpoint, dest, offset,
+                            readAmt, timeoutMillis);
+                }
+                if (totalBytesRead < MODEM_STATUS_HEADER_LENGTH) {
+                    throw new IOException("Expected at least " + MODEM_STATUS_HEADER_LENGTH + " bytes");
+                }
+                return filterReadData(dest, offset, totalBytesRead);
             }
-        } else {
-            final int totalBytesRead;
 
-            synchronized (mReadBufferLock) {
-                final int readAmt = Math.min(dest.length, mReadBuffer.length);
-                totalBytesRead = mConnection.bulkTransfer(mReadEndpoint, mReadBuffer,
-                        readAmt, timeoutMillis);
+            final int readAmt = getReadAmount(length, mReadBuffer.length);
+            if (mAsyncReads) {
+                final int totalBytesRead = readAsync(readAmt, timeoutMillis);
+                if (totalBytesRead < MODEM_STATUS_HEADER_LENGTH) {
+                    // Timed out.
+                    return 0;
+                }
+                return copyPayload(dest, offset, length, totalBytesRead);
             }
 
+            final int totalBytesRead = mConnection.bulkTransfer(mReadEndpoint, mReadBuffer,
+                    readAmt, timeoutMillis);
             if (totalBytesRead < MODEM_STATUS_HEADER_LENGTH) {
                 throw new IOException("Expected at least " + MODEM_STATUS_HEADER_LENGTH + " bytes");
             }
-
-            final int payloadBytesRead = totalBytesRead - MODEM_STATUS_HEADER_LENGTH;
-            if (payloadBytesRead > 0) {
-                System.arraycopy(mReadBuffer, MODEM_STATUS_HEADER_LENGTH, dest, 0, payloadBytesRead);
-            }
-            return payloadBytesRead;
+            return copyPayload(dest, offset, length, totalBytesRead);
         }
     }
 
-    @Override
-    public int write(byte[] src, int timeoutMillis) throws IOException {
-        int offset = 0;
-
-        while (offset < src.length) {
-            final int writeLength;
-            final int amtWritten;
-
-            synchronized (mWriteBufferLock) {
-                final byte[] writeBuffer;
+    /**
+     * Reads into {@link #mReadBuffer} with {@link #mAsyncReadRequest},
+     * cancelling the request if it is not complete within
+     * {@code timeoutMillis}.  Caller must hold {@link #mReadBufferLock}.
+     *
+     * @return the number of bytes received, including headers
+     */
+    private int readAsync(int readAmt, int timeoutMillis) throws IOException {
+        if (mAsyncReadRequest == null) {
+            final UsbRequest request = new UsbRequest();
+            if (!request.initialize(mConnection, mReadEndpoint)) {
+                throw new IOException("Error initializing request.");
+            }
+            mAsyncReadRequest = request;
+        }
+        if (mAsyncReadBuffer == null || mAsyncReadBuffer.array() != mReadBuffer) {
+            mAsyncReadBuffer = ByteBuffer.wrap(mReadBuffer);
+        }
+        mAsyncReadBuffer.clear();
 
-                writeLength = Math.min(src.length - offset, mWriteBuffer.length);
-                if (offset == 0) {
-                    writeBuffer = src;
-                } else {
-                    // bulkTransfer does not support offsets, make a copy.
-                    System.arraycopy(src, offset, mWriteBuffer, 0, writeLength);
-                    writeBuffer = mWriteBuffer;
+        synchronized (mAsyncReadDoneLock) {
+            mAsyncReadDone = false;
+            mAsyncReadError = null;
+        }
+        getRequestDispatcher().queue(mAsyncReadRequest, mAsyncReadBuffer, readAmt,
+                mAsyncReadCallback);
+
+        boolean interrupted = false;
+        synchronized (mAsyncReadDoneLock) {
+            final long deadline = System.currentTimeMillis() + timeoutMillis;
+            boolean cancelled = false;
+            while (!mAsyncReadDone) {
+                final long remainingMillis = deadline - System.currentTimeMillis();
+                if (!cancelled && (interrupted || (timeoutMillis > 0 && remainingMillis <= 0))) {
+                    // The request completes once cancelled; wait for that so
+                    // the buffer is free for the next read.
+                    mAsyncReadRequest.cancel();
+                    cancelled = true;
+                }
+                try {
+                    mAsyncReadDoneLock.wait(cancelled || timeoutMillis <= 0 ? 0 : remainingMillis);
+                } catch (InterruptedException e) {
+                    interrupted = true;
                 }
-
-                amtWritten = mConnection.bulkTransfer(mWriteEndpoint, writeBuffer, writeLength,
-                        timeoutMillis);
             }
-
-            if (amtWritten <= 0) {
-                throw new IOException("Error writing " + writeLength
-                        + " bytes at offset " + offset + " length=" + src.length);
+            if (mAsyncReadError != null) {
+                throw mAsyncReadError;
             }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return mAsyncReadBuffer.position();
+    }
 
-            Log.d(TAG, "Wrote amtWritten=" + amtWritten + " attempted=" + writeLength);
-            offset += amtWritten;
+    /**
+     * Strips headers from {@code totalBytesRead} bytes in {@link #mReadBuffer}
+     * and copies up to {@code length} bytes of payload to {@code dest}.
+     * Caller must hold {@link #mReadBufferLock}.
+     */
+    private int copyPayload(byte[] dest, int offset, int length, int totalBytesRead) {
+        final int payloadBytesRead = filterReadData(mReadBuffer, 0, totalBytesRead);
+        if (payloadBytesRead > length) {
+            Log.w(TAG, "Dropped " + (payloadBytesRead - length)
+                    + " bytes, read buffer smaller than max packet size");
+            System.arraycopy(mReadBuffer, 0, dest, offset, length);
+            return length;
         }
-        return offset;
+        System.arraycopy(mReadBuffer, 0, dest, offset, payloadBytesRead);
+        return payloadBytesRead;
+    }
+
+    /**
+     * Returns the number of bytes to request in a single transfer, as whole
+     * packets whose payload fits in {@code destLength} bytes where possible.
+     */
+    private int getReadAmount(int destLength, int bufferLength) {
+        final int maxPackets = bufferLength / mMaxPacketSize;
+        final int packets = destLength / (mMaxPacketSize - MODEM_STATUS_HEADER_LENGTH);
+        return Math.max(1, Math.min(packets, maxPackets)) * mMaxPacketSize;
+    }
+
+    @Override
+    public int write(byte[] src, int offset, int length, int timeoutMillis) throws IOException {
+        applyAutoLatency();
+        return bulkWrite(mWriteEndpoint, src, offset, length, timeoutMillis);
     }
 
     private int setBaudRate(int baudRate) throws IOException {
-        long[] vals = convertBaudrate(baudRate);
-        long actualBaudrate = vals[0];
-        long index = vals[1];
-        long value = vals[2];
+        final int value;
+        final int index;
+        final int actualBaudRate;
+        synchronized (mBaudRateLock) {
+            if (mBaudRate == null) {
+                throw new IOException("Device not open.");
+            }
+            mBaudRate.solve(baudRate);
+            value = mBaudRate.getValue();
+            index = mBaudRate.getIndex(mIndex);
+            actualBaudRate = mBaudRate.getActualBaudRate();
+        }
         int result = mConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE,
-                SIO_SET_BAUD_RATE_REQUEST, (int) value, (int) index,
+                SIO_SET_BAUD_RATE_REQUEST, value, index,
                 null, 0, USB_WRITE_TIMEOUT_MILLIS);
         if (result != 0) {
             throw new IOException("Setting baudrate failed: result=" + result);
         }
-        return (int) actualBaudrate;
+        return actualBaudRate;
     }
 
     @Override
     public void setParameters(int baudRate, int dataBits, int stopBits, int parity)
             throws IOException {
+        if (isLineCodingCurrent(baudRate, dataBits, stopBits, parity, 2)) {
+            return;
+        }
         setBaudRate(baudRate);
 
         int config = dataBits;
@@ -387,160 +850,320 @@ public class FtdiSerialDriver extends CommonUsbSerialDriver {
         }
 
         int result = mConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE,
-                SIO_SET_DATA_REQUEST, config, 0 /* index */,
+                SIO_SET_DATA_REQUEST, config, mIndex,
                 null, 0, USB_WRITE_TIMEOUT_MILLIS);
         if (result != 0) {
             throw new IOException("Setting parameters failed: result=" + result);
         }
+        setLineCodingCurrent(baudRate, dataBits, stopBits, parity);
     }
 
-    private long[] convertBaudrate(int baudrate) {
-        // TODO(mikey): Braindead transcription of libfti method.  Clean up,
-        // using more idiomatic Java where possible.
-        int divisor = 24000000 / baudrate;
-        int bestDivisor = 0;
-        int bestBaud = 0;
-        int bestBaudDiff = 0;
-        int fracCode[] = {
-                0, 3, 2, 4, 1, 5, 6, 7
-        };
-
-        for (int i = 0; i < 2; i++) {
-            int tryDivisor = divisor + i;
-            int baudEstimate;
-            int baudDiff;
-
-            if (tryDivisor <= 8) {
-                // Round up to minimum supported divisor
-                tryDivisor = 8;
-            } else if (mType != DeviceType.TYPE_AM && tryDivisor < 12) {
-                // BM doesn't support divisors 9 through 11 inclusive
-                tryDivisor = 12;
-            } else if (divisor < 16) {
-                // AM doesn't support divisors 9 through 15 inclusive
-                tryDivisor = 16;
-            } else {
-                if (mType == DeviceType.TYPE_AM) {
-                    // TODO
-                } else {
-                    if (tryDivisor > 0x1FFFF) {
-                        // Round down to maximum supported divisor value (for
-                        // BM)
-                        tryDivisor = 0x1FFFF;
-                    }
-                }
-            }
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Polls DCD, CTS, DSR and RI, with the same encoding as the packet
+     * headers, and tells the {@link ModemStatusListener} of changes.  DTR
+     * and RTS are as last set, and unknown before.
+     */
+    @Override
+    public int getModemStatus() throws IOException {
+        final byte[] buffer = new byte[2];
+        final int result = mConnection.controlTransfer(FTDI_DEVICE_IN_REQTYPE,
+                SIO_POLL_MODEM_STATUS_REQUEST, 0, mIndex, buffer, 2, USB_WRITE_TIMEOUT_MILLIS);
+        if (result != 2) {
+            throw new IOException("Polling modem status failed: result=" + result);
+        }
+        updateModemStatus(toModemStatus(buffer[0]), HEADER_MS_MASK);
+        return lastModemStatus;
+    }
 
-            // Get estimated baud rate (to nearest integer)
-            baudEstimate = (24000000 + (tryDivisor / 2)) / tryDivisor;
+    @Override
+    public boolean purgeHwBuffers(boolean purgeReadBuffers, boolean purgeWriteBuffers)
+            throws IOException {
+        if (purgeReadBuffers) {
+            purge(SIO_RESET_PURGE_RX);
+        }
+        if (purgeWriteBuffers) {
+            purge(SIO_RESET_PURGE_TX);
+        }
+        return true;
+    }
 
-            // Get absolute difference from requested baud rate
-            if (baudEstimate < baudrate) {
-                baudDiff = baudrate - baudEstimate;
-            } else {
-                baudDiff = baudEstimate - baudrate;
-            }
+    private void purge(int purgeType) throws IOException {
+        final int result = mConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE,
+                SIO_RESET_REQUEST, purgeType, mIndex, null, 0, USB_WRITE_TIMEOUT_MILLIS);
+        if (result != 0) {
+            throw new IOException("Purge failed: result=" + result);
+        }
+    }
 
-            if (i == 0 || baudDiff < bestBaudDiff) {
-                // Closest to requested baud rate so far
-                bestDivisor = tryDivisor;
-                bestBaud = baudEstimate;
-                bestBaudDiff = baudDiff;
-                if (baudDiff == 0) {
-                    // Spot on! No point trying
-                    break;
-                }
+    @Override
+    protected boolean isWriteBufferEmpty() throws IOException {
+        final byte[] buffer = new byte[2];
+        final int result = mConnection.controlTransfer(FTDI_DEVICE_IN_REQTYPE,
+                SIO_POLL_MODEM_STATUS_REQUEST, 0, mIndex, buffer, 2, USB_WRITE_TIMEOUT_MILLIS);
+        if (result != 2) {
+            throw new IOException("Polling modem status failed: result=" + result);
+        }
+        return (buffer[1] & LINE_STATUS_TEMT) != 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The chip handles both directions of RTS/CTS or XON/XOFF together, and
+     * cannot use both methods at once.
+     */
+    @Override
+    public void setFlowControl(int flowControl) throws IOException {
+        checkFlowControl(flowControl);
+        final boolean rtsCts =
+                (flowControl & (FLOWCONTROL_RTSCTS_IN | FLOWCONTROL_RTSCTS_OUT)) != 0;
+        final boolean xonXoff =
+                (flowControl & (FLOWCONTROL_XONXOFF_IN | FLOWCONTROL_XONXOFF_OUT)) != 0;
+        final int value;
+        final int mode;
+        if (rtsCts && xonXoff) {
+            throw new UnsupportedOperationException("RTS/CTS and XON/XOFF together");
+        } else if (rtsCts) {
+            value = 0;
+            mode = SIO_RTS_CTS_HS;
+        } else if (xonXoff) {
+            value = (XOFF_CHAR << 8) | XON_CHAR;
+            mode = SIO_XON_XOFF_HS;
+        } else {
+            value = 0;
+            mode = SIO_DISABLE_FLOW_CTRL;
+        }
+        final int result = mConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE,
+                SIO_SET_FLOW_CTRL_REQUEST, value, mode | mIndex, null, 0,
+                USB_WRITE_TIMEOUT_MILLIS);
+        if (result != 0) {
+            throw new IOException("Setting flow control failed: result=" + result);
+        }
+        setFlowControlCurrent(flowControl);
+    }
+
+    /**
+     * Sets how long the chip holds received data which does not fill a
+     * packet before sending it anyway.  Lower values cut the delay of short
+     * replies, at the cost of more, smaller USB packets.
+     *
+     * @param millis the latency timer, from 1 to 255 ms
+     * @throws IOException if the timer could not be set
+     */
+    public void setLatencyTimer(int millis) throws IOException {
+        if (millis < 1 || millis > 255) {
+            throw new IllegalArgumentException("Bad latency timer: " + millis);
+        }
+        synchronized (mLatencyLock) {
+            final int result = mConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE,
+                    SIO_SET_LATENCY_TIMER_REQUEST, millis, mIndex, null, 0,
+                    USB_WRITE_TIMEOUT_MILLIS);
+            if (result != 0) {
+                mLatencyTimerMillis = -1;
+                throw new IOException("Setting latency timer failed: result=" + result);
             }
+            mLatencyTimerMillis = millis;
         }
+    }
 
-        // Encode the best divisor value
-        long encodedDivisor = (bestDivisor >> 3) | (fracCode[bestDivisor & 7] << 14);
-        // Deal with special cases for encoded value
-        if (encodedDivisor == 1) {
-            encodedDivisor = 0; // 3000000 baud
-        } else if (encodedDivisor == 0x4001) {
-            encodedDivisor = 1; // 2000000 baud (BM only)
+    /**
+     * Reads the latency timer from the chip.
+     *
+     * @return the latency timer in ms
+     * @throws IOException if the timer could not be read
+     */
+    public int getLatencyTimer() throws IOException {
+        final byte[] buffer = new byte[1];
+        final int result = mConnection.controlTransfer(FTDI_DEVICE_IN_REQTYPE,
+                SIO_GET_LATENCY_TIMER_REQUEST, 0, mIndex, buffer, 1, USB_WRITE_TIMEOUT_MILLIS);
+        if (result != 1) {
+            throw new IOException("Getting latency timer failed: result=" + result);
         }
+        return buffer[0] & 0xff;
+    }
 
-        // Split into "value" and "index" values
-        long value = encodedDivisor & 0xFFFF;
-        long index;
-        if (mType == DeviceType.TYPE_2232C || mType == DeviceType.TYPE_2232H
-                || mType == DeviceType.TYPE_4232H) {
-            index = (encodedDivisor >> 8) & 0xffff;
-            index &= 0xFF00;
-            index |= 0 /* TODO mIndex */;
-        } else {
-            index = (encodedDivisor >> 16) & 0xffff;
+    /**
+     * Sets a character which, when received, makes the chip send the packet
+     * it holds at once instead of waiting for the latency timer.
+     *
+     * @param eventChar the character
+     * @param enabled {@code false} to disable the event character
+     * @throws IOException if the character could not be set
+     */
+    public void setEventChar(int eventChar, boolean enabled) throws IOException {
+        setSpecialChar(SIO_SET_EVENT_CHAR_REQUEST, eventChar, enabled);
+    }
+
+    /**
+     * Sets a character which the chip inserts into the data in place of a
+     * character received with a parity error.
+     *
+     * @param errorChar the character
+     * @param enabled {@code false} to disable the error character
+     * @throws IOException if the character could not be set
+     */
+    public void setErrorChar(int errorChar, boolean enabled) throws IOException {
+        setSpecialChar(SIO_SET_ERROR_CHAR_REQUEST, errorChar, enabled);
+    }
+
+    private void setSpecialChar(int request, int c, boolean enabled) throws IOException {
+        if (c < 0 || c > 0xff) {
+            throw new IllegalArgumentException("Bad character: " + c);
         }
+        final int result = mConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE, request,
+                c | (enabled ? SIO_CHAR_ENABLE : 0), mIndex, null, 0, USB_WRITE_TIMEOUT_MILLIS);
+        if (result != 0) {
+            throw new IOException("Setting character failed: result=" + result);
+        }
+    }
 
-        // Return the nearest baud rate
-        return new long[] {
-                bestBaud, index, value
-        };
+    /**
+     * Adapts the latency timer to the traffic: {@code lowMillis} while the
+     * chip sends short packets, as for interactive replies, and
+     * {@code highMillis} while it sends full packets, as when streaming,
+     * to reduce the USB packet rate.  The timer is set to
+     * {@code lowMillis} at once, and changed after
+     * {@value #AUTO_LATENCY_HYSTERESIS} consecutive reads of the other kind.
+     * The change is made by the next {@link #read(byte[], int, int, int)} or
+     * {@link #write(byte[], int, int, int)}, never while data is received;
+     * with reads queued by a {@code SerialInputOutputManager} or a
+     * {@code SerialIoScheduler}, it is made after the read is delivered,
+     * see {@link #applyDeferredSettings()}.
+     *
+     * @param lowMillis the interactive latency timer, or {@code 0} to turn
+     *            auto-latency off and leave the timer as it is
+     * @param highMillis the streaming latency timer
+     * @throws IOException if the timer could not be set
+     */
+    public void setAutoLatency(int lowMillis, int highMillis) throws IOException {
+        if (lowMillis == 0) {
+            synchronized (mAutoLatencyLock) {
+                mAutoLatencyLowMillis = 0;
+                mPendingLatencyMillis = 0;
+            }
+            return;
+        }
+        if (lowMillis < 1 || highMillis > 255 || lowMillis > highMillis) {
+            throw new IllegalArgumentException(
+                    "Bad latency timers: " + lowMillis + ", " + highMillis);
+        }
+        synchronized (mAutoLatencyLock) {
+            mAutoLatencyLowMillis = lowMillis;
+            mAutoLatencyHighMillis = highMillis;
+            mAutoLatencyTargetMillis = lowMillis;
+            mLatencyStreak = 0;
+            mPendingLatencyMillis = 0;
+        }
+        setLatencyTimer(lowMillis);
     }
 
+    public boolean isAutoLatencyEnabled() {
+        synchronized (mAutoLatencyLock) {
+            return mAutoLatencyLowMillis != 0;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Sets the latency timer chosen by auto-latency, if it changed.
+     */
     @Override
-    /*
-     * SIO_READ_PINS_REQUEST:
-     * (FT232RL pin) XXX - DY - MASK
-     * (1) TXD - D0 - 0x01
-     * (5) RXD - D1 - 0x02
-     * (3) RTS - D2 - 0x04
-     * (11) CTS - D3 - 0x08
-     * (2) DTR - D4 - 0x10
-     * (9) DSR - D5 - 0x20
-     * (10) DCD - D6 - 0x40
-     * (7) RI - D7 - 0x80
-     * 
-     * TODO SIO_POLL_MODEM_STATUS_REQUEST:
-     * Bit 4:      CTS state
-     * Bit 5:      DSR state
-     * Bit 6:      RI state
-     * Bit 7:      DCD state
-     * 
+    public void applyDeferredSettings() {
+        applyAutoLatency();
+    }
+
+    /**
+     * Counts a read whose last packet was full or short, choosing a new
+     * latency timer if auto-latency is on and the traffic has changed.  The
+     * timer is left for {@link #applyAutoLatency()} to set.
      */
-    public int getModemStatus() throws IOException {
-        byte[] buffer = new byte[2];
-        int res;
-        int result = mConnection.controlTransfer(FTDI_DEVICE_IN_REQTYPE, SIO_READ_PINS_REQUEST,
-                0, 0 /* index */, buffer, 2, USB_WRITE_TIMEOUT_MILLIS);
-/*
-        Log.d(TAG, "GET_MDMSTS (0x08)"
-                + (((buffer[0] & 0x40) == 0) ? " dcd" : " DCD")
-                + (((buffer[0] & 0x08) == 0) ? " cts" : " CTS")
-                + (((buffer[0] & 0x04) == 0) ? " rts" : " RTS")
-                + (((buffer[0] & 0x20) == 0) ? " dsr" : " DSR")
-                + (((buffer[0] & 0x10) == 0) ? " dtr" : " DTR")
-                + (((buffer[0] & 0x80) == 0) ? " ri" : " RI")
-                + " b[0]=" + (buffer[0] & 0x00FF) + " b[1]=" + (buffer[1] & 0x00FF)
-                );
-*/
-        res = MS_DCD_MASK | MS_CTS_MASK | MS_RTS_MASK | MS_DSR_MASK
-                | MS_DTR_MASK | MS_RI_MASK;
-        res <<= 8;
-        res = res | (((buffer[0] & 0x40) == 0) ? MS_DCD_MASK : 0 )
-                | (((buffer[0] & 0x08) == 0) ? MS_CTS_MASK : 0 )
-                | (((buffer[0] & 0x04) == 0) ? MS_RTS_MASK : 0 )
-                | (((buffer[0] & 0x20) == 0) ? MS_DSR_MASK : 0 )
-                | (((buffer[0] & 0x10) == 0) ? MS_DTR_MASK : 0 )
-                | (((buffer[0] & 0x80) == 0) ? MS_RI_MASK : 0 );
-        lastModemStatus = res;
-        return res;
+    private void adaptLatencyTimer(boolean fullPacket) {
+        synchronized (mAutoLatencyLock) {
+            if (mAutoLatencyLowMillis == 0) {
+                return;
+            }
+            if (fullPacket) {
+                mLatencyStreak = Math.min(Math.max(mLatencyStreak, 0) + 1,
+                        AUTO_LATENCY_HYSTERESIS);
+            } else {
+                mLatencyStreak = Math.max(Math.min(mLatencyStreak, 0) - 1,
+                        -AUTO_LATENCY_HYSTERESIS);
+            }
+            final int target;
+            if (mLatencyStreak == AUTO_LATENCY_HYSTERESIS) {
+                target = mAutoLatencyHighMillis;
+            } else if (mLatencyStreak == -AUTO_LATENCY_HYSTERESIS) {
+                target = mAutoLatencyLowMillis;
+            } else {
+                return;
+            }
+            if (target == mAutoLatencyTargetMillis) {
+                return;
+            }
+            mAutoLatencyTargetMillis = target;
+            mPendingLatencyMillis = target;
+        }
+    }
+
+    /**
+     * Sets the latency timer last chosen by
+     * {@link #adaptLatencyTimer(boolean)}, if any.
+     */
+    private void applyAutoLatency() {
+        if (mPendingLatencyMillis == 0) {
+            return;
+        }
+        final int target;
+        synchronized (mAutoLatencyLock) {
+            target = mPendingLatencyMillis;
+            mPendingLatencyMillis = 0;
+        }
+        if (target == 0) {
+            return;
+        }
+        synchronized (mLatencyLock) {
+            if (target == mLatencyTimerMillis) {
+                return;
+            }
+            try {
+                setLatencyTimer(target);
+            } catch (IOException e) {
+                Log.w(TAG, "Auto-latency: " + e.getMessage());
+            }
+        }
     }
 
     @Override
     public void setDTR(boolean value) throws IOException {
-        mConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE, SIO_SET_MODEM_CTRL_REQUEST,
-                (SIO_SET_DTR_MASK | (value ? SIO_SET_DTR : 0)),
-                0 /* index */, null, 0, USB_WRITE_TIMEOUT_MILLIS);
+        if (isDtrCurrent(value)) {
+            return;
+        }
+        int result = mConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE,
+                SIO_SET_MODEM_CTRL_REQUEST, (SIO_SET_DTR_MASK | (value ? SIO_SET_DTR : 0)),
+                mIndex, null, 0, USB_WRITE_TIMEOUT_MILLIS);
+        if (result != 0) {
+            throw new IOException("Setting DTR failed: result=" + result);
+        }
+        setDtrCurrent(value);
+        updateModemStatus(value ? MS_DTR_MASK : 0, MS_DTR_MASK);
     }
 
     @Override
     public void setRTS(boolean value) throws IOException {
-        mConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE, SIO_SET_MODEM_CTRL_REQUEST,
-                (SIO_SET_RTS_MASK | (value ? SIO_SET_RTS : 0)),
-                0 /* index */, null, 0, USB_WRITE_TIMEOUT_MILLIS);
+        if (isRtsCurrent(value)) {
+            return;
+        }
+        int result = mConnection.controlTransfer(FTDI_DEVICE_OUT_REQTYPE,
+                SIO_SET_MODEM_CTRL_REQUEST, (SIO_SET_RTS_MASK | (value ? SIO_SET_RTS : 0)),
+                mIndex, null, 0, USB_WRITE_TIMEOUT_MILLIS);
+        if (result != 0) {
+            throw new IOException("Setting RTS failed: result=" + result);
+        }
+        setRtsCurrent(value);
+        updateModemStatus(value ? MS_RTS_MASK : 0, MS_RTS_MASK);
     }
 
     public static Map<Integer, int[]> getSupportedDevices() {
@@ -548,6 +1171,9 @@ public class FtdiSerialDriver extends CommonUsbSerialDriver {
         supportedDevices.put(Integer.valueOf(UsbId.VENDOR_FTDI),
                 new int[] {
                     UsbId.FTDI_FT232R,
+                    UsbId.FTDI_FT2232H,
+                    UsbId.FTDI_FT4232H,
+                    UsbId.FTDI_FT232H,
                 });
         return supportedDevices;
     }
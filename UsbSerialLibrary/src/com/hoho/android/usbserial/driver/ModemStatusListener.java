@@ -0,0 +1,40 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+package com.hoho.android.usbserial.driver;
+
+/**
+ * Receives changes of the modem status lines reported by a device.
+ */
+public interface ModemStatusListener {
+
+    /**
+     * Called when one or more status lines change.  Called on a driver thread,
+     * as soon as the device reports the change; implementations should not
+     * block.
+     *
+     * @param driver the driver whose lines changed
+     * @param status the new status, in the format of
+     *            {@link UsbSerialDriver#getModemStatus()}
+     * @param changed the {@code MS_*_MASK} bits which changed
+     */
+    public void onModemStatusChanged(UsbSerialDriver driver, int status, int changed);
+
+}
@@ -15,12 +15,13 @@ import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbRequest;
+import android.os.Build;
 import android.util.Log;
 
 /**
  * @author
  */
-public class Pl2303SerialDriver extends CommonUsbSerialDriver implements Runnable {
+public class Pl2303SerialDriver extends CommonUsbSerialDriver {
 
     private static final String TAG = Pl2303SerialDriver.class.getSimpleName();
 
@@ -45,6 +46,21 @@ public class Pl2303SerialDriver extends CommonUsbSerialDriver implements Runnabl
     private static final int VENDOR_WRITE_REQUEST = 0x01;
     private static final int VENDOR_READ_REQUEST_TYPE = 0xc0;
     private static final int VENDOR_READ_REQUEST = 0x01;
+
+    /*
+     * Flow control, in vendor register 0, as in the Linux pl2303 driver.
+     */
+    private static final int FLOW_CONTROL_REGISTER = 0;
+    private static final int FLOW_CONTROL_NONE = 0x00;
+    private static final int FLOW_CONTROL_RTS_CTS = 0x41;
+    private static final int FLOW_CONTROL_RTS_CTS_HX = 0x61;
+    private static final int FLOW_CONTROL_XON_XOFF = 0xc0;
+
+    /*
+     * Vendor writes which flush the chip's buffers.
+     */
+    private static final int FLUSH_RX_REQUEST = 0x08;
+    private static final int FLUSH_TX_REQUEST = 0x09;
     private static final int SET_CONTROL_REQUEST_TYPE = 0x21;
     private static final int SET_CONTROL_REQUEST = 0x22;
 
@@ -59,11 +75,85 @@ public class Pl2303SerialDriver extends CommonUsbSerialDriver implements Runnabl
     // Type 0 = PL2303, Type 1 = PL2303-HX
     private int PL2303type = 0;
 
+    /**
+     * Rates the chip generates exactly, as listed by the Linux pl2303 driver.
+     * Others are rounded to the nearest of these, or on the HX encoded as a
+     * divisor.
+     */
+    private static final int[] STANDARD_BAUD_RATES = {
+            75, 150, 300, 600, 1200, 1800, 2400, 3600, 4800, 7200, 9600, 14400, 19200,
+            28800, 38400, 57600, 115200, 230400, 460800, 614400, 921600, 1228800,
+            2457600, 3000000, 6000000
+    };
+
+    private static final int MAX_BAUD_RATE = 1228800;
+    private static final int MAX_BAUD_RATE_HX = 6000000;
+
+    /** Base clock of the HX baud rate divisor: 12 MHz, in 1/32 steps. */
+    private static final int DIVISOR_BASELINE = 12000000 * 32;
+
     // Status of DTR/RTS Lines
     private int ControlLines = 0;
 
     private boolean opened;
 
+    /** Offset of the line status byte in an interrupt status message. */
+    private static final int STATUS_UART_STATE_OFFSET = 8;
+
+    private static final int STATUS_MS_MASK = MS_DCD_MASK | MS_CTS_MASK | MS_DSR_MASK | MS_RI_MASK;
+
+    /**
+     * Request kept queued on the interrupt endpoint {@link #ep0} while open,
+     * through {@link #getRequestDispatcher()}.  Guarded by 'this'.
+     */
+    private UsbRequest mStatusRequest;
+    private ByteBuffer mStatusBuffer;
+    private boolean mStatusOpen = false;
+
+    private final UsbRequestDispatcher.Callback mStatusCallback =
+            new UsbRequestDispatcher.Callback() {
+        @Override
+        public void onRequestComplete(UsbRequest request) {
+            synchronized (Pl2303SerialDriver.this) {
+                if (!mStatusOpen) {
+                    request.close();
+                    return;
+                }
+            }
+            // The request returns when any line status has changed
+            if (mStatusBuffer.capacity() > STATUS_UART_STATE_OFFSET) {
+                final int state = mStatusBuffer.get(STATUS_UART_STATE_OFFSET);
+                updateModemStatus((((state & UART_DCD) == 0) ? 0 : MS_DCD_MASK)
+                        | (((state & UART_CTS) == 0) ? 0 : MS_CTS_MASK)
+                        | (((state & UART_DSR) == 0) ? 0 : MS_DSR_MASK)
+                        | (((state & UART_RING) == 0) ? 0 : MS_RI_MASK),
+                        STATUS_MS_MASK);
+            }
+            synchronized (Pl2303SerialDriver.this) {
+                if (!mStatusOpen) {
+                    request.close();
+                    return;
+                }
+                try {
+                    queueStatusRequest();
+                } catch (IOException e) {
+                    Log.w(TAG, "Stopped reading status: " + e.getMessage());
+                }
+            }
+        }
+
+        @Override
+        public void onRequestFailed(UsbRequest request, IOException e) {
+            synchronized (Pl2303SerialDriver.this) {
+                if (!mStatusOpen) {
+                    request.close();
+                    return;
+                }
+            }
+            Log.w(TAG, "Stopped reading status: " + e.getMessage());
+        }
+    };
+
     /**
      * @param device
      * @param connection
@@ -80,6 +170,7 @@ public class Pl2303SerialDriver extends CommonUsbSerialDriver implements Runnabl
     @Override
     public void open() throws IOException {
         opened = false;
+        invalidateLineState();
         try {
             for (int i = 0; i < mDevice.getInterfaceCount(); i++) {
                 UsbInterface usbIface = mDevice.getInterface(i);
@@ -109,8 +200,17 @@ public class Pl2303SerialDriver extends CommonUsbSerialDriver implements Runnabl
                 }
             }
 
-            // Type 1 = PL2303HX
-            // if (mConnection.getRawDescriptors()[7] == 64) PL2303type = 1;
+            // Type 1 = PL2303HX, which unlike older chips has a 64 byte
+            // control endpoint (bMaxPacketSize0).
+            PL2303type = 0;
+            if (mDevice.getDeviceClass() != UsbConstants.USB_CLASS_COMM
+                    && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR2) {
+                final byte[] rawDescriptors = mConnection.getRawDescriptors();
+                if (rawDescriptors != null && rawDescriptors.length > 7
+                        && rawDescriptors[7] == 64) {
+                    PL2303type = 1;
+                }
+            }
             Log.d(TAG, "PL2303 type " + PL2303type + " detected");
 
             // Initialization of PL2303 according to linux pl2303.c driver
@@ -142,9 +242,7 @@ public class Pl2303SerialDriver extends CommonUsbSerialDriver implements Runnabl
                 mConnection.controlTransfer(VENDOR_WRITE_REQUEST_TYPE, VENDOR_WRITE_REQUEST, 2,
                         0x24, null, 0, 100);
 
-            // Start control thread for ModemStatus lines
-            Thread tMS = new Thread(this);
-            tMS.start();
+            startStatusRequest();
 
             opened = true;
         } finally {
@@ -161,12 +259,15 @@ public class Pl2303SerialDriver extends CommonUsbSerialDriver implements Runnabl
     @Override
     public void close() throws IOException {
         if (mConnection != null) {
-            // terminate tMS thread
-            // https://code.google.com/p/android/issues/detail?id=39522
             opened = false;
-            // up/down DTR/RTS for generate interrupt in tMS thread
-            setRTS(true);
-            setDTR(true);
+            synchronized (this) {
+                mStatusOpen = false;
+                if (mStatusRequest != null) {
+                    // Closed by its callback once the cancellation completes.
+                    mStatusRequest.cancel();
+                    mStatusRequest = null;
+                }
+            }
             setRTS(false);
             setDTR(false);
 
@@ -184,24 +285,32 @@ public class Pl2303SerialDriver extends CommonUsbSerialDriver implements Runnabl
     /*
      * (non-Javadoc)
      * @see com.hoho.android.usbserial.driver.CommonUsbSerialDriver#read(byte[],
-     * int)
+     * int, int, int)
      */
     @Override
-    public int read(byte[] dest, int timeoutMillis) throws IOException {
-        // TODO Auto-generated method stub
-        return 0;
+    public int read(byte[] dest, int offset, int length, int timeoutMillis) throws IOException {
+        return bulkRead(ep2, dest, offset, length, timeoutMillis);
     }
 
     /*
      * (non-Javadoc)
      * @see
      * com.hoho.android.usbserial.driver.CommonUsbSerialDriver#write(byte[],
-     * int)
+     * int, int, int)
      */
     @Override
-    public int write(byte[] src, int timeoutMillis) throws IOException {
-        // TODO Auto-generated method stub
-        return 0;
+    public int write(byte[] src, int offset, int length, int timeoutMillis) throws IOException {
+        return bulkWrite(ep1, src, offset, length, timeoutMillis);
+    }
+
+    @Override
+    public UsbEndpoint getReadEndpoint() {
+        return ep2;
+    }
+
+    @Override
+    public UsbEndpoint getWriteEndpoint() {
+        return ep1;
     }
 
     /*
@@ -213,8 +322,97 @@ public class Pl2303SerialDriver extends CommonUsbSerialDriver implements Runnabl
     @Override
     public void setParameters(int baudRate, int dataBits, int stopBits, int parity)
             throws IOException {
-        // TODO Auto-generated method stub
+        if (baudRate <= 0) {
+            throw new IllegalArgumentException("Bad value for baudRate: " + baudRate);
+        }
+        if (dataBits < DATABITS_5 || dataBits > DATABITS_8) {
+            throw new IllegalArgumentException("Bad value for dataBits: " + dataBits);
+        }
+
+        byte stopBitsByte;
+        switch (stopBits) {
+            case STOPBITS_1: stopBitsByte = 0; break;
+            case STOPBITS_1_5: stopBitsByte = 1; break;
+            case STOPBITS_2: stopBitsByte = 2; break;
+            default: throw new IllegalArgumentException("Bad value for stopBits: " + stopBits);
+        }
+
+        byte parityByte;
+        switch (parity) {
+            case PARITY_NONE: parityByte = 0; break;
+            case PARITY_ODD: parityByte = 1; break;
+            case PARITY_EVEN: parityByte = 2; break;
+            case PARITY_MARK: parityByte = 3; break;
+            case PARITY_SPACE: parityByte = 4; break;
+            default: throw new IllegalArgumentException("Bad value for parity: " + parity);
+        }
 
+        if (isLineCodingCurrent(baudRate, dataBits, stopBits, parity, 1)) {
+            return;
+        }
+        final byte[] lineRequestData = new byte[7];
+        encodeBaudRate(baudRate, PL2303type == 1, lineRequestData);
+        lineRequestData[4] = stopBitsByte;
+        lineRequestData[5] = parityByte;
+        lineRequestData[6] = (byte) dataBits;
+
+        final int result = mConnection.controlTransfer(SET_LINE_REQUEST_TYPE, SET_LINE_REQUEST,
+                0, 0, lineRequestData, lineRequestData.length, 100);
+        if (result != lineRequestData.length) {
+            throw new IOException("Setting line coding failed: result=" + result);
+        }
+        setLineCodingCurrent(baudRate, dataBits, stopBits, parity);
+    }
+
+    /**
+     * Writes the dwDTERate field of a line coding request into the first four
+     * bytes of {@code dest}, following the Linux pl2303 driver: standard
+     * rates directly, others on the HX as a divisor of
+     * {@value #DIVISOR_BASELINE}, and otherwise rounded to the nearest
+     * standard rate.
+     *
+     * @return the baud rate the chip will actually use
+     */
+    static int encodeBaudRate(int baudRate, boolean hx, byte[] dest) {
+        final int maxBaudRate = hx ? MAX_BAUD_RATE_HX : MAX_BAUD_RATE;
+        int nearest = STANDARD_BAUD_RATES[0];
+        for (final int standardRate : STANDARD_BAUD_RATES) {
+            if (standardRate > maxBaudRate) {
+                break;
+            }
+            if (Math.abs(standardRate - baudRate) < Math.abs(nearest - baudRate)) {
+                nearest = standardRate;
+            }
+        }
+
+        if (nearest == baudRate || !hx) {
+            dest[0] = (byte) (nearest & 0xff);
+            dest[1] = (byte) ((nearest >> 8) & 0xff);
+            dest[2] = (byte) ((nearest >> 16) & 0xff);
+            dest[3] = (byte) ((nearest >> 24) & 0xff);
+            return nearest;
+        }
+
+        // baud = 12M * 32 / (mantissa * 4^exponent)
+        int mantissa = DIVISOR_BASELINE / Math.min(baudRate, maxBaudRate);
+        if (mantissa == 0) {
+            mantissa = 1;
+        }
+        int exponent = 0;
+        while (mantissa >= 512) {
+            if (exponent < 7) {
+                mantissa >>= 2;
+                exponent++;
+            } else {
+                mantissa = 511;
+                break;
+            }
+        }
+        dest[0] = (byte) (mantissa & 0xff);
+        dest[1] = (byte) ((exponent << 1) | (mantissa >> 8));
+        dest[2] = 0;
+        dest[3] = (byte) 0x80;
+        return (DIVISOR_BASELINE / mantissa) >> (exponent << 1);
     }
 
     /*
@@ -224,14 +422,63 @@ public class Pl2303SerialDriver extends CommonUsbSerialDriver implements Runnabl
      */
     @Override
     public int getModemStatus() throws IOException {
-        try {
-            Thread.sleep(1);
-        } catch (InterruptedException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+        // DCD, CTS, DSR and RI are kept current by the status request; RTS
+        // and DTR are as last set.
+        return (lastModemStatus & (STATUS_MS_MASK | (STATUS_MS_MASK << 8)))
+                | ((MS_RTS_MASK | MS_DTR_MASK) << 8)
+                | (((ControlLines & CONTROL_RTS) == 0) ? 0 : MS_RTS_MASK)
+                | (((ControlLines & CONTROL_DTR) == 0) ? 0 : MS_DTR_MASK);
+    }
+
+    @Override
+    public boolean purgeHwBuffers(boolean purgeReadBuffers, boolean purgeWriteBuffers)
+            throws IOException {
+        if (purgeReadBuffers) {
+            flush(FLUSH_RX_REQUEST);
         }
-        return lastModemStatus;
+        if (purgeWriteBuffers) {
+            flush(FLUSH_TX_REQUEST);
+        }
+        return true;
+    }
 
+    private void flush(int request) throws IOException {
+        final int result = mConnection.controlTransfer(VENDOR_WRITE_REQUEST_TYPE,
+                VENDOR_WRITE_REQUEST, request, 0, null, 0, 100);
+        if (result < 0) {
+            throw new IOException("Purge failed: result=" + result);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The chip handles both directions of RTS/CTS or XON/XOFF together, and
+     * cannot use both methods at once.
+     */
+    @Override
+    public void setFlowControl(int flowControl) throws IOException {
+        checkFlowControl(flowControl);
+        final boolean rtsCts =
+                (flowControl & (FLOWCONTROL_RTSCTS_IN | FLOWCONTROL_RTSCTS_OUT)) != 0;
+        final boolean xonXoff =
+                (flowControl & (FLOWCONTROL_XONXOFF_IN | FLOWCONTROL_XONXOFF_OUT)) != 0;
+        final int mode;
+        if (rtsCts && xonXoff) {
+            throw new UnsupportedOperationException("RTS/CTS and XON/XOFF together");
+        } else if (rtsCts) {
+            mode = PL2303type == 1 ? FLOW_CONTROL_RTS_CTS_HX : FLOW_CONTROL_RTS_CTS;
+        } else if (xonXoff) {
+            mode = FLOW_CONTROL_XON_XOFF;
+        } else {
+            mode = FLOW_CONTROL_NONE;
+        }
+        final int result = mConnection.controlTransfer(VENDOR_WRITE_REQUEST_TYPE,
+                VENDOR_WRITE_REQUEST, FLOW_CONTROL_REGISTER, mode, null, 0, 100);
+        if (result < 0) {
+            throw new IOException("Setting flow control failed: result=" + result);
+        }
+        setFlowControlCurrent(flowControl);
     }
 
     /*
@@ -241,12 +488,15 @@ public class Pl2303SerialDriver extends CommonUsbSerialDriver implements Runnabl
      */
     @Override
     public void setRTS(boolean value) throws IOException {
+        if (isRtsCurrent(value))
+            return;
         if ((value) && !((ControlLines & CONTROL_RTS) == CONTROL_RTS))
             ControlLines = ControlLines + CONTROL_RTS;
         if (!(value) && ((ControlLines & CONTROL_RTS) == CONTROL_RTS))
             ControlLines = ControlLines - CONTROL_RTS;
-        mConnection.controlTransfer(SET_CONTROL_REQUEST_TYPE, SET_CONTROL_REQUEST, ControlLines, 0,
-                null, 0, 100);
+        if (mConnection.controlTransfer(SET_CONTROL_REQUEST_TYPE, SET_CONTROL_REQUEST, ControlLines, 0,
+                null, 0, 100) >= 0)
+            setRtsCurrent(value);
         // Log.d(TAG, "RTS set to " + value);
     }
 
@@ -257,12 +507,15 @@ public class Pl2303SerialDriver extends CommonUsbSerialDriver implements Runnabl
      */
     @Override
     public void setDTR(boolean value) throws IOException {
+        if (isDtrCurrent(value))
+            return;
         if ((value) && !((ControlLines & CONTROL_DTR) == CONTROL_DTR))
             ControlLines = ControlLines + CONTROL_DTR;
         if (!(value) && ((ControlLines & CONTROL_DTR) == CONTROL_DTR))
             ControlLines = ControlLines - CONTROL_DTR;
-        mConnection.controlTransfer(SET_CONTROL_REQUEST_TYPE, SET_CONTROL_REQUEST, ControlLines, 0,
-                null, 0, 100);
+        if (mConnection.controlTransfer(SET_CONTROL_REQUEST_TYPE, SET_CONTROL_REQUEST, ControlLines, 0,
+                null, 0, 100) >= 0)
+            setDtrCurrent(value);
         // Log.d(TAG, "DTR set to " + value);
     }
 
@@ -275,44 +528,40 @@ public class Pl2303SerialDriver extends CommonUsbSerialDriver implements Runnabl
         return supportedDevices;
     }
 
-    @Override
-    public void run() {
-        // TODO Auto-generated method stub
-        int res;
-        ByteBuffer readBuffer = ByteBuffer.allocate(ep0.getMaxPacketSize());
-        UsbRequest request = new UsbRequest();
-
-        request.initialize(mConnection, ep0);
-
-        while ((mConnection != null) & opened) {
-            request.queue(readBuffer, ep0.getMaxPacketSize());
-            // request.queue(readBuffer, 9);
-
-            // Log.d(TAG, "Start mConnection.requestWait()");
-            UsbRequest retRequest = mConnection.requestWait();
-            // Log.d(TAG, "Stop mConnection.requestWait()");
-
-            // The request returns when any line status has changed
-            if (retRequest.getEndpoint() == ep0) {
-                // Save status
-                // lastModemStatus = 0xFF & readBuffer.get(8);
-                res = MS_DCD_MASK | MS_CTS_MASK | (MS_RTS_MASK & 0x00) | MS_DSR_MASK
-                        | (MS_DTR_MASK & 0x00)
-                        | MS_RI_MASK;
-                res <<= 8;
-                res = res | (((readBuffer.get(8) & UART_DCD) == 0) ? 0 : MS_DCD_MASK)
-                        | (((readBuffer.get(8) & UART_CTS) == 0) ? 0 : MS_CTS_MASK)
-                        // | (((buffer[0] & GET_MCR_RTS) == 0) ? 0 :
-                        // MS_RTS_MASK)
-                        | (((readBuffer.get(8) & UART_DSR) == 0) ? 0 : MS_DSR_MASK)
-                        // | (((buffer[0] & GET_MCR_DTR) == 0) ? 0 :
-                        // MS_DTR_MASK)
-                        | (((readBuffer.get(8) & UART_RING) == 0) ? 0 : MS_RI_MASK);
-                lastModemStatus = res;
-            }
+    /**
+     * Keeps a request queued on the interrupt endpoint, which completes
+     * whenever a status line changes.  The request goes through the
+     * connection's {@link UsbRequestDispatcher}, so it shares a completion
+     * loop with any other requests, and that loop may be hosted on a shared
+     * executor with {@link #setRequestDispatcher(UsbRequestDispatcher)}.
+     */
+    private synchronized void startStatusRequest() {
+        mStatusOpen = true;
+        if (ep0 == null) {
+            Log.d(TAG, "No interrupt endpoint, modem status unavailable.");
+            return;
+        }
+        final UsbRequest request = new UsbRequest();
+        if (!request.initialize(mConnection, ep0)) {
+            Log.w(TAG, "Error initializing status request.");
+            return;
         }
-        Log.d(TAG, "terminate tMS thread");
+        mStatusRequest = request;
+        mStatusBuffer = ByteBuffer.allocate(ep0.getMaxPacketSize());
+        try {
+            queueStatusRequest();
+        } catch (IOException e) {
+            Log.w(TAG, "Error queueing status request: " + e.getMessage());
+            mStatusRequest.close();
+            mStatusRequest = null;
+        }
+    }
 
+    /** Caller must hold the driver's lock. */
+    private void queueStatusRequest() throws IOException {
+        mStatusBuffer.clear();
+        getRequestDispatcher().queue(mStatusRequest, mStatusBuffer, mStatusBuffer.capacity(),
+                mStatusCallback);
     }
 
 }
@@ -0,0 +1,213 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+package com.hoho.android.usbserial.driver;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbRequest;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the {@link UsbDeviceConnection#requestWait()} loop of one connection
+ * and passes each completed {@link UsbRequest} to the {@link Callback} it was
+ * queued with.
+ * <p>
+ * Since {@code requestWait()} returns the completions of every request on
+ * the connection, all requests on a connection must be queued through the
+ * same dispatcher; see {@link CommonUsbSerialDriver#getRequestDispatcher()}.
+ * <p>
+ * The loop runs on an {@link Executor} only while requests are outstanding,
+ * so an idle connection holds no thread, and many connections can share a
+ * small pool.  Callbacks run on the loop's thread and should not block.
+ */
+public final class UsbRequestDispatcher {
+
+    private static final String TAG = UsbRequestDispatcher.class.getSimpleName();
+
+    /** Receives the completion of a queued request. */
+    public interface Callback {
+        /**
+         * Called when {@code request} completes, including by cancellation.
+         * Due to http://b.android.com/28023 , the number of bytes transferred
+         * is the position of the request's buffer only on platforms where that
+         * bug is fixed.
+         */
+        public void onRequestComplete(UsbRequest request);
+
+        /**
+         * Called for each outstanding request if the connection fails, after
+         * which none of them will complete.
+         */
+        public void onRequestFailed(UsbRequest request, IOException e);
+    }
+
+    private static ExecutorService sDefaultExecutor;
+
+    private final UsbDeviceConnection mConnection;
+    private final Executor mExecutor;
+
+    // Synchronized by 'this'
+    private final Map<UsbRequest, Callback> mOutstanding = new HashMap<UsbRequest, Callback>();
+
+    // Synchronized by 'this'
+    private boolean mRunning = false;
+
+    /** When the request being passed to a callback completed; see {@link #loop()}. */
+    private long mCompletionNanos;
+
+    private final Runnable mLoop = new Runnable() {
+        @Override
+        public void run() {
+            loop();
+        }
+    };
+
+    /**
+     * Creates a dispatcher which runs its loop on a shared pool of daemon
+     * threads.
+     */
+    public UsbRequestDispatcher(UsbDeviceConnection connection) {
+        this(connection, getDefaultExecutor());
+    }
+
+    /**
+     * Creates a dispatcher which runs its loop on {@code executor}.  The
+     * executor must be able to run one loop per active connection at once.
+     */
+    public UsbRequestDispatcher(UsbDeviceConnection connection, Executor executor) {
+        mConnection = connection;
+        mExecutor = executor;
+    }
+
+    private static synchronized Executor getDefaultExecutor() {
+        if (sDefaultExecutor == null) {
+            sDefaultExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sDefaultExecutor;
+    }
+
+    public UsbDeviceConnection getConnection() {
+        return mConnection;
+    }
+
+    /**
+     * Queues {@code request}, starting the loop if it is idle.
+     *
+     * @throws IOException if the request could not be queued
+     * @throws IllegalStateException if the request is already queued
+     */
+    public synchronized void queue(UsbRequest request, ByteBuffer buffer, int length,
+            Callback callback) throws IOException {
+        if (mOutstanding.containsKey(request)) {
+            throw new IllegalStateException("Request already queued.");
+        }
+        if (!request.queue(buffer, length)) {
+            throw new IOException("Error queueing request.");
+        }
+        // The loop cannot look up the completion until we release the lock.
+        mOutstanding.put(request, callback);
+        if (!mRunning) {
+            mRunning = true;
+            mExecutor.execute(mLoop);
+        }
+    }
+
+    /**
+     * Returns when the request being passed to
+     * {@link Callback#onRequestComplete(UsbRequest)} completed, from
+     * {@link System#nanoTime()}.  Unlike the time the callback runs, this
+     * is not delayed by earlier callbacks.  Only meaningful when called from
+     * a callback.
+     */
+    public long getCompletionNanos() {
+        return mCompletionNanos;
+    }
+
+    /** Returns the number of requests queued but not yet complete. */
+    public synchronized int getOutstandingCount() {
+        return mOutstanding.size();
+    }
+
+    private void loop() {
+        while (true) {
+            synchronized (this) {
+                if (mOutstanding.isEmpty()) {
+                    mRunning = false;
+                    return;
+                }
+            }
+
+            final UsbRequest response = mConnection.requestWait();
+            mCompletionNanos = System.nanoTime();
+            if (response == null) {
+                failAll(new IOException("Null response"));
+                return;
+            }
+
+            final Callback callback;
+            synchronized (this) {
+                callback = mOutstanding.remove(response);
+            }
+            if (callback == null) {
+                Log.w(TAG, "Ignoring completion of foreign request " + response);
+                continue;
+            }
+            try {
+                callback.onRequestComplete(response);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Request callback failed: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private void failAll(IOException e) {
+        final Map<UsbRequest, Callback> failed;
+        synchronized (this) {
+            failed = new HashMap<UsbRequest, Callback>(mOutstanding);
+            mOutstanding.clear();
+            mRunning = false;
+        }
+        Log.w(TAG, "Connection failed with " + failed.size() + " requests outstanding.");
+        for (final Map.Entry<UsbRequest, Callback> entry : failed.entrySet()) {
+            try {
+                entry.getValue().onRequestFailed(entry.getKey(), e);
+            } catch (RuntimeException re) {
+                Log.e(TAG, "Request callback failed: " + re.getMessage(), re);
+            }
+        }
+    }
+
+}
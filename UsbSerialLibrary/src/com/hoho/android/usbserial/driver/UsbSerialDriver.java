@@ -21,6 +21,7 @@
 package com.hoho.android.usbserial.driver;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Driver interface for a USB serial device.
@@ -123,6 +124,30 @@ public interface UsbSerialDriver {
      */
     public int read(final byte[] dest, final int timeoutMillis) throws IOException;
 
+    /**
+     * Reads as many bytes as possible into part of the destination buffer.
+     *
+     * @param dest the destination byte buffer
+     * @param offset the index in {@code dest} at which to store the first byte
+     * @param length the maximum number of bytes to read
+     * @param timeoutMillis the timeout for reading
+     * @return the actual number of bytes read
+     * @throws IOException if an error occurred during reading
+     */
+    public int read(final byte[] dest, final int offset, final int length,
+            final int timeoutMillis) throws IOException;
+
+    /**
+     * Reads as many bytes as possible into the remaining space of the
+     * destination buffer, advancing its position.
+     *
+     * @param dest the destination buffer
+     * @param timeoutMillis the timeout for reading
+     * @return the actual number of bytes read
+     * @throws IOException if an error occurred during reading
+     */
+    public int read(final ByteBuffer dest, final int timeoutMillis) throws IOException;
+
     /**
      * Writes as many bytes as possible from the source buffer.
      *
@@ -133,6 +158,30 @@ public interface UsbSerialDriver {
      */
     public int write(final byte[] src, final int timeoutMillis) throws IOException;
 
+    /**
+     * Writes as many bytes as possible from part of the source buffer.
+     *
+     * @param src the source byte buffer
+     * @param offset the index in {@code src} of the first byte to write
+     * @param length the number of bytes to write
+     * @param timeoutMillis the timeout for writing
+     * @return the actual number of bytes written
+     * @throws IOException if an error occurred during writing
+     */
+    public int write(final byte[] src, final int offset, final int length,
+            final int timeoutMillis) throws IOException;
+
+    /**
+     * Writes as many bytes as possible from the remaining data of the source
+     * buffer, advancing its position.
+     *
+     * @param src the source buffer
+     * @param timeoutMillis the timeout for writing
+     * @return the actual number of bytes written
+     * @throws IOException if an error occurred during writing
+     */
+    public int write(final ByteBuffer src, final int timeoutMillis) throws IOException;
+
     /**
      * Sets various serial port parameters.
      *
@@ -159,6 +208,20 @@ public interface UsbSerialDriver {
      */
     public int getModemStatus() throws IOException;
 
+    /**
+     * Sets a listener which is told when the DCD, CTS, DSR or RI line
+     * changes, or {@code null} for none.  Each driver uses the cheapest source
+     * its device offers: CDC/ACM and PL2303 devices send interrupt
+     * notifications; FTDI devices report the lines in every packet read, so
+     * changes are seen only while data is being read; CP2102 devices are
+     * polled, and only while a listener is set.
+     *
+     * @param listener the listener
+     */
+    public void setModemStatusListener(ModemStatusListener listener);
+
+    public ModemStatusListener getModemStatusListener();
+
     /**
      * Gets the CD (Carrier Detect) bit from the underlying UART.
      *
@@ -273,4 +336,56 @@ public interface UsbSerialDriver {
      */
     public void setRTS(boolean value) throws IOException;
 
+    /**
+     * Sets flow control.  Where the chip implements it, flow control runs in
+     * hardware; CDC/ACM devices get host-side XON/XOFF output flow control,
+     * which only sees XOFF while data is being read.  Chips which handle
+     * both directions of a method together enable both when either flag is
+     * given.
+     *
+     * @param flowControl {@link #FLOWCONTROL_NONE}, or a combination of
+     *            {@link #FLOWCONTROL_RTSCTS_IN},
+     *            {@link #FLOWCONTROL_RTSCTS_OUT},
+     *            {@link #FLOWCONTROL_XONXOFF_IN} and
+     *            {@link #FLOWCONTROL_XONXOFF_OUT}
+     * @throws UnsupportedOperationException if the device does not support
+     *             the combination
+     * @throws IOException if flow control could not be set
+     */
+    public void setFlowControl(int flowControl) throws IOException;
+
+    /**
+     * Returns the flow control last set with {@link #setFlowControl(int)}.
+     */
+    public int getFlowControl();
+
+    /**
+     * Discards data held in the device's buffers: received data not yet
+     * read, and written data not yet sent.
+     *
+     * @param purgeReadBuffers {@code true} to discard received data
+     * @param purgeWriteBuffers {@code true} to discard data to be sent
+     * @return {@code true} if the device supports purging, {@code false} if
+     *         nothing was done
+     * @throws IOException if the buffers could not be purged
+     */
+    public boolean purgeHwBuffers(boolean purgeReadBuffers, boolean purgeWriteBuffers)
+            throws IOException;
+
+    /**
+     * Waits until the device has sent all data written to it.
+     * <p>
+     * Devices which cannot report whether their transmit buffer is empty,
+     * such as CDC ACM and PL2303 devices, wait as long as the data written
+     * takes to send at the current line coding, ignoring flow control.
+     * Before {@link #setParameters(int, int, int, int)} they only wait until
+     * the data was handed to the device.
+     *
+     * @param timeoutMillis the longest time to wait, or {@code 0} to wait
+     *            indefinitely
+     * @return {@code true} if all data was sent, {@code false} on timeout
+     * @throws IOException if the device could not be queried
+     */
+    public boolean drain(int timeoutMillis) throws IOException;
+
 }
@@ -0,0 +1,43 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.driver;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+
+/**
+ * Builds a {@link UsbSerialDriver} for a device; registered with
+ * {@link UsbSerialProber#registerDevice(int, int, UsbSerialDriverFactory)}.
+ */
+public interface UsbSerialDriverFactory {
+
+    /**
+     * Builds a driver for {@code usbDevice}.
+     *
+     * @param usbDevice the device to use
+     * @param connection an open connection to the device
+     * @return the driver, or {@code null} if the device is not supported, in
+     *         which case the connection is closed
+     */
+    public UsbSerialDriver newDriver(UsbDevice usbDevice, UsbDeviceConnection connection);
+
+}
@@ -20,10 +20,18 @@
 
 package com.hoho.android.usbserial.driver;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
+import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
 
 /**
@@ -32,9 +40,7 @@ import android.hardware.usb.UsbManager;
  *
  * @author mike wakerly (opensource@hoho.com)
  */
-public enum UsbSerialProber {
-
-    // TODO(mikey): Too much boilerplate.
+public enum UsbSerialProber implements UsbSerialDriverFactory {
 
     /**
      * Prober for {@link FtdiSerialDriver}.
@@ -43,71 +49,131 @@ public enum UsbSerialProber {
      */
     FTDI_SERIAL {
         @Override
-        public UsbSerialDriver getDevice(final UsbManager manager, final UsbDevice usbDevice) {
-            if (!testIfSupported(usbDevice, FtdiSerialDriver.getSupportedDevices())) {
-                return null;
-            }
-            final UsbDeviceConnection connection = manager.openDevice(usbDevice);
-            if (connection == null) {
-                return null;
-            }
+        Map<Integer, int[]> getSupportedDevices() {
+            return FtdiSerialDriver.getSupportedDevices();
+        }
+
+        @Override
+        void addDrivers(UsbDevice usbDevice, UsbDeviceConnection connection,
+                List<UsbSerialDriver> drivers) {
+            drivers.addAll(FtdiSerialDriver.createPorts(usbDevice, connection));
+        }
+
+        @Override
+        public UsbSerialDriver newDriver(UsbDevice usbDevice, UsbDeviceConnection connection) {
             return new FtdiSerialDriver(usbDevice, connection);
         }
     },
 
     CDC_ACM_SERIAL {
         @Override
-        public UsbSerialDriver getDevice(UsbManager manager, UsbDevice usbDevice) {
-            if (!testIfSupported(usbDevice, CdcAcmSerialDriver.getSupportedDevices())) {
-               return null;
-            }
-            final UsbDeviceConnection connection = manager.openDevice(usbDevice);
-            if (connection == null) {
-                return null;
-            }
+        Map<Integer, int[]> getSupportedDevices() {
+            return CdcAcmSerialDriver.getSupportedDevices();
+        }
+
+        @Override
+        public UsbSerialDriver newDriver(UsbDevice usbDevice, UsbDeviceConnection connection) {
             return new CdcAcmSerialDriver(usbDevice, connection);
         }
     },
-    
+
     SILAB_SERIAL {
         @Override
-        public UsbSerialDriver getDevice(final UsbManager manager, final UsbDevice usbDevice) {
-            if (!testIfSupported(usbDevice, Cp2102SerialDriver.getSupportedDevices())) {
-                return null;
-            }
-            final UsbDeviceConnection connection = manager.openDevice(usbDevice);
-            if (connection == null) {
-                return null;
-            }
+        Map<Integer, int[]> getSupportedDevices() {
+            return Cp2102SerialDriver.getSupportedDevices();
+        }
+
+        @Override
+        public UsbSerialDriver newDriver(UsbDevice usbDevice, UsbDeviceConnection connection) {
             return new Cp2102SerialDriver(usbDevice, connection);
         }
     },
-    
+
     PROLIFIC_SERIAL {
         @Override
-        public UsbSerialDriver getDevice(final UsbManager manager, final UsbDevice usbDevice) {
-            if (!testIfSupported(usbDevice, Pl2303SerialDriver.getSupportedDevices())) {
-                return null;
-            }
-            final UsbDeviceConnection connection = manager.openDevice(usbDevice);
-            if (connection == null) {
-                return null;
-            }
+        Map<Integer, int[]> getSupportedDevices() {
+            return Pl2303SerialDriver.getSupportedDevices();
+        }
+
+        @Override
+        public UsbSerialDriver newDriver(UsbDevice usbDevice, UsbDeviceConnection connection) {
             return new Pl2303SerialDriver(usbDevice, connection);
         }
     };
 
+    /**
+     * Vendor and product ids of every prober and registered device, built
+     * once on first use.  Registration replaces the index with a larger
+     * copy, so lookups never lock.
+     */
+    private static final class Index {
+        static volatile DeviceIdIndex<UsbSerialDriverFactory> sInstance = build();
+
+        private static DeviceIdIndex<UsbSerialDriverFactory> build() {
+            int count = 0;
+            for (final UsbSerialProber prober : values()) {
+                for (final int[] productIds : prober.getSupportedDevices().values()) {
+                    count += productIds.length;
+                }
+            }
+            final DeviceIdIndex<UsbSerialDriverFactory> index =
+                    new DeviceIdIndex<UsbSerialDriverFactory>(count);
+            for (final UsbSerialProber prober : values()) {
+                index.putAll(prober.getSupportedDevices(), prober);
+            }
+            return index;
+        }
+
+        static synchronized void add(int[] vendorIds, int[] productIds,
+                UsbSerialDriverFactory[] factories, int count) {
+            final DeviceIdIndex<UsbSerialDriverFactory> index =
+                    new DeviceIdIndex<UsbSerialDriverFactory>(sInstance, count);
+            for (int i = 0; i < count; i++) {
+                index.put(vendorIds[i], productIds[i], factories[i]);
+            }
+            sInstance = index;
+        }
+    }
+
+    /** CDC ACM communication interface subclass. */
+    private static final int USB_SUBCLASS_ACM = 0x02;
+
+    /** Returns the vendor/product map of the driver this prober builds. */
+    abstract Map<Integer, int[]> getSupportedDevices();
+
+    /**
+     * Adds a driver for each port of a supported device; by default the
+     * single driver from {@link #newDriver(UsbDevice, UsbDeviceConnection)}.
+     */
+    void addDrivers(UsbDevice usbDevice, UsbDeviceConnection connection,
+            List<UsbSerialDriver> drivers) {
+        drivers.add(newDriver(usbDevice, connection));
+    }
+
     /**
      * Builds a new {@link UsbSerialDriver} instance from the raw device, or
      * returns <code>null</code> if it could not be built (for example, if the
-     * probe failed).
+     * probe failed).  Only devices in this prober's own list, or registered
+     * to it with {@link #registerDevice(int, int, UsbSerialDriverFactory)},
+     * are built; {@link #acquire(UsbManager, UsbDevice)} also matches
+     * unlisted CDC ACM devices.
      *
      * @param manager the {@link UsbManager} to use
      * @param usbDevice the raw {@link UsbDevice} to use
      * @return the first available {@link UsbSerialDriver}, or {@code null} if
      *         no devices could be acquired
      */
-    public abstract UsbSerialDriver getDevice(final UsbManager manager, final UsbDevice usbDevice);
+    public UsbSerialDriver getDevice(final UsbManager manager, final UsbDevice usbDevice) {
+        if (!testIfSupported(usbDevice, getSupportedDevices())
+                && Index.sInstance.get(usbDevice.getVendorId(), usbDevice.getProductId()) != this) {
+            return null;
+        }
+        final UsbDeviceConnection connection = manager.openDevice(usbDevice);
+        if (connection == null) {
+            return null;
+        }
+        return newDriver(usbDevice, connection);
+    }
 
     /**
      * Acquires and returns the first available serial device among all
@@ -139,21 +205,138 @@ public enum UsbSerialProber {
      *         could be acquired
      */
     public static UsbSerialDriver acquire(final UsbManager usbManager, final UsbDevice usbDevice) {
-        for (final UsbSerialProber prober : values()) {
-            final UsbSerialDriver probedDevice = prober.getDevice(usbManager, usbDevice);
-            if (probedDevice != null) {
-                return probedDevice;
+        final UsbSerialDriverFactory factory = findFactory(usbDevice);
+        if (factory == null) {
+            return null;
+        }
+        final UsbDeviceConnection connection = usbManager.openDevice(usbDevice);
+        if (connection == null) {
+            return null;
+        }
+        final UsbSerialDriver driver = factory.newDriver(usbDevice, connection);
+        if (driver == null) {
+            connection.close();
+        }
+        return driver;
+    }
+
+    /**
+     * Builds drivers for every supported {@link UsbDevice}, including one per
+     * port of multi-port devices.  Devices which cannot be opened, for
+     * example for lack of permission, are skipped.
+     *
+     * @param usbManager the {@link UsbManager} to use
+     * @return the drivers, possibly empty
+     */
+    public static List<UsbSerialDriver> acquireAll(final UsbManager usbManager) {
+        final List<UsbSerialDriver> drivers = new ArrayList<UsbSerialDriver>();
+        for (final UsbDevice usbDevice : usbManager.getDeviceList().values()) {
+            final UsbSerialDriverFactory factory = findFactory(usbDevice);
+            if (factory == null) {
+                continue;
+            }
+            final UsbDeviceConnection connection = usbManager.openDevice(usbDevice);
+            if (connection == null) {
+                continue;
+            }
+            if (factory instanceof UsbSerialProber) {
+                ((UsbSerialProber) factory).addDrivers(usbDevice, connection, drivers);
+            } else {
+                final UsbSerialDriver driver = factory.newDriver(usbDevice, connection);
+                if (driver != null) {
+                    drivers.add(driver);
+                } else {
+                    connection.close();
+                }
             }
         }
-        return null;
+        return drivers;
+    }
+
+    /**
+     * Makes {@link #acquire(UsbManager, UsbDevice)} build drivers for a
+     * device with {@code factory}, which may be one of the probers, for
+     * example to support a board with its own ids but a known chip.
+     * Replaces any earlier mapping of the ids, including a built-in one.
+     */
+    public static void registerDevice(int vendorId, int productId,
+            UsbSerialDriverFactory factory) {
+        if (factory == null) {
+            throw new IllegalArgumentException("Null factory.");
+        }
+        Index.add(new int[] {vendorId}, new int[] {productId},
+                new UsbSerialDriverFactory[] {factory}, 1);
     }
 
     /**
-     * Returns {@code true} if the given device is found in the vendor/product map.
+     * Registers the devices listed in {@code reader}, as if by
+     * {@link #registerDevice(int, int, UsbSerialDriverFactory)}.  Each line
+     * holds a vendor id and product id in hex and the name of a prober, for
+     * example {@code "0403 6015 FTDI_SERIAL"}.  Blank lines and text after
+     * {@code #} are ignored.  The devices are added together, with a single
+     * copy of the index.
      *
-     * @param usbDevice the device to test
-     * @param supportedDevices map of vendor ids to product id(s)
-     * @return {@code true} if supported
+     * @param reader the list, for example a raw resource; not closed
+     * @return the number of devices registered
+     * @throws IOException if the list could not be read or has a bad line,
+     *             in which case no device is registered
+     */
+    public static int registerDevices(Reader reader) throws IOException {
+        final BufferedReader in = new BufferedReader(reader);
+        int[] vendorIds = new int[16];
+        int[] productIds = new int[16];
+        UsbSerialDriverFactory[] factories = new UsbSerialDriverFactory[16];
+        int count = 0;
+        int lineNumber = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            final int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.length() == 0) {
+                continue;
+            }
+            final String[] fields = line.split("\\s+");
+            if (fields.length != 3) {
+                throw new IOException("Bad device at line " + lineNumber + ": " + line);
+            }
+            if (count == vendorIds.length) {
+                vendorIds = Arrays.copyOf(vendorIds, 2 * count);
+                productIds = Arrays.copyOf(productIds, 2 * count);
+                factories = Arrays.copyOf(factories, 2 * count);
+            }
+            try {
+                vendorIds[count] = parseId(fields[0]);
+                productIds[count] = parseId(fields[1]);
+                factories[count] = valueOf(fields[2]);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Bad device at line " + lineNumber + ": " + line);
+            }
+            count++;
+        }
+        if (count > 0) {
+            Index.add(vendorIds, productIds, factories, count);
+        }
+        return count;
+    }
+
+    private static int parseId(String field) {
+        if (field.startsWith("0x") || field.startsWith("0X")) {
+            field = field.substring(2);
+        }
+        final int id = Integer.parseInt(field, 16);
+        if (id < 0 || id > 0xffff) {
+            throw new IllegalArgumentException("Bad id: " + field);
+        }
+        return id;
+    }
+
+    /**
+     * Returns {@code true} if the given device is listed in the given map of
+     * supported devices.
      */
     private static boolean testIfSupported(final UsbDevice usbDevice,
             final Map<Integer, int[]> supportedDevices) {
@@ -172,4 +355,36 @@ public enum UsbSerialProber {
         return false;
     }
 
+    /**
+     * Returns the factory for a device: by vendor and product id, or for
+     * unlisted devices by class, or {@code null} if none supports it.
+     */
+    private static UsbSerialDriverFactory findFactory(final UsbDevice usbDevice) {
+        final UsbSerialDriverFactory factory =
+                Index.sInstance.get(usbDevice.getVendorId(), usbDevice.getProductId());
+        if (factory != null) {
+            return factory;
+        }
+        if (isCdcAcm(usbDevice)) {
+            return CDC_ACM_SERIAL;
+        }
+        return null;
+    }
+
+    /**
+     * Returns {@code true} if the device's first two interfaces are a CDC
+     * ACM communication interface and its data interface, as
+     * {@link CdcAcmSerialDriver} expects.
+     */
+    private static boolean isCdcAcm(final UsbDevice usbDevice) {
+        if (usbDevice.getInterfaceCount() < 2) {
+            return false;
+        }
+        final UsbInterface control = usbDevice.getInterface(0);
+        final UsbInterface data = usbDevice.getInterface(1);
+        return control.getInterfaceClass() == UsbConstants.USB_CLASS_COMM
+                && control.getInterfaceSubclass() == USB_SUBCLASS_ACM
+                && data.getInterfaceClass() == UsbConstants.USB_CLASS_CDC_DATA;
+    }
+
 }
@@ -0,0 +1,79 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+package com.hoho.android.usbserial.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pool of equally sized, array-backed {@link ByteBuffer}s.
+ * <p>
+ * Buffers are handed out cleared.  When the pool is empty a new buffer is
+ * allocated, so a pool sized for the steady state only allocates while
+ * warming up.  Thread-safe.
+ */
+final class ByteBufferPool {
+
+    private final int mBufferSize;
+
+    // Synchronized by 'this'
+    private final ByteBuffer[] mFree;
+    private int mFreeCount = 0;
+
+    ByteBufferPool(int bufferSize, int capacity) {
+        mBufferSize = bufferSize;
+        mFree = new ByteBuffer[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mFree[i] = ByteBuffer.allocate(bufferSize);
+        }
+        mFreeCount = capacity;
+    }
+
+    int getBufferSize() {
+        return mBufferSize;
+    }
+
+    int getCapacity() {
+        return mFree.length;
+    }
+
+    synchronized ByteBuffer acquire() {
+        if (mFreeCount == 0) {
+            return ByteBuffer.allocate(mBufferSize);
+        }
+        final ByteBuffer buffer = mFree[--mFreeCount];
+        mFree[mFreeCount] = null;
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool.  Buffers of another size, and buffers in
+     * excess of the pool's capacity, are dropped.
+     */
+    synchronized void release(ByteBuffer buffer) {
+        if (buffer.capacity() != mBufferSize || !buffer.hasArray()
+                || mFreeCount == mFree.length) {
+            return;
+        }
+        mFree[mFreeCount++] = buffer;
+    }
+
+}
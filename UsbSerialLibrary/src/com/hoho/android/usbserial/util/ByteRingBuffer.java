@@ -0,0 +1,347 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+package com.hoho.android.usbserial.util;
+
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free byte FIFO for exactly one producer thread and one consumer thread,
+ * such as the thread running {@link SerialInputOutputManager} and an
+ * application thread.
+ * <p>
+ * Methods are split between the two sides and must only be called from the
+ * respective thread: {@link #write(byte[], int, int)},
+ * {@link #readFrom(UsbSerialDriver, int)} and
+ * {@link #awaitWritable(long, TimeUnit)} by the producer;
+ * {@link #read(byte[], int, int)}, {@link #peek(byte[], int, int)},
+ * {@link #skip(int)}, {@link #clear()} and
+ * {@link #awaitReadable(long, TimeUnit)} by the consumer.  {@link #available()}, {@link #remaining()} and
+ * {@link #capacity()} may be called from anywhere.
+ * <p>
+ * Each side owns one index, which it publishes once per call rather than
+ * once per byte.  The indices are padded so that they do not share a cache
+ * line.
+ */
+public final class ByteRingBuffer {
+
+    /**
+     * Largest packet a bulk endpoint may send.  {@link #readFrom(UsbSerialDriver, int)}
+     * only reads into at least this much free space, and in multiples of it.
+     */
+    public static final int MAX_PACKET_SIZE = 512;
+
+    private final byte[] mBuffer;
+    private final int mMask;
+
+    /** Total bytes ever consumed.  Written only by the consumer. */
+    private final PaddedAtomicLong mHead = new PaddedAtomicLong();
+
+    /** Total bytes ever produced.  Written only by the producer. */
+    private final PaddedAtomicLong mTail = new PaddedAtomicLong();
+
+    private volatile Thread mWaitingConsumer;
+    private volatile Thread mWaitingProducer;
+
+    /** Used by the producer when the free region wraps; see {@link #readFrom}. */
+    private byte[] mScratch;
+
+    @SuppressWarnings("unused")
+    private static final class PaddedAtomicLong extends AtomicLong {
+        private static final long serialVersionUID = 1L;
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    /**
+     * Creates a ring buffer.
+     *
+     * @param capacity minimum capacity in bytes, rounded up to a power of two
+     */
+    public ByteRingBuffer(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Bad capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mBuffer = new byte[size];
+        mMask = size - 1;
+    }
+
+    public int capacity() {
+        return mBuffer.length;
+    }
+
+    /** Returns the number of bytes which may be read. */
+    public int available() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    /** Returns the number of bytes which may be written. */
+    public int remaining() {
+        return mBuffer.length - available();
+    }
+
+    // Producer side.
+
+    /**
+     * Appends up to {@code length} bytes, as many as fit.
+     *
+     * @return the number of bytes written
+     */
+    public int write(byte[] src, int offset, int length) {
+        checkOffsetAndLength(src, offset, length);
+        final long tail = mTail.get();
+        final int count = Math.min(length, mBuffer.length - (int) (tail - mHead.get()));
+        if (count == 0) {
+            return 0;
+        }
+        final int start = (int) tail & mMask;
+        final int firstLength = Math.min(count, mBuffer.length - start);
+        System.arraycopy(src, offset, mBuffer, start, firstLength);
+        System.arraycopy(src, offset + firstLength, mBuffer, 0, count - firstLength);
+        publishTail(tail + count);
+        return count;
+    }
+
+    /**
+     * Reads from {@code driver} straight into the free space, without an
+     * intermediate copy.
+     * <p>
+     * A read shorter than the device's packet makes drivers drop the rest of
+     * the packet, or fail with an overflow.  So nothing is read unless at
+     * least {@value #MAX_PACKET_SIZE} bytes are free, and reads are whole
+     * multiples of that.  When the free space wraps around the end of the
+     * array leaving less than that before the end, the data is read into a
+     * scratch buffer and copied instead.
+     *
+     * @return the number of bytes read, or {@code 0} if less than
+     *         {@value #MAX_PACKET_SIZE} bytes are free or the read timed out;
+     *         see {@link #awaitWritable(int, long, TimeUnit)}
+     * @throws IOException if the driver fails
+     * @throws IllegalStateException if the capacity is less than
+     *             {@value #MAX_PACKET_SIZE} bytes
+     */
+    public int readFrom(UsbSerialDriver driver, int timeoutMillis) throws IOException {
+        if (mBuffer.length < MAX_PACKET_SIZE) {
+            throw new IllegalStateException("Capacity " + mBuffer.length
+                    + " too small to read from a driver.");
+        }
+        final long tail = mTail.get();
+        final int free = mBuffer.length - (int) (tail - mHead.get());
+        if (free < MAX_PACKET_SIZE) {
+            return 0;
+        }
+        final int start = (int) tail & mMask;
+        final int contiguous = Math.min(free, mBuffer.length - start);
+
+        if (contiguous < MAX_PACKET_SIZE) {
+            if (mScratch == null) {
+                mScratch = new byte[MAX_PACKET_SIZE];
+            }
+            final int numBytesRead = driver.read(mScratch, 0, MAX_PACKET_SIZE, timeoutMillis);
+            if (numBytesRead > 0) {
+                System.arraycopy(mScratch, 0, mBuffer, start, Math.min(numBytesRead, contiguous));
+                if (numBytesRead > contiguous) {
+                    System.arraycopy(mScratch, contiguous, mBuffer, 0, numBytesRead - contiguous);
+                }
+                publishTail(tail + numBytesRead);
+            }
+            return Math.max(numBytesRead, 0);
+        }
+
+        final int readLength = contiguous - contiguous % MAX_PACKET_SIZE;
+        final int numBytesRead = driver.read(mBuffer, start, readLength, timeoutMillis);
+        if (numBytesRead > 0) {
+            publishTail(tail + numBytesRead);
+        }
+        return Math.max(numBytesRead, 0);
+    }
+
+    /**
+     * Waits until there is room to write or the timeout elapses.
+     *
+     * @return the number of bytes which may be written, possibly {@code 0}
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int awaitWritable(long timeout, TimeUnit unit) throws InterruptedException {
+        return awaitWritable(1, timeout, unit);
+    }
+
+    /**
+     * Waits until there is room to write at least {@code minBytes} bytes,
+     * such as {@value #MAX_PACKET_SIZE} before
+     * {@link #readFrom(UsbSerialDriver, int)}, or the timeout elapses.
+     *
+     * @return the number of bytes which may be written, possibly less than
+     *         {@code minBytes}
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int awaitWritable(int minBytes, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        if (minBytes <= 0 || minBytes > mBuffer.length) {
+            throw new IllegalArgumentException("Bad byte count: " + minBytes);
+        }
+        int free = remaining();
+        if (free >= minBytes) {
+            return free;
+        }
+        long remainingNanos = unit.toNanos(timeout);
+        final long deadline = System.nanoTime() + remainingNanos;
+        mWaitingProducer = Thread.currentThread();
+        try {
+            while ((free = remaining()) < minBytes && remainingNanos > 0) {
+                LockSupport.parkNanos(this, remainingNanos);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                remainingNanos = deadline - System.nanoTime();
+            }
+        } finally {
+            mWaitingProducer = null;
+        }
+        return free;
+    }
+
+    private void publishTail(long tail) {
+        mTail.set(tail);
+        final Thread consumer = mWaitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    // Consumer side.
+
+    /**
+     * Removes up to {@code length} bytes.
+     *
+     * @return the number of bytes copied to {@code dest}
+     */
+    public int read(byte[] dest, int offset, int length) {
+        final int count = peek(dest, offset, length);
+        if (count > 0) {
+            publishHead(mHead.get() + count);
+        }
+        return count;
+    }
+
+    /**
+     * Copies up to {@code length} bytes without removing them.
+     *
+     * @return the number of bytes copied to {@code dest}
+     */
+    public int peek(byte[] dest, int offset, int length) {
+        checkOffsetAndLength(dest, offset, length);
+        final long head = mHead.get();
+        final int count = Math.min(length, (int) (mTail.get() - head));
+        if (count == 0) {
+            return 0;
+        }
+        final int start = (int) head & mMask;
+        final int firstLength = Math.min(count, mBuffer.length - start);
+        System.arraycopy(mBuffer, start, dest, offset, firstLength);
+        System.arraycopy(mBuffer, 0, dest, offset + firstLength, count - firstLength);
+        return count;
+    }
+
+    /**
+     * Discards up to {@code count} bytes.
+     *
+     * @return the number of bytes discarded
+     */
+    public int skip(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Bad count: " + count);
+        }
+        final long head = mHead.get();
+        final int skipped = Math.min(count, (int) (mTail.get() - head));
+        if (skipped > 0) {
+            publishHead(head + skipped);
+        }
+        return skipped;
+    }
+
+    /**
+     * Discards all data which may be read, such as data received before
+     * {@link SerialInputOutputManager#purge(boolean, boolean)}.  Data the
+     * producer writes meanwhile is kept.
+     *
+     * @return the number of bytes discarded
+     */
+    public int clear() {
+        final long head = mHead.get();
+        final long tail = mTail.get();
+        if (tail != head) {
+            publishHead(tail);
+        }
+        return (int) (tail - head);
+    }
+
+    /**
+     * Waits until there is data to read or the timeout elapses.
+     *
+     * @return the number of bytes which may be read, possibly {@code 0}
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int awaitReadable(long timeout, TimeUnit unit) throws InterruptedException {
+        int avail = available();
+        if (avail > 0) {
+            return avail;
+        }
+        long remainingNanos = unit.toNanos(timeout);
+        final long deadline = System.nanoTime() + remainingNanos;
+        mWaitingConsumer = Thread.currentThread();
+        try {
+            while ((avail = available()) == 0 && remainingNanos > 0) {
+                LockSupport.parkNanos(this, remainingNanos);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                remainingNanos = deadline - System.nanoTime();
+            }
+        } finally {
+            mWaitingConsumer = null;
+        }
+        return avail;
+    }
+
+    private void publishHead(long head) {
+        mHead.set(head);
+        final Thread producer = mWaitingProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+    }
+
+    private static void checkOffsetAndLength(byte[] buffer, int offset, int length) {
+        if (offset < 0 || length < 0 || length > buffer.length - offset) {
+            throw new IndexOutOfBoundsException("offset=" + offset + " length=" + length
+                    + " buffer length=" + buffer.length);
+        }
+    }
+
+}
@@ -0,0 +1,524 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.util;
+
+import com.hoho.android.usbserial.driver.CommonUsbSerialDriver;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits a stream of received bytes into frames, since USB packet boundaries
+ * seldom match message boundaries.
+ * <p>
+ * Subclasses implement common framings: {@link Delimiter},
+ * {@link LengthPrefix}, {@link Slip} (RFC 1055), {@link Cobs} and
+ * {@link IdleGap}.  Each frame is assembled in a buffer owned by the decoder
+ * and passed to {@link FrameListener#onFrame(ByteBuffer)} as a view which is
+ * reused for every frame, so decoding allocates nothing.
+ * <p>
+ * Frames longer than the decoder's maximum are discarded, as are malformed
+ * ones; see {@link #getErrorCount()}.  A decoder is not thread-safe, and is
+ * meant to be fed by one reading thread, such as through
+ * {@link SerialInputOutputManager#setFrameDecoder(FrameDecoder, FrameListener)}.
+ */
+public abstract class FrameDecoder {
+
+    public interface FrameListener {
+        /**
+         * Called for each complete frame.  The frame lies between the
+         * buffer's position (0) and limit, without any framing bytes.  The
+         * buffer and its contents are only valid until this method returns.
+         */
+        public void onFrame(ByteBuffer frame);
+    }
+
+    private final byte[] mFrame;
+    private final ByteBuffer mFrameView;
+
+    /** Length of the frame being assembled. */
+    private int mLength = 0;
+
+    /** Whether the frame being received overflowed, and will be dropped. */
+    private boolean mDiscarding = false;
+
+    private long mFrameCount = 0;
+    private long mErrorCount = 0;
+
+    /**
+     * @param maxFrameLength the longest frame to deliver, in bytes
+     */
+    protected FrameDecoder(int maxFrameLength) {
+        if (maxFrameLength <= 0) {
+            throw new IllegalArgumentException("Bad max frame length: " + maxFrameLength);
+        }
+        mFrame = new byte[maxFrameLength];
+        mFrameView = ByteBuffer.wrap(mFrame);
+    }
+
+    /**
+     * Decodes received bytes, calling {@code listener} for each frame they
+     * complete.
+     *
+     * @param nanoTime when the bytes were received, from
+     *            {@link System#nanoTime()}
+     */
+    public abstract void decode(byte[] data, int offset, int length, long nanoTime,
+            FrameListener listener);
+
+    /**
+     * Called when a read returns no data.  Only decoders which frame by
+     * timing, such as {@link IdleGap}, use this; the default does nothing.
+     *
+     * @param nanoTime the current time, from {@link System#nanoTime()}
+     */
+    public void onIdle(long nanoTime, FrameListener listener) {
+    }
+
+    /** Discards any partly received frame. */
+    public void reset() {
+        mLength = 0;
+        mDiscarding = false;
+    }
+
+    public int getMaxFrameLength() {
+        return mFrame.length;
+    }
+
+    /** Returns the number of frames delivered. */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /** Returns the number of frames discarded as too long or malformed. */
+    public long getErrorCount() {
+        return mErrorCount;
+    }
+
+    /** Returns the length of the frame being assembled. */
+    protected final int frameLength() {
+        return mLength;
+    }
+
+    /** Returns whether no byte of a frame has been received, even one dropped. */
+    protected final boolean isFrameEmpty() {
+        return mLength == 0 && !mDiscarding;
+    }
+
+    /** Appends a byte to the frame being assembled. */
+    protected final void append(byte b) {
+        if (mLength == mFrame.length) {
+            overflow();
+        } else if (!mDiscarding) {
+            mFrame[mLength++] = b;
+        }
+    }
+
+    /** Appends bytes to the frame being assembled. */
+    protected final void append(byte[] data, int offset, int length) {
+        if (mDiscarding) {
+            return;
+        }
+        if (length > mFrame.length - mLength) {
+            overflow();
+            return;
+        }
+        System.arraycopy(data, offset, mFrame, mLength, length);
+        mLength += length;
+    }
+
+    /**
+     * Passes the frame being assembled, without its last {@code trim} bytes,
+     * to {@code listener} and starts a new one.  A frame which overflowed is
+     * counted as an error instead.
+     */
+    protected final void emit(int trim, FrameListener listener) {
+        if (mDiscarding) {
+            mErrorCount++;
+        } else {
+            mFrameCount++;
+            mFrameView.clear();
+            mFrameView.limit(mLength - trim);
+            listener.onFrame(mFrameView);
+        }
+        reset();
+    }
+
+    /** Drops the frame being assembled as malformed, and starts a new one. */
+    protected final void fail() {
+        mErrorCount++;
+        reset();
+    }
+
+    /** Returns the frame byte at {@code index}, counting from its start. */
+    protected final byte frameByte(int index) {
+        return mFrame[index];
+    }
+
+    private void overflow() {
+        mLength = 0;
+        mDiscarding = true;
+    }
+
+    /**
+     * Frames terminated by a delimiter such as {@code "\r\n"}.  The
+     * delimiter is not included in the frame.
+     */
+    public static final class Delimiter extends FrameDecoder {
+
+        private final byte[] mDelimiter;
+
+        /**
+         * Length of the longest proper prefix of the delimiter's first
+         * {@code i + 1} bytes which is also their suffix, as in
+         * Knuth-Morris-Pratt.
+         */
+        private final int[] mFallback;
+
+        /** Length of the delimiter prefix which the input currently ends with. */
+        private int mMatched = 0;
+
+        /**
+         * @param delimiter the bytes ending each frame
+         * @param maxFrameLength the longest frame to deliver, excluding the
+         *            delimiter
+         */
+        public Delimiter(byte[] delimiter, int maxFrameLength) {
+            super(maxFrameLength + delimiter.length);
+            if (delimiter.length == 0) {
+                throw new IllegalArgumentException("Empty delimiter.");
+            }
+            mDelimiter = delimiter.clone();
+            mFallback = new int[delimiter.length];
+            for (int i = 1, k = 0; i < delimiter.length; i++) {
+                while (k > 0 && delimiter[i] != delimiter[k]) {
+                    k = mFallback[k - 1];
+                }
+                if (delimiter[i] == delimiter[k]) {
+                    k++;
+                }
+                mFallback[i] = k;
+            }
+        }
+
+        @Override
+        public void decode(byte[] data, int offset, int length, long nanoTime,
+                FrameListener listener) {
+            final int end = offset + length;
+            int start = offset;
+            for (int i = offset; i < end; i++) {
+                final byte b = data[i];
+                while (mMatched > 0 && mDelimiter[mMatched] != b) {
+                    mMatched = mFallback[mMatched - 1];
+                }
+                if (mDelimiter[mMatched] == b && ++mMatched == mDelimiter.length) {
+                    // Copy runs rather than single bytes.
+                    append(data, start, i + 1 - start);
+                    emit(mDelimiter.length, listener);
+                    start = i + 1;
+                }
+            }
+            append(data, start, end - start);
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            mMatched = 0;
+        }
+    }
+
+    /**
+     * Frames preceded by their length as an unsigned 1, 2 or 4 byte integer.
+     * The length counts only the payload, which is delivered without the
+     * prefix.
+     * <p>
+     * A length above the maximum cannot be skipped reliably, so it is counted
+     * as an error and decoding restarts with the next byte.
+     */
+    public static final class LengthPrefix extends FrameDecoder {
+
+        private final int mPrefixLength;
+        private final boolean mBigEndian;
+
+        /** Prefix bytes received so far. */
+        private int mPrefixReceived = 0;
+        private long mPayloadLength = 0;
+
+        /**
+         * @param prefixLength the size of the length field: 1, 2 or 4
+         * @param order the byte order of the length field
+         * @param maxFrameLength the longest payload to deliver
+         */
+        public LengthPrefix(int prefixLength, ByteOrder order, int maxFrameLength) {
+            super(maxFrameLength);
+            if (prefixLength != 1 && prefixLength != 2 && prefixLength != 4) {
+                throw new IllegalArgumentException("Bad prefix length: " + prefixLength);
+            }
+            mPrefixLength = prefixLength;
+            mBigEndian = order == ByteOrder.BIG_ENDIAN;
+        }
+
+        @Override
+        public void decode(byte[] data, int offset, int length, long nanoTime,
+                FrameListener listener) {
+            final int end = offset + length;
+            int i = offset;
+            while (i < end) {
+                if (mPrefixReceived < mPrefixLength) {
+                    final long b = data[i++] & 0xff;
+                    if (mBigEndian) {
+                        mPayloadLength = (mPayloadLength << 8) | b;
+                    } else {
+                        mPayloadLength |= b << (8 * mPrefixReceived);
+                    }
+                    if (++mPrefixReceived < mPrefixLength) {
+                        continue;
+                    }
+                    if (mPayloadLength > getMaxFrameLength()) {
+                        fail();
+                        continue;
+                    }
+                } else {
+                    final int count = (int) Math.min(end - i, mPayloadLength - frameLength());
+                    append(data, i, count);
+                    i += count;
+                }
+                if (frameLength() == mPayloadLength) {
+                    emit(0, listener);
+                }
+            }
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            mPrefixReceived = 0;
+            mPayloadLength = 0;
+        }
+    }
+
+    /**
+     * SLIP framing (RFC 1055): frames end with {@code END} (0xC0), which is
+     * escaped within them.  Empty frames, as sent before a frame to flush
+     * line noise, are ignored.
+     */
+    public static final class Slip extends FrameDecoder {
+
+        public static final byte END = (byte) 0xC0;
+        public static final byte ESC = (byte) 0xDB;
+        public static final byte ESC_END = (byte) 0xDC;
+        public static final byte ESC_ESC = (byte) 0xDD;
+
+        private boolean mEscaped = false;
+
+        public Slip(int maxFrameLength) {
+            super(maxFrameLength);
+        }
+
+        @Override
+        public void decode(byte[] data, int offset, int length, long nanoTime,
+                FrameListener listener) {
+            final int end = offset + length;
+            for (int i = offset; i < end; i++) {
+                final byte b = data[i];
+                if (b == END) {
+                    if (!isFrameEmpty() || mEscaped) {
+                        emit(0, listener);
+                    }
+                } else if (mEscaped) {
+                    mEscaped = false;
+                    // As RFC 1055 suggests, keep a byte wrongly escaped.
+                    append(b == ESC_END ? END : b == ESC_ESC ? ESC : b);
+                } else if (b == ESC) {
+                    mEscaped = true;
+                } else {
+                    append(b);
+                }
+            }
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            mEscaped = false;
+        }
+    }
+
+    /**
+     * Consistent Overhead Byte Stuffing: frames are delimited by
+     * {@code 0x00}, and encoded so that they contain none.  Truncated frames
+     * are counted as errors.
+     */
+    public static final class Cobs extends FrameDecoder {
+
+        /** Code of the current block, or {@code 0} before the first. */
+        private int mCode = 0;
+
+        /** Data bytes left in the current block. */
+        private int mRemaining = 0;
+
+        public Cobs(int maxFrameLength) {
+            super(maxFrameLength);
+        }
+
+        @Override
+        public void decode(byte[] data, int offset, int length, long nanoTime,
+                FrameListener listener) {
+            final int end = offset + length;
+            int i = offset;
+            while (i < end) {
+                final int b = data[i] & 0xff;
+                if (b == 0) {
+                    i++;
+                    if (mRemaining > 0) {
+                        fail();
+                    } else if (mCode != 0) {
+                        emit(0, listener);
+                    }
+                } else if (mRemaining == 0) {
+                    i++;
+                    // Blocks shorter than the maximum imply a zero after them,
+                    // unless they end the frame.
+                    if (mCode != 0 && mCode != 0xff) {
+                        append((byte) 0);
+                    }
+                    mCode = b;
+                    mRemaining = b - 1;
+                } else {
+                    int run = 0;
+                    while (run < mRemaining && i + run < end && data[i + run] != 0) {
+                        run++;
+                    }
+                    append(data, i, run);
+                    mRemaining -= run;
+                    i += run;
+                }
+            }
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            mCode = 0;
+            mRemaining = 0;
+        }
+    }
+
+    /**
+     * Frames separated by silence: a frame ends when no byte has arrived for
+     * the given gap, such as the 3.5 character times of Modbus RTU.
+     * <p>
+     * How soon the end is noticed depends on how often reads return, empty or
+     * not; see {@link #onIdle(long, FrameListener)}.  FTDI devices send a
+     * status packet every latency timer period even when idle, so with a
+     * short latency timer (see {@code FtdiSerialDriver.setLatencyTimer()},
+     * with auto-latency off) gaps are resolved to about that period.  Other
+     * devices send nothing while idle, so a frame is only ended by the first
+     * byte of the next one or by a read timeout, though always at the right
+     * boundary.
+     */
+    public static final class IdleGap extends FrameDecoder {
+
+        private final CommonUsbSerialDriver mDriver;
+        private final double mCharacters;
+        private final long mMinGapNanos;
+
+        /** Character time {@link #mGapNanos} was computed for. */
+        private long mCharacterNanos = 0;
+        private long mGapNanos;
+
+        /** When the last byte arrived, valid if the frame is not empty. */
+        private long mLastNanos;
+
+        /**
+         * Creates a decoder with a fixed gap.
+         *
+         * @param gap the silence which ends a frame
+         * @param unit the unit of {@code gap}
+         * @param maxFrameLength the longest frame to deliver
+         */
+        public IdleGap(long gap, TimeUnit unit, int maxFrameLength) {
+            this(null, 0, gap, unit, maxFrameLength);
+        }
+
+        /**
+         * Creates a decoder whose gap is a number of character times at the
+         * driver's current line coding; see
+         * {@link CommonUsbSerialDriver#getCharacterNanos()}.  The gap follows
+         * later changes of the baud rate.
+         *
+         * @param driver the driver whose data is decoded
+         * @param characters the silence which ends a frame, in character
+         *            times, such as {@code 3.5}
+         * @param minGap the shortest gap, also used while the line coding is
+         *            unknown; Modbus RTU uses 1750 us above 19200 baud
+         * @param unit the unit of {@code minGap}
+         * @param maxFrameLength the longest frame to deliver
+         */
+        public IdleGap(CommonUsbSerialDriver driver, double characters, long minGap,
+                TimeUnit unit, int maxFrameLength) {
+            super(maxFrameLength);
+            if (minGap <= 0) {
+                throw new IllegalArgumentException("Bad gap: " + minGap);
+            }
+            if (characters < 0) {
+                throw new IllegalArgumentException("Bad character count: " + characters);
+            }
+            mDriver = driver;
+            mCharacters = characters;
+            mMinGapNanos = unit.toNanos(minGap);
+            mGapNanos = mMinGapNanos;
+        }
+
+        /** Returns the current gap. */
+        public long getGapNanos() {
+            if (mDriver != null) {
+                final long characterNanos = mDriver.getCharacterNanos();
+                if (characterNanos != mCharacterNanos) {
+                    mCharacterNanos = characterNanos;
+                    mGapNanos = Math.max(mMinGapNanos, (long) (mCharacters * characterNanos));
+                }
+            }
+            return mGapNanos;
+        }
+
+        @Override
+        public void decode(byte[] data, int offset, int length, long nanoTime,
+                FrameListener listener) {
+            onIdle(nanoTime, listener);
+            if (length > 0) {
+                append(data, offset, length);
+                mLastNanos = nanoTime;
+            }
+        }
+
+        @Override
+        public void onIdle(long nanoTime, FrameListener listener) {
+            if (!isFrameEmpty() && nanoTime - mLastNanos > getGapNanos()) {
+                emit(0, listener);
+            }
+        }
+    }
+
+}
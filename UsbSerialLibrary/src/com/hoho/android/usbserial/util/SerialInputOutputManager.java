@@ -23,10 +23,16 @@ package com.hoho.android.usbserial.util;
 import android.hardware.usb.UsbRequest;
 import android.util.Log;
 
+import com.hoho.android.usbserial.driver.CommonUsbSerialDriver;
+import com.hoho.android.usbserial.driver.UsbRequestDispatcher;
 import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.util.FrameDecoder.FrameListener;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Utility class which services a {@link UsbSerialDriver} in its {@link #run()}
@@ -37,17 +43,35 @@ import java.nio.ByteBuffer;
 public class SerialInputOutputManager implements Runnable {
 
     private static final String TAG = SerialInputOutputManager.class.getSimpleName();
-    private static final boolean DEBUG = true;
+    private static final boolean DEBUG = false;
 
     private static final int READ_WAIT_MILLIS = 200;
     private static final int BUFSIZ = 4096;
 
+    /** Longest interval between looks at the write queue in {@link #drain(int)}. */
+    private static final int MAX_DRAIN_POLL_MILLIS = 16;
+
+    /** Minimum number of buffers kept for {@link BufferListener}s. */
+    private static final int MIN_POOLED_BUFFERS = 4;
+
     private final UsbSerialDriver mDriver;
 
-    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(BUFSIZ);
+    /** Buffer for blocking reads.  Only used by the thread running {@link #run()}. */
+    private ByteBuffer mReadBuffer;
+
+    private final SerialWriteQueue mWriteQueue = new SerialWriteQueue(BUFSIZ);
 
-    // Synchronized by 'mWriteBuffer'
-    private final ByteBuffer mWriteBuffer = ByteBuffer.allocate(BUFSIZ);
+    /** Whether data polled from {@link #mWriteQueue} is being written. */
+    private volatile boolean mWriting = false;
+
+    /**
+     * Queued writes are coalesced into transfers of up to this many bytes, a
+     * multiple of any bulk endpoint's max packet size.  Only used by the
+     * thread servicing writes.
+     */
+    private final byte[] mWriteTransfer = new byte[BUFSIZ];
+
+    private final SerialIoStats mStats = new SerialIoStats();
 
     private enum State {
         STOPPED,
@@ -61,6 +85,37 @@ public class SerialInputOutputManager implements Runnable {
     // Synchronized by 'this'
     private Listener mListener;
 
+    // Synchronized by 'this'
+    private BufferListener mBufferListener;
+
+    /** Recycles buffers passed to {@link #mBufferListener}; synchronized by 'this'. */
+    private ByteBufferPool mBufferPool;
+
+    // Synchronized by 'this'
+    private WriteSpaceListener mWriteSpaceListener;
+
+    // Synchronized by 'this'
+    private FrameDecoder mFrameDecoder;
+    private FrameListener mFrameListener;
+
+    /**
+     * Set by {@link #purge(boolean, boolean)} so that the thread feeding the
+     * frame decoder resets it before feeding it again.
+     */
+    private volatile boolean mFrameDecoderResetPending = false;
+
+    // Synchronized by 'this'
+    private int mReadQueueDepth = 0;
+
+    // Synchronized by 'this'
+    private boolean mFullDuplex = false;
+
+    // Synchronized by 'this'
+    private ByteRingBuffer mReadRing;
+
+    // Reader used by runQueued(); synchronized by 'this'
+    private QueuedReader mQueuedReader;
+
     public interface Listener {
         /**
          * Called when new incoming data is available.
@@ -74,6 +129,40 @@ public class SerialInputOutputManager implements Runnable {
         public void onRunError(Exception e);
     }
 
+    /**
+     * Receives incoming data in buffers recycled with
+     * {@link SerialInputOutputManager#releaseBuffer(ByteBuffer)}, so that
+     * reading allocates nothing once enough buffers are in circulation.
+     */
+    public interface BufferListener {
+        /**
+         * Called when new incoming data is available.  The data lies between
+         * the buffer's position (0) and limit.  The listener owns the buffer
+         * until it passes it to
+         * {@link SerialInputOutputManager#releaseBuffer(ByteBuffer)}, which
+         * must be done exactly once, from any thread.
+         */
+        public void onNewData(ByteBuffer data);
+
+        /**
+         * Called when {@link SerialInputOutputManager#run()} aborts due to an
+         * error.
+         */
+        public void onRunError(Exception e);
+    }
+
+    public interface WriteSpaceListener {
+        /**
+         * Called after queued data has been written, if an earlier
+         * {@link SerialInputOutputManager#offerWrite(byte[])} or
+         * {@link SerialInputOutputManager#offerWrite(byte[], long, TimeUnit)}
+         * was rejected for lack of room.
+         *
+         * @param freeBytes the room now available in the write queue
+         */
+        public void onWriteSpaceAvailable(int freeBytes);
+    }
+
     /**
      * Creates a new instance with no listener.
      */
@@ -97,16 +186,438 @@ public class SerialInputOutputManager implements Runnable {
         return mListener;
     }
 
+    /**
+     * Sets a listener which receives incoming data in recycled buffers.  While
+     * set, it receives data instead of the {@link Listener}; both are told
+     * about errors.
+     */
+    public synchronized void setBufferListener(BufferListener listener) {
+        mBufferListener = listener;
+    }
+
+    public synchronized BufferListener getBufferListener() {
+        return mBufferListener;
+    }
+
+    /**
+     * Sets a decoder which splits incoming data into frames for
+     * {@code listener}.  While set, frames are delivered instead of data to
+     * the {@link Listener} or {@link BufferListener}; both are still told
+     * about errors.  Ignored while a read ring buffer is set.
+     * <p>
+     * The decoder is fed by the thread running {@link #run()}, with blocking
+     * and queued reads alike.  Reads which return no data are passed to
+     * {@link FrameDecoder#onIdle(long, FrameListener)}.
+     *
+     * @param decoder the decoder, or {@code null} to deliver unframed data
+     * @param listener receives the frames
+     */
+    public synchronized void setFrameDecoder(FrameDecoder decoder, FrameListener listener) {
+        if (decoder != null && listener == null) {
+            throw new IllegalArgumentException("Frame decoder needs a listener.");
+        }
+        mFrameDecoder = decoder;
+        mFrameListener = listener;
+    }
+
+    public synchronized FrameDecoder getFrameDecoder() {
+        return mFrameDecoder;
+    }
+
+    public synchronized FrameListener getFrameListener() {
+        return mFrameListener;
+    }
+
+    /**
+     * Returns a buffer received by {@link BufferListener#onNewData(ByteBuffer)}
+     * for reuse.
+     */
+    public void releaseBuffer(ByteBuffer buffer) {
+        final ByteBufferPool pool;
+        synchronized (this) {
+            pool = mBufferPool;
+        }
+        if (pool != null) {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Returns the pool of buffers of the given size, replacing any pool of
+     * another size or of a smaller capacity.
+     */
+    private synchronized ByteBufferPool getBufferPool(int bufferSize, int capacity) {
+        if (mBufferPool == null || mBufferPool.getBufferSize() != bufferSize
+                || mBufferPool.getCapacity() < capacity) {
+            mBufferPool = new ByteBufferPool(bufferSize, capacity);
+        }
+        return mBufferPool;
+    }
+
+    /**
+     * Passes {@code len} bytes at the start of {@code buffer} to the read
+     * ring buffer, if set, or else to the listeners.
+     *
+     * @param nanoTime when the data was received, from
+     *            {@link System#nanoTime()}
+     * @return {@code true} if the buffer was handed to the
+     *         {@link BufferListener}, which now owns it
+     */
+    private boolean deliverData(ByteBuffer buffer, int len, long nanoTime) {
+        if (DEBUG) Log.d(TAG, "Read data len=" + len);
+        mStats.recordRead(len);
+        final ByteRingBuffer ring = getReadRingBuffer();
+        if (ring != null) {
+            int offset = 0;
+            while (offset < len && getState() == State.RUNNING) {
+                offset += ring.write(buffer.array(), offset, len - offset);
+                if (offset < len) {
+                    awaitRingSpace(ring, 1);
+                }
+            }
+            return false;
+        }
+        final FrameDecoder decoder;
+        final FrameListener frameListener;
+        synchronized (this) {
+            decoder = mFrameDecoder;
+            frameListener = mFrameListener;
+        }
+        if (decoder != null) {
+            resetFrameDecoderIfPending(decoder);
+            decoder.decode(buffer.array(), 0, len, nanoTime, frameListener);
+            return false;
+        }
+        final BufferListener bufferListener = getBufferListener();
+        if (bufferListener != null) {
+            buffer.position(0);
+            buffer.limit(len);
+            bufferListener.onNewData(buffer);
+            return true;
+        }
+        final Listener listener = getListener();
+        if (listener != null) {
+            final byte[] data = new byte[len];
+            System.arraycopy(buffer.array(), 0, data, 0, len);
+            listener.onNewData(data);
+        }
+        return false;
+    }
+
+    /**
+     * Tells the frame decoder, if any, that a read returned no data, such as
+     * a packet holding only an FTDI status header.
+     */
+    private void deliverIdle(long nanoTime) {
+        final FrameDecoder decoder;
+        final FrameListener frameListener;
+        synchronized (this) {
+            decoder = mFrameDecoder;
+            frameListener = mFrameListener;
+        }
+        if (decoder != null) {
+            resetFrameDecoderIfPending(decoder);
+            decoder.onIdle(nanoTime, frameListener);
+        }
+    }
+
+    /** Resets {@code decoder} if data was purged since it was last fed. */
+    private void resetFrameDecoderIfPending(FrameDecoder decoder) {
+        if (mFrameDecoderResetPending) {
+            mFrameDecoderResetPending = false;
+            decoder.reset();
+        }
+    }
+
+    private void notifyRunError(Exception e) {
+        final Listener listener = getListener();
+        if (listener != null) {
+            listener.onRunError(e);
+        }
+        final BufferListener bufferListener = getBufferListener();
+        if (bufferListener != null) {
+            bufferListener.onRunError(e);
+        }
+    }
+
+    /**
+     * Sets the number of reads kept queued on the driver's bulk IN endpoint.
+     * With a depth of {@code 0} (the default) data is read with blocking,
+     * timed reads.  Otherwise {@link #run()} keeps {@code depth}
+     * {@link UsbRequest}s queued at all times and re-queues each one as soon
+     * as it completes, so the host controller never idles between transfers.
+     * Values between 4 and 16 are typical.
+     * <p>
+     * Completed reads are passed to the thread running {@link #run()}, which
+     * calls the listeners, so that they never hold up the driver's
+     * {@link UsbRequestDispatcher} and the other requests on its connection;
+     * a separate thread services writes.  Each read is re-queued as soon as
+     * it completes while fewer than {@code depth} completed reads await the
+     * listeners, and otherwise once they catch up.
+     * <p>
+     * Queued reads require a driver which provides
+     * {@link CommonUsbSerialDriver#getReadEndpoint()}, and a platform where
+     * {@link CommonUsbSerialDriver#isRequestLengthReported()}; otherwise
+     * {@link #run()} falls back to blocking reads.  Must be called while
+     * stopped.
+     *
+     * @param depth number of reads to keep queued, or {@code 0}
+     */
+    public synchronized void setReadQueueDepth(int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("Bad read queue depth: " + depth);
+        }
+        if (mState != State.STOPPED) {
+            throw new IllegalStateException("Cannot change read queue depth while running.");
+        }
+        mReadQueueDepth = depth;
+    }
+
+    public synchronized int getReadQueueDepth() {
+        return mReadQueueDepth;
+    }
+
+    /**
+     * Enables full-duplex operation, where data passed to
+     * {@link #writeAsync(byte[])} is written by a separate thread as soon as
+     * it is queued, instead of after the next blocking read returns (up to
+     * {@value #READ_WAIT_MILLIS} ms later).  Queued reads (see
+     * {@link #setReadQueueDepth(int)}) always operate this way.  Must be
+     * called while stopped.
+     *
+     * @param fullDuplex {@code true} to write from a separate thread
+     */
+    public synchronized void setFullDuplex(boolean fullDuplex) {
+        if (mState != State.STOPPED) {
+            throw new IllegalStateException("Cannot change duplex mode while running.");
+        }
+        mFullDuplex = fullDuplex;
+    }
+
+    public synchronized boolean isFullDuplex() {
+        return mFullDuplex;
+    }
+
+    /**
+     * Sets a ring buffer which receives incoming data instead of the
+     * listeners.  With blocking reads the driver reads straight into the
+     * ring; with queued reads each completed transfer is copied into it.
+     * When the ring is full, reading pauses until the consumer makes room,
+     * for blocking reads at least {@value ByteRingBuffer#MAX_PACKET_SIZE}
+     * bytes, so that no packet is cut short.  Both listeners are still told
+     * about errors.  Must be called while stopped.
+     *
+     * @param ring the ring to fill, of at least
+     *            {@value ByteRingBuffer#MAX_PACKET_SIZE} bytes, or
+     *            {@code null} to deliver data to the listeners
+     */
+    public synchronized void setReadRingBuffer(ByteRingBuffer ring) {
+        if (mState != State.STOPPED) {
+            throw new IllegalStateException("Cannot change read ring buffer while running.");
+        }
+        if (ring != null && ring.capacity() < ByteRingBuffer.MAX_PACKET_SIZE) {
+            throw new IllegalArgumentException("Ring too small: " + ring.capacity());
+        }
+        mReadRing = ring;
+    }
+
+    public synchronized ByteRingBuffer getReadRingBuffer() {
+        return mReadRing;
+    }
+
+    public synchronized void setWriteSpaceListener(WriteSpaceListener listener) {
+        mWriteSpaceListener = listener;
+    }
+
+    public synchronized WriteSpaceListener getWriteSpaceListener() {
+        return mWriteSpaceListener;
+    }
+
+    /**
+     * Sets the capacity of the write queue.  Defaults to {@value #BUFSIZ}
+     * bytes.
+     *
+     * @param bufferSize the capacity in bytes, at least
+     *            {@link #getWriteBytesPending()}
+     */
+    public void setWriteBufferSize(int bufferSize) {
+        mWriteQueue.setCapacity(bufferSize);
+    }
+
+    public int getWriteBufferSize() {
+        return mWriteQueue.getCapacity();
+    }
+
+    /**
+     * Returns counters of the data read and written, for measuring
+     * throughput and latency; see {@link SerialIoStats#reset()}.
+     */
+    public SerialIoStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Returns the number of bytes queued but not yet written.
+     */
+    public int getWriteBytesPending() {
+        return mWriteQueue.size();
+    }
+
+    /**
+     * Returns the number of {@code writeAsync()}, {@code offerWrite()} or
+     * {@code putWrite()} calls whose data is not yet completely written.
+     */
+    public int getWriteQueueDepth() {
+        return mWriteQueue.depth();
+    }
+
+    /**
+     * Queues data to be written.
+     *
+     * @param data the data to write
+     * @throws BufferOverflowException if the write queue has no room for
+     *             {@code data}
+     */
     public void writeAsync(byte[] data) {
-        synchronized (mWriteBuffer) {
-            mWriteBuffer.put(data);
+        if (!mWriteQueue.offer(data, 0, data.length)) {
+            throw new BufferOverflowException();
         }
     }
 
-    public synchronized void stop() {
-        if (getState() == State.RUNNING) {
+    /**
+     * Queues data to be written if the write queue has room for all of it.
+     *
+     * @param data the data to write
+     * @return {@code true} if queued, {@code false} if the queue is full
+     */
+    public boolean offerWrite(byte[] data) {
+        return mWriteQueue.offer(data, 0, data.length);
+    }
+
+    /**
+     * Queues data to be written, waiting up to the given time for room in the
+     * write queue.
+     *
+     * @param data the data to write
+     * @param timeout how long to wait
+     * @param unit the unit of {@code timeout}
+     * @return {@code true} if queued, {@code false} if the queue is full
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean offerWrite(byte[] data, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return mWriteQueue.offer(data, 0, data.length, timeout, unit);
+    }
+
+    /**
+     * Queues data to be written, waiting as long as necessary for room in the
+     * write queue.
+     *
+     * @param data the data to write, no longer than
+     *            {@link #getWriteBufferSize()}
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void putWrite(byte[] data) throws InterruptedException {
+        mWriteQueue.put(data, 0, data.length);
+    }
+
+    /**
+     * Discards data not yet read or written, both in the device's buffers and
+     * in this manager's write queue.
+     * <p>
+     * Purging read buffers also drops queued reads not yet delivered, and
+     * makes the frame decoder, if any, drop its partly received frame before
+     * it is next fed.  A blocking read in progress may still deliver data
+     * received before the purge.  Data already in the read ring buffer is
+     * left alone, since only its consumer may remove it: the consumer should
+     * call {@link ByteRingBuffer#clear()} after purging.
+     *
+     * @param purgeReadBuffers discard data received but not yet read
+     * @param purgeWriteBuffers discard data queued but not yet sent
+     * @return {@code true} if the device's buffers were purged; see
+     *         {@link UsbSerialDriver#purgeHwBuffers(boolean, boolean)}
+     * @throws IOException if the purge failed
+     */
+    public boolean purge(boolean purgeReadBuffers, boolean purgeWriteBuffers)
+            throws IOException {
+        if (purgeWriteBuffers) {
+            final boolean wasFull = mWriteQueue.clearRejected();
+            mWriteQueue.clear();
+            if (wasFull) {
+                notifyWriteSpaceAvailable();
+            }
+        }
+        final boolean purged = mDriver.purgeHwBuffers(purgeReadBuffers, purgeWriteBuffers);
+        if (purgeReadBuffers) {
+            final QueuedReader reader;
+            synchronized (this) {
+                reader = mQueuedReader;
+            }
+            if (reader != null) {
+                reader.discardBacklog();
+            }
+            mFrameDecoderResetPending = true;
+        }
+        return purged;
+    }
+
+    /**
+     * Waits until the write queue is empty and the device has sent all the
+     * data it was given.
+     *
+     * @param timeoutMillis the longest time to wait, or {@code 0} to wait as
+     *            long as necessary
+     * @return {@code true} if drained, {@code false} on timeout
+     * @throws IOException if the device's state could not be read, or the
+     *             wait was interrupted
+     * @see UsbSerialDriver#drain(int)
+     */
+    public boolean drain(int timeoutMillis) throws IOException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        // Queued bytes take at least their character time to send, so there
+        // is no point looking again before then.
+        final long characterNanos = mDriver instanceof CommonUsbSerialDriver
+                ? ((CommonUsbSerialDriver) mDriver).getCharacterNanos() : 0;
+        long pauseMillis = Math.max(1,
+                TimeUnit.NANOSECONDS.toMillis(mWriteQueue.size() * characterNanos));
+        int pollMillis = 1;
+        while (mWriteQueue.depth() > 0 || mWriting) {
+            if (timeoutMillis > 0) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                pauseMillis = Math.min(pauseMillis, remaining);
+            }
+            try {
+                Thread.sleep(pauseMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while draining.");
+            }
+            pauseMillis = pollMillis;
+            pollMillis = Math.min(2 * pollMillis, MAX_DRAIN_POLL_MILLIS);
+        }
+        if (timeoutMillis == 0) {
+            return mDriver.drain(0);
+        }
+        final long remaining = deadline - System.currentTimeMillis();
+        return remaining > 0 && mDriver.drain((int) remaining);
+    }
+
+    public void stop() {
+        synchronized (this) {
+            if (getState() != State.RUNNING) {
+                return;
+            }
             Log.i(TAG, "Stop requested");
             mState = State.STOPPING;
+            if (mQueuedReader != null) {
+                mQueuedReader.stop();
+            }
+        }
+        synchronized (mWriteQueue) {
+            mWriteQueue.notifyAll();
         }
     }
 
@@ -118,8 +629,8 @@ public class SerialInputOutputManager implements Runnable {
      * Continuously services the read and write buffers until {@link #stop()} is
      * called, or until a driver exception is raised.
      *
-     * NOTE(mikey): Uses inefficient read/write-with-timeout.
-     * TODO(mikey): Read asynchronously with {@link UsbRequest#queue(ByteBuffer, int)}
+     * NOTE(mikey): Uses inefficient read/write-with-timeout unless a read
+     * queue depth is set; see {@link #setReadQueueDepth(int)}.
      */
     @Override
     public void run() {
@@ -131,21 +642,47 @@ public class SerialInputOutputManager implements Runnable {
         }
 
         Log.i(TAG, "Running ..");
+        Thread writer = null;
         try {
-            while (true) {
-                if (getState() != State.RUNNING) {
-                    Log.i(TAG, "Stopping mState=" + getState());
-                    break;
+            final CommonUsbSerialDriver queuedDriver = getQueuedReadDriver();
+            if (queuedDriver != null || isFullDuplex()) {
+                writer = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runWriter();
+                    }
+                }, TAG + "-writer");
+                writer.start();
+            }
+            if (queuedDriver != null) {
+                runQueued(queuedDriver);
+            } else {
+                mReadBuffer = getBufferPool(BUFSIZ, MIN_POOLED_BUFFERS).acquire();
+                while (true) {
+                    if (getState() != State.RUNNING) {
+                        Log.i(TAG, "Stopping mState=" + getState());
+                        break;
+                    }
+                    step(writer == null);
                 }
-                step();
             }
         } catch (Exception e) {
             Log.w(TAG, "Run ending due to exception: " + e.getMessage(), e);
-            final Listener listener = getListener();
-            if (listener != null) {
-              listener.onRunError(e);
-            }
+            notifyRunError(e);
         } finally {
+            if (writer != null) {
+                synchronized (this) {
+                    mState = State.STOPPING;
+                }
+                synchronized (mWriteQueue) {
+                    mWriteQueue.notifyAll();
+                }
+                try {
+                    writer.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
             synchronized (this) {
                 mState = State.STOPPED;
                 Log.i(TAG, "Stopped.");
@@ -153,36 +690,435 @@ public class SerialInputOutputManager implements Runnable {
         }
     }
 
-    private void step() throws IOException {
+    /**
+     * Returns the driver to use with queued reads, or {@code null} if reads
+     * should block instead.
+     */
+    private CommonUsbSerialDriver getQueuedReadDriver() {
+        if (getReadQueueDepth() == 0 || !(mDriver instanceof CommonUsbSerialDriver)) {
+            return null;
+        }
+        if (!CommonUsbSerialDriver.isRequestLengthReported()) {
+            Log.w(TAG, "Platform does not support queued reads, using blocking reads.");
+            return null;
+        }
+        final CommonUsbSerialDriver driver = (CommonUsbSerialDriver) mDriver;
+        if (driver.getReadEndpoint() == null) {
+            Log.w(TAG, "Driver does not support queued reads, using blocking reads.");
+            return null;
+        }
+        return driver;
+    }
+
+    /**
+     * Services the driver with {@link #getReadQueueDepth()} queued reads until
+     * stopped.  Reads complete on the driver's {@link UsbRequestDispatcher},
+     * and are delivered on this thread.
+     */
+    private void runQueued(CommonUsbSerialDriver driver) throws IOException {
+        final QueuedReader reader = new QueuedReader(driver, getReadQueueDepth());
+        try {
+            synchronized (this) {
+                if (mState != State.RUNNING) {
+                    return;
+                }
+                mQueuedReader = reader;
+                reader.queueAll();
+            }
+            reader.deliverAll();
+            reader.throwIfFailed();
+        } finally {
+            synchronized (this) {
+                mQueuedReader = null;
+            }
+            reader.close();
+        }
+    }
+
+    /**
+     * Keeps a fixed set of reads queued on the driver's bulk IN endpoint.
+     * A completed read is re-queued at once with a fresh buffer, unless too
+     * many completed reads are waiting for {@link #deliverAll()}, in which
+     * case it is parked until they are delivered.  The dispatcher's thread
+     * never waits for the listeners.
+     * <p>
+     * Lock order: the manager's lock may be held when taking the reader's,
+     * never the reverse.
+     */
+    private final class QueuedReader implements UsbRequestDispatcher.Callback {
+
+        private final CommonUsbSerialDriver mQueuedDriver;
+        private final UsbRequestDispatcher mDispatcher;
+        private final UsbRequest[] mRequests;
+        private final ByteBufferPool mPool;
+
+        // Synchronized by 'this'
+        private final ByteBuffer[] mBuffers;
+        private final boolean[] mParked;
+        private int mOutstanding = 0;
+        private boolean mStopped = false;
+        private IOException mError;
+
+        /**
+         * Completed reads awaiting delivery, oldest first, as a circular
+         * queue.  Reads are only re-queued while fewer than
+         * {@code mRequests.length} are waiting, so twice that is enough.
+         * Synchronized by 'this'.
+         */
+        private final ByteBuffer[] mDone;
+        private final long[] mDoneNanos;
+        private int mDoneHead = 0;
+        private int mDoneCount = 0;
+
+        QueuedReader(CommonUsbSerialDriver driver, int depth) throws IOException {
+            mQueuedDriver = driver;
+            mDispatcher = driver.getRequestDispatcher();
+            mRequests = new UsbRequest[depth];
+            mBuffers = new ByteBuffer[depth];
+            mParked = new boolean[depth];
+            mDone = new ByteBuffer[2 * depth];
+            mDoneNanos = new long[2 * depth];
+            // Buffers queued, waiting for delivery, and being delivered.
+            mPool = getBufferPool(BUFSIZ, Math.max(MIN_POOLED_BUFFERS, 3 * depth));
+            for (int i = 0; i < depth; i++) {
+                final UsbRequest request = new UsbRequest();
+                if (!request.initialize(driver.getConnection(), driver.getReadEndpoint())) {
+                    close();
+                    throw new IOException("Error initializing request.");
+                }
+                mRequests[i] = request;
+                mBuffers[i] = mPool.acquire();
+            }
+        }
+
+        /** Caller must hold the manager's lock. */
+        synchronized void queueAll() throws IOException {
+            for (int i = 0; i < mRequests.length; i++) {
+                mDispatcher.queue(mRequests[i], mBuffers[i], BUFSIZ, this);
+                mOutstanding++;
+            }
+        }
+
+        @Override
+        public void onRequestComplete(UsbRequest request) {
+            final long nanoTime = mDispatcher.getCompletionNanos();
+            final int index = indexOf(mRequests, request);
+            IOException error = null;
+            synchronized (this) {
+                mOutstanding--;
+                final int tail = (mDoneHead + mDoneCount) % mDone.length;
+                mDone[tail] = mBuffers[index];
+                mDoneNanos[tail] = nanoTime;
+                mDoneCount++;
+                mBuffers[index] = null;
+                if (mStopped) {
+                    // Wakes up close().
+                } else if (mDoneCount < mRequests.length) {
+                    error = requeue(index);
+                } else {
+                    mParked[index] = true;
+                }
+                notifyAll();
+            }
+            if (error != null) {
+                fail(error);
+            }
+        }
+
+        @Override
+        public void onRequestFailed(UsbRequest request, IOException e) {
+            synchronized (this) {
+                mOutstanding--;
+                notifyAll();
+            }
+            fail(e);
+        }
+
+        /**
+         * Queues request {@code index} with a fresh buffer.  Caller must hold
+         * the reader's lock.
+         *
+         * @return the error, if the request could not be queued
+         */
+        private IOException requeue(int index) {
+            mBuffers[index] = mPool.acquire();
+            try {
+                mDispatcher.queue(mRequests[index], mBuffers[index], BUFSIZ, this);
+            } catch (IOException e) {
+                mPool.release(mBuffers[index]);
+                mBuffers[index] = null;
+                return e;
+            }
+            mOutstanding++;
+            return null;
+        }
+
+        /**
+         * Delivers completed reads until stopped, re-queueing parked reads
+         * as the backlog shrinks.
+         */
+        void deliverAll() {
+            while (true) {
+                final ByteBuffer buffer;
+                final long nanoTime;
+                IOException error = null;
+                synchronized (this) {
+                    while (mDoneCount == 0 && !mStopped) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                    if (mStopped) {
+                        return;
+                    }
+                    buffer = mDone[mDoneHead];
+                    nanoTime = mDoneNanos[mDoneHead];
+                    mDone[mDoneHead] = null;
+                    mDoneHead = (mDoneHead + 1) % mDone.length;
+                    mDoneCount--;
+                    for (int i = 0; i < mParked.length && error == null; i++) {
+                        if (mParked[i] && mDoneCount < mRequests.length) {
+                            mParked[i] = false;
+                            error = requeue(i);
+                        }
+                    }
+                }
+                if (error != null) {
+                    mPool.release(buffer);
+                    fail(error);
+                    return;
+                }
+                deliver(buffer, nanoTime);
+            }
+        }
+
+        private void deliver(ByteBuffer buffer, long nanoTime) {
+            // Due to http://b.android.com/28023 , the number of bytes
+            // read is only available as the buffer position on platforms
+            // where it is fixed; see isRequestLengthReported().
+            final int len = mQueuedDriver.filterReadData(buffer.array(), buffer.position());
+            if (len > 0) {
+                if (!deliverData(buffer, len, nanoTime)) {
+                    mPool.release(buffer);
+                }
+            } else {
+                mPool.release(buffer);
+                deliverIdle(nanoTime);
+            }
+            mQueuedDriver.applyDeferredSettings();
+        }
+
+        private void fail(IOException e) {
+            synchronized (this) {
+                if (mError == null) {
+                    mError = e;
+                }
+            }
+            SerialInputOutputManager.this.stop();
+        }
+
+        synchronized void throwIfFailed() throws IOException {
+            if (mError != null) {
+                throw mError;
+            }
+        }
+
+        /**
+         * Drops completed reads not yet delivered, and re-queues the reads
+         * parked behind them.
+         */
+        void discardBacklog() {
+            IOException error = null;
+            synchronized (this) {
+                releaseDone();
+                for (int i = 0; i < mParked.length && error == null; i++) {
+                    if (mParked[i] && !mStopped) {
+                        mParked[i] = false;
+                        error = requeue(i);
+                    }
+                }
+            }
+            if (error != null) {
+                fail(error);
+            }
+        }
+
+        /** Caller must hold the reader's lock. */
+        private void releaseDone() {
+            for (; mDoneCount > 0; mDoneCount--) {
+                mPool.release(mDone[mDoneHead]);
+                mDone[mDoneHead] = null;
+                mDoneHead = (mDoneHead + 1) % mDone.length;
+            }
+        }
+
+        /**
+         * Stops re-queueing, wakes up {@link #deliverAll()} and cancels the
+         * outstanding reads.
+         */
+        void stop() {
+            synchronized (this) {
+                mStopped = true;
+                notifyAll();
+            }
+            for (final UsbRequest request : mRequests) {
+                if (request != null) {
+                    request.cancel();
+                }
+            }
+        }
+
+        /**
+         * Cancels outstanding reads, waits for them, drops undelivered data
+         * and frees the requests.
+         */
+        void close() {
+            stop();
+            boolean interrupted = false;
+            synchronized (this) {
+                while (mOutstanding > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                releaseDone();
+                for (int i = 0; i < mBuffers.length; i++) {
+                    if (mBuffers[i] != null) {
+                        mPool.release(mBuffers[i]);
+                        mBuffers[i] = null;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            for (final UsbRequest request : mRequests) {
+                if (request != null) {
+                    request.close();
+                }
+            }
+        }
+    }
+
+    private static int indexOf(UsbRequest[] requests, UsbRequest request) {
+        for (int i = 0; i < requests.length; i++) {
+            if (requests[i] == request) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes queued data as soon as it arrives, until stopped.
+     */
+    private void runWriter() {
+        try {
+            while (true) {
+                synchronized (mWriteQueue) {
+                    while (mWriteQueue.isEmpty() && getState() == State.RUNNING) {
+                        mWriteQueue.wait();
+                    }
+                    if (getState() != State.RUNNING) {
+                        break;
+                    }
+                }
+                writeQueued();
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Writer ending due to exception: " + e.getMessage(), e);
+            notifyRunError(e);
+            stop();
+        }
+    }
+
+    private void step(boolean serviceWrites) throws IOException {
         // Handle incoming data.
-        int len = mDriver.read(mReadBuffer.array(), READ_WAIT_MILLIS);
-        if (len > 0) {
-            if (DEBUG) Log.d(TAG, "Read data len=" + len);
-            final Listener listener = getListener();
-            if (listener != null) {
-                final byte[] data = new byte[len];
-                mReadBuffer.get(data, 0, len);
-                listener.onNewData(data);
+        final ByteRingBuffer ring = getReadRingBuffer();
+        if (ring != null) {
+            if (ring.remaining() < ByteRingBuffer.MAX_PACKET_SIZE) {
+                awaitRingSpace(ring, ByteRingBuffer.MAX_PACKET_SIZE);
+            } else {
+                final int len = ring.readFrom(mDriver, READ_WAIT_MILLIS);
+                if (len > 0) {
+                    if (DEBUG) Log.d(TAG, "Read data len=" + len);
+                    mStats.recordRead(len);
+                }
             }
-            mReadBuffer.clear();
+        } else {
+            readStep();
+        }
+
+        if (!serviceWrites) {
+            return;
         }
 
         // Handle outgoing data.
-        byte[] outBuff = null;
-        synchronized (mWriteBuffer) {
-            if (mWriteBuffer.position() > 0) {
-                len = mWriteBuffer.position();
-                outBuff = new byte[len];
-                mWriteBuffer.rewind();
-                mWriteBuffer.get(outBuff, 0, len);
-                mWriteBuffer.clear();
+        writeQueued();
+    }
+
+    /**
+     * Waits up to {@value #READ_WAIT_MILLIS} ms for the consumer of
+     * {@code ring} to make room for {@code minBytes} bytes.
+     */
+    private static void awaitRingSpace(ByteRingBuffer ring, int minBytes) {
+        try {
+            ring.awaitWritable(minBytes, READ_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void readStep() throws IOException {
+        final int len = mDriver.read(mReadBuffer.array(), READ_WAIT_MILLIS);
+        final long nanoTime = System.nanoTime();
+        if (len > 0) {
+            final ByteBuffer buffer = mReadBuffer;
+            final ByteBufferPool pool = getBufferPool(BUFSIZ, MIN_POOLED_BUFFERS);
+            mReadBuffer = pool.acquire();
+            if (!deliverData(buffer, len, nanoTime)) {
+                pool.release(buffer);
             }
+        } else {
+            deliverIdle(nanoTime);
         }
-        if (outBuff != null) {
+    }
+
+    /**
+     * Writes up to {@value #BUFSIZ} bytes from the write queue in one
+     * transfer.
+     */
+    private void writeQueued() throws IOException {
+        mWriting = true;
+        try {
+            final int len = mWriteQueue.poll(mWriteTransfer, 0, mWriteTransfer.length);
+            if (len == 0) {
+                return;
+            }
             if (DEBUG) {
                 Log.d(TAG, "Writing data len=" + len);
             }
-            mDriver.write(outBuff, READ_WAIT_MILLIS);
+            final long startNanos = System.nanoTime();
+            mDriver.write(mWriteTransfer, 0, len, READ_WAIT_MILLIS);
+            mStats.recordWrite(len, System.nanoTime() - startNanos);
+        } finally {
+            mWriting = false;
+        }
+
+        if (mWriteQueue.clearRejected()) {
+            notifyWriteSpaceAvailable();
+        }
+    }
+
+    private void notifyWriteSpaceAvailable() {
+        final WriteSpaceListener listener = getWriteSpaceListener();
+        if (listener != null) {
+            listener.onWriteSpaceAvailable(mWriteQueue.getCapacity() - mWriteQueue.size());
         }
     }
 
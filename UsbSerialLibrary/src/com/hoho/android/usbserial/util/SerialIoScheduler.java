@@ -0,0 +1,584 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+package com.hoho.android.usbserial.util;
+
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+import android.util.Log;
+
+import com.hoho.android.usbserial.driver.CommonUsbSerialDriver;
+import com.hoho.android.usbserial.driver.UsbRequestDispatcher;
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Services many serial ports from a few threads.
+ * <p>
+ * Unlike {@link SerialInputOutputManager}, which needs at least one thread
+ * per port, each port here keeps reads and writes queued as
+ * {@link UsbRequest}s through its driver's {@link UsbRequestDispatcher}.  The
+ * only threads are one dispatcher loop per connection with I/O in flight,
+ * drawn from a shared pool, plus whatever the listener {@link Executor} uses.
+ * <p>
+ * Listeners are called on that executor, one call at a time and in order
+ * for each port, so an executor with a few threads serves any number of
+ * ports.  A port whose listener falls behind stops re-queueing reads until
+ * it catches up, rather than holding up its connection's dispatcher.
+ * Writes honour host-side flow control, such as XON/XOFF on CDC/ACM: a
+ * port paused by the device resumes writing when a read delivered to its
+ * listener brings XON.
+ * <p>
+ * Requires a platform where
+ * {@link CommonUsbSerialDriver#isRequestLengthReported()}.
+ */
+public class SerialIoScheduler {
+
+    private static final String TAG = SerialIoScheduler.class.getSimpleName();
+
+    public static final int DEFAULT_READ_QUEUE_DEPTH = 4;
+
+    private static final int BUFSIZ = 4096;
+
+    private final Executor mListenerExecutor;
+    private final int mReadQueueDepth;
+
+    // Synchronized by 'this'
+    private final List<Port> mPorts = new ArrayList<Port>();
+
+    public SerialIoScheduler(Executor listenerExecutor) {
+        this(listenerExecutor, DEFAULT_READ_QUEUE_DEPTH);
+    }
+
+    /**
+     * @param listenerExecutor runs listener callbacks
+     * @param readQueueDepth number of reads kept queued per port
+     */
+    public SerialIoScheduler(Executor listenerExecutor, int readQueueDepth) {
+        if (readQueueDepth <= 0) {
+            throw new IllegalArgumentException("Bad read queue depth: " + readQueueDepth);
+        }
+        mListenerExecutor = listenerExecutor;
+        mReadQueueDepth = readQueueDepth;
+    }
+
+    /**
+     * Starts servicing an open driver.
+     *
+     * @param driver a driver which provides
+     *            {@link CommonUsbSerialDriver#getReadEndpoint()} and
+     *            {@link CommonUsbSerialDriver#getWriteEndpoint()}
+     * @param listener receives data and errors for this port
+     * @return the port, used to write and to stop servicing the driver
+     * @throws IOException if reads could not be queued
+     * @throws UnsupportedOperationException if the platform cannot queue
+     *             reads; see
+     *             {@link CommonUsbSerialDriver#isRequestLengthReported()}
+     */
+    public Port addPort(UsbSerialDriver driver, SerialInputOutputManager.Listener listener)
+            throws IOException {
+        return addPort(driver, listener, null);
+    }
+
+    /**
+     * Starts servicing an open driver, passing data in buffers recycled with
+     * {@link Port#releaseBuffer(ByteBuffer)}, so that reading allocates
+     * nothing once enough buffers are in circulation.
+     *
+     * @see #addPort(UsbSerialDriver, SerialInputOutputManager.Listener)
+     */
+    public Port addPort(UsbSerialDriver driver, SerialInputOutputManager.BufferListener listener)
+            throws IOException {
+        return addPort(driver, null, listener);
+    }
+
+    private Port addPort(UsbSerialDriver driver, SerialInputOutputManager.Listener listener,
+            SerialInputOutputManager.BufferListener bufferListener) throws IOException {
+        if (!CommonUsbSerialDriver.isRequestLengthReported()) {
+            throw new UnsupportedOperationException("Platform cannot queue reads.");
+        }
+        if (!(driver instanceof CommonUsbSerialDriver)
+                || ((CommonUsbSerialDriver) driver).getReadEndpoint() == null
+                || ((CommonUsbSerialDriver) driver).getWriteEndpoint() == null) {
+            throw new IllegalArgumentException("Driver does not support queued I/O: " + driver);
+        }
+        final Port port = new Port((CommonUsbSerialDriver) driver, listener, bufferListener);
+        synchronized (this) {
+            mPorts.add(port);
+        }
+        try {
+            port.start();
+        } catch (IOException e) {
+            port.close();
+            throw e;
+        }
+        return port;
+    }
+
+    public synchronized List<Port> getPorts() {
+        return new ArrayList<Port>(mPorts);
+    }
+
+    /** Stops servicing all ports. */
+    public void shutdown() {
+        for (final Port port : getPorts()) {
+            port.close();
+        }
+    }
+
+    private synchronized void removePort(Port port) {
+        mPorts.remove(port);
+    }
+
+    /** One serial port serviced by the scheduler. */
+    public final class Port {
+
+        private final CommonUsbSerialDriver mDriver;
+        private final SerialInputOutputManager.Listener mListener;
+        private final SerialInputOutputManager.BufferListener mBufferListener;
+        private final UsbRequestDispatcher mDispatcher;
+
+        /** Buffers queued, waiting for delivery, and being delivered. */
+        private final ByteBufferPool mPool = new ByteBufferPool(BUFSIZ, 3 * mReadQueueDepth);
+
+        private final UsbRequest[] mReadRequests = new UsbRequest[mReadQueueDepth];
+        private UsbRequest mWriteRequest;
+        private final ByteBuffer mWriteBuffer = ByteBuffer.allocate(BUFSIZ);
+        private final SerialWriteQueue mWriteQueue = new SerialWriteQueue(BUFSIZ);
+
+        // Synchronized by 'this'
+        private final ByteBuffer[] mReadBuffers = new ByteBuffer[mReadQueueDepth];
+        private final boolean[] mParked = new boolean[mReadQueueDepth];
+        private int mOutstanding = 0;
+        private boolean mWriting = false;
+        private boolean mClosed = false;
+
+        /**
+         * Completed reads awaiting the listener, oldest first, as a circular
+         * queue, and the error to report after them.  Reads are only
+         * re-queued while fewer than the queue depth are waiting, so twice
+         * that is enough.  Synchronized by 'this'.
+         */
+        private final ByteBuffer[] mDone = new ByteBuffer[2 * mReadQueueDepth];
+        private int mDoneHead = 0;
+        private int mDoneCount = 0;
+        private IOException mError;
+        private boolean mErrorDelivered = false;
+        private boolean mDelivering = false;
+
+        private final Runnable mDeliver = new Runnable() {
+            @Override
+            public void run() {
+                deliverAll();
+            }
+        };
+
+        private final UsbRequestDispatcher.Callback mReadCallback =
+                new UsbRequestDispatcher.Callback() {
+            @Override
+            public void onRequestComplete(UsbRequest request) {
+                onReadComplete(request);
+            }
+
+            @Override
+            public void onRequestFailed(UsbRequest request, IOException e) {
+                retire();
+                fail(e);
+            }
+        };
+
+        private final UsbRequestDispatcher.Callback mWriteCallback =
+                new UsbRequestDispatcher.Callback() {
+            @Override
+            public void onRequestComplete(UsbRequest request) {
+                final boolean closed;
+                synchronized (Port.this) {
+                    mWriting = false;
+                    closed = mClosed;
+                }
+                // The buffer position is the number of bytes sent; see
+                // isRequestLengthReported().  A write cancelled by close()
+                // is not counted.
+                if (!closed) {
+                    mDriver.onDataWritten(mWriteBuffer.position());
+                }
+                retire();
+                try {
+                    startWrite();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+
+            @Override
+            public void onRequestFailed(UsbRequest request, IOException e) {
+                retire();
+                fail(e);
+            }
+        };
+
+        Port(CommonUsbSerialDriver driver, SerialInputOutputManager.Listener listener,
+                SerialInputOutputManager.BufferListener bufferListener) {
+            mDriver = driver;
+            mListener = listener;
+            mBufferListener = bufferListener;
+            mDispatcher = driver.getRequestDispatcher();
+        }
+
+        public UsbSerialDriver getDriver() {
+            return mDriver;
+        }
+
+        /**
+         * Queues data to be written.
+         *
+         * @throws BufferOverflowException if the write queue has no room for
+         *             {@code data}
+         * @throws IOException if the port is closed or the write could not
+         *             be queued
+         */
+        public void writeAsync(byte[] data) throws IOException {
+            if (!offerWrite(data)) {
+                throw new BufferOverflowException();
+            }
+        }
+
+        /**
+         * Queues data to be written if the write queue has room for all of it.
+         *
+         * @return {@code true} if queued, {@code false} if the queue is full
+         * @throws IOException if the port is closed or the write could not
+         *             be queued
+         */
+        public boolean offerWrite(byte[] data) throws IOException {
+            synchronized (this) {
+                if (mClosed) {
+                    throw new IOException("Port closed.");
+                }
+            }
+            if (!mWriteQueue.offer(data, 0, data.length)) {
+                return false;
+            }
+            startWrite();
+            return true;
+        }
+
+        public int getWriteBytesPending() {
+            return mWriteQueue.size();
+        }
+
+        /**
+         * Returns a buffer received by a
+         * {@link SerialInputOutputManager.BufferListener} for reuse.
+         */
+        public void releaseBuffer(ByteBuffer buffer) {
+            mPool.release(buffer);
+        }
+
+        /**
+         * Discards data not yet read or written, both in the device's
+         * buffers and in this port's queues: reads not yet passed to the
+         * listener, and data not yet written.  A write already in flight
+         * still completes.
+         *
+         * @return {@code true} if the device's buffers were purged; see
+         *         {@link UsbSerialDriver#purgeHwBuffers(boolean, boolean)}
+         * @throws IOException if the purge failed
+         */
+        public boolean purge(boolean purgeReadBuffers, boolean purgeWriteBuffers)
+                throws IOException {
+            if (purgeWriteBuffers) {
+                mWriteQueue.clear();
+            }
+            final boolean purged = mDriver.purgeHwBuffers(purgeReadBuffers, purgeWriteBuffers);
+            if (purgeReadBuffers) {
+                discardBacklog();
+            }
+            return purged;
+        }
+
+        /**
+         * Stops servicing the port.  Outstanding requests are cancelled and
+         * freed once they complete.  Does not close the driver.
+         */
+        public void close() {
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                for (final UsbRequest request : mReadRequests) {
+                    if (request != null) {
+                        request.cancel();
+                    }
+                }
+                if (mWriteRequest != null) {
+                    mWriteRequest.cancel();
+                }
+                mWriteQueue.clear();
+                freeRequestsIfIdle();
+            }
+            removePort(this);
+        }
+
+        void start() throws IOException {
+            final UsbEndpoint readEndpoint = mDriver.getReadEndpoint();
+            synchronized (this) {
+                for (int i = 0; i < mReadRequests.length; i++) {
+                    mReadRequests[i] = newRequest(readEndpoint);
+                    mReadBuffers[i] = mPool.acquire();
+                }
+                mWriteRequest = newRequest(mDriver.getWriteEndpoint());
+                for (int i = 0; i < mReadRequests.length; i++) {
+                    mDispatcher.queue(mReadRequests[i], mReadBuffers[i], BUFSIZ, mReadCallback);
+                    mOutstanding++;
+                }
+            }
+        }
+
+        private UsbRequest newRequest(UsbEndpoint endpoint) throws IOException {
+            final UsbRequest request = new UsbRequest();
+            if (!request.initialize(mDriver.getConnection(), endpoint)) {
+                throw new IOException("Error initializing request.");
+            }
+            return request;
+        }
+
+        /**
+         * Sends the next chunk of the write queue, unless a write is in
+         * flight or the driver's flow control has paused output; see
+         * {@link CommonUsbSerialDriver#getWriteChunkLimit()}.
+         */
+        private void startWrite() throws IOException {
+            synchronized (this) {
+                if (mWriting || mClosed) {
+                    return;
+                }
+                final int limit = Math.min(BUFSIZ, mDriver.getWriteChunkLimit());
+                if (limit == 0) {
+                    // Retried as each read is delivered.
+                    return;
+                }
+                final int len = mWriteQueue.poll(mWriteBuffer.array(), 0, limit);
+                if (len == 0) {
+                    return;
+                }
+                mWriteBuffer.clear();
+                mWriteBuffer.limit(len);
+                mDispatcher.queue(mWriteRequest, mWriteBuffer, len, mWriteCallback);
+                mWriting = true;
+                mOutstanding++;
+            }
+        }
+
+        /**
+         * Passes a completed read to the listener executor, and re-queues the
+         * request with a fresh buffer unless the listener is behind.
+         */
+        private void onReadComplete(UsbRequest request) {
+            int index = 0;
+            while (mReadRequests[index] != request) {
+                index++;
+            }
+            IOException error = null;
+            final boolean schedule;
+            synchronized (this) {
+                mOutstanding--;
+                mDone[(mDoneHead + mDoneCount) % mDone.length] = mReadBuffers[index];
+                mDoneCount++;
+                mReadBuffers[index] = null;
+                if (mClosed) {
+                    freeRequestsIfIdle();
+                } else if (mDoneCount < mReadRequests.length) {
+                    error = requeue(index);
+                } else {
+                    mParked[index] = true;
+                }
+                schedule = !mDelivering;
+                mDelivering = true;
+            }
+            if (error != null) {
+                fail(error);
+            }
+            if (schedule) {
+                mListenerExecutor.execute(mDeliver);
+            }
+        }
+
+        /**
+         * Queues read {@code index} with a fresh buffer.  Caller must hold
+         * the port's lock.
+         *
+         * @return the error, if the read could not be queued
+         */
+        private IOException requeue(int index) {
+            mReadBuffers[index] = mPool.acquire();
+            try {
+                mDispatcher.queue(mReadRequests[index], mReadBuffers[index], BUFSIZ,
+                        mReadCallback);
+            } catch (IOException e) {
+                mPool.release(mReadBuffers[index]);
+                mReadBuffers[index] = null;
+                return e;
+            }
+            mOutstanding++;
+            return null;
+        }
+
+        /**
+         * Drops completed reads not yet passed to the listener, and re-queues
+         * the reads parked behind them.
+         */
+        private void discardBacklog() {
+            IOException error = null;
+            synchronized (this) {
+                for (; mDoneCount > 0; mDoneCount--) {
+                    mPool.release(mDone[mDoneHead]);
+                    mDone[mDoneHead] = null;
+                    mDoneHead = (mDoneHead + 1) % mDone.length;
+                }
+                for (int i = 0; i < mParked.length && error == null; i++) {
+                    if (mParked[i] && !mClosed) {
+                        mParked[i] = false;
+                        error = requeue(i);
+                    }
+                }
+            }
+            if (error != null) {
+                fail(error);
+            }
+        }
+
+        /**
+         * Calls the listener with each completed read, then with the error,
+         * if any, re-queueing parked reads as the backlog shrinks.  Runs on
+         * the listener executor, never twice at once.
+         */
+        private void deliverAll() {
+            while (true) {
+                final ByteBuffer buffer;
+                IOException error = null;
+                IOException requeueError = null;
+                synchronized (this) {
+                    if (mDoneCount > 0) {
+                        buffer = mDone[mDoneHead];
+                        mDone[mDoneHead] = null;
+                        mDoneHead = (mDoneHead + 1) % mDone.length;
+                        mDoneCount--;
+                        for (int i = 0; i < mParked.length && requeueError == null
+                                && mDoneCount < mReadRequests.length; i++) {
+                            if (mParked[i] && !mClosed) {
+                                mParked[i] = false;
+                                requeueError = requeue(i);
+                            }
+                        }
+                    } else if (mError != null && !mErrorDelivered) {
+                        buffer = null;
+                        error = mError;
+                        mErrorDelivered = true;
+                    } else {
+                        mDelivering = false;
+                        return;
+                    }
+                }
+                if (requeueError != null) {
+                    fail(requeueError);
+                }
+                if (buffer != null) {
+                    deliver(buffer);
+                    mDriver.applyDeferredSettings();
+                    // The read may have resumed paused output.
+                    try {
+                        startWrite();
+                    } catch (IOException e) {
+                        fail(e);
+                    }
+                } else if (mBufferListener != null) {
+                    mBufferListener.onRunError(error);
+                } else {
+                    mListener.onRunError(error);
+                }
+            }
+        }
+
+        private void deliver(ByteBuffer buffer) {
+            // Due to http://b.android.com/28023 , the number of bytes
+            // read is only available as the buffer position on platforms
+            // where it is fixed; see isRequestLengthReported().
+            final int len = mDriver.filterReadData(buffer.array(), buffer.position());
+            if (len <= 0) {
+                mPool.release(buffer);
+            } else if (mBufferListener != null) {
+                buffer.position(0);
+                buffer.limit(len);
+                mBufferListener.onNewData(buffer);
+            } else {
+                final byte[] data = new byte[len];
+                System.arraycopy(buffer.array(), 0, data, 0, len);
+                mPool.release(buffer);
+                mListener.onNewData(data);
+            }
+        }
+
+        private synchronized void retire() {
+            mOutstanding--;
+            freeRequestsIfIdle();
+        }
+
+        /** Caller must hold the port's lock. */
+        private void freeRequestsIfIdle() {
+            if (!mClosed || mOutstanding > 0) {
+                return;
+            }
+            for (final UsbRequest request : mReadRequests) {
+                if (request != null) {
+                    request.close();
+                }
+            }
+            if (mWriteRequest != null) {
+                mWriteRequest.close();
+            }
+        }
+
+        private void fail(IOException e) {
+            final boolean schedule;
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                mError = e;
+                schedule = !mDelivering;
+                mDelivering = true;
+            }
+            Log.w(TAG, "Port failed: " + e.getMessage(), e);
+            close();
+            if (schedule) {
+                mListenerExecutor.execute(mDeliver);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+
+package com.hoho.android.usbserial.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Transfer counters of a {@link SerialInputOutputManager}, for measuring
+ * throughput and write latency on a real device.
+ * <p>
+ * Recording is lock-free and does not allocate, so the counters can stay
+ * enabled in production.  Write latencies are kept in power-of-two
+ * microsecond buckets, so percentiles are accurate to a factor of two.
+ */
+public final class SerialIoStats {
+
+    private static final int LATENCY_BUCKETS = 32;
+
+    private final AtomicLong mReadTransfers = new AtomicLong();
+    private final AtomicLong mBytesRead = new AtomicLong();
+    private final AtomicLong mWriteTransfers = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+
+    /** Count of writes taking [2^i, 2^(i+1)) microseconds; bucket 0 includes 0. */
+    private final AtomicLongArray mWriteLatencies = new AtomicLongArray(LATENCY_BUCKETS);
+
+    private volatile long mStartNanos = System.nanoTime();
+
+    SerialIoStats() {
+    }
+
+    /** Records a read which returned {@code bytes} bytes of payload. */
+    void recordRead(int bytes) {
+        mReadTransfers.incrementAndGet();
+        mBytesRead.addAndGet(bytes);
+    }
+
+    /** Records a write of {@code bytes} bytes which took {@code nanos}. */
+    void recordWrite(int bytes, long nanos) {
+        mWriteTransfers.incrementAndGet();
+        mBytesWritten.addAndGet(bytes);
+        final long micros = nanos / 1000;
+        final int bucket = micros <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(micros);
+        mWriteLatencies.incrementAndGet(Math.min(bucket, LATENCY_BUCKETS - 1));
+    }
+
+    /** Clears all counters and restarts the elapsed time. */
+    public void reset() {
+        mReadTransfers.set(0);
+        mBytesRead.set(0);
+        mWriteTransfers.set(0);
+        mBytesWritten.set(0);
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            mWriteLatencies.set(i, 0);
+        }
+        mStartNanos = System.nanoTime();
+    }
+
+    /** Returns the number of reads which returned data. */
+    public long getReadTransfers() {
+        return mReadTransfers.get();
+    }
+
+    public long getBytesRead() {
+        return mBytesRead.get();
+    }
+
+    public long getWriteTransfers() {
+        return mWriteTransfers.get();
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten.get();
+    }
+
+    /** Returns the time since creation or {@link #reset()}, in milliseconds. */
+    public long getElapsedMillis() {
+        return (System.nanoTime() - mStartNanos) / 1000000;
+    }
+
+    public double getReadBytesPerSecond() {
+        return perSecond(getBytesRead());
+    }
+
+    public double getWriteBytesPerSecond() {
+        return perSecond(getBytesWritten());
+    }
+
+    public double getReadTransfersPerSecond() {
+        return perSecond(getReadTransfers());
+    }
+
+    public double getWriteTransfersPerSecond() {
+        return perSecond(getWriteTransfers());
+    }
+
+    /**
+     * Returns an upper bound on the time taken by the given fraction of
+     * writes, e.g. {@code 0.99} for the 99th percentile.
+     *
+     * @return the bound in microseconds, or {@code 0} if nothing was written
+     */
+    public long getWriteLatencyPercentileMicros(double fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("Bad fraction: " + fraction);
+        }
+        final long[] counts = new long[LATENCY_BUCKETS];
+        long total = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            counts[i] = mWriteLatencies.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long wanted = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= wanted && seen > 0) {
+                return 1L << (i + 1);
+            }
+        }
+        return 1L << LATENCY_BUCKETS;
+    }
+
+    private double perSecond(long count) {
+        final long nanos = System.nanoTime() - mStartNanos;
+        return nanos <= 0 ? 0 : count * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("read %d B in %d transfers (%.0f B/s), "
+                + "wrote %d B in %d transfers (%.0f B/s, p99 < %d us)",
+                getBytesRead(), getReadTransfers(), getReadBytesPerSecond(),
+                getBytesWritten(), getWriteTransfers(), getWriteBytesPerSecond(),
+                getWriteLatencyPercentileMicros(0.99));
+    }
+
+}
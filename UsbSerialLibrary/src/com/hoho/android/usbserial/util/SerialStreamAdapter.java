@@ -0,0 +1,433 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+package com.hoho.android.usbserial.util;
+
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exposes a {@link UsbSerialDriver} as {@link InputStream}/{@link OutputStream}
+ * and as a {@link ByteChannel}.
+ * <p>
+ * Once {@link #start()}ed, a background thread runs a
+ * {@link SerialInputOutputManager} which reads continuously into a
+ * {@link ByteRingBuffer}, so that incoming data is not lost between calls to
+ * the streams.  When the ring is full, reading from the device pauses.
+ * <p>
+ * Reads block until at least one byte is available, the read timeout
+ * elapses, or the adapter is closed; see {@link #setReadTimeout(int)}.
+ * The output stream is buffered and must be flushed; the channel writes
+ * immediately.  Writes go to the driver from the calling thread.
+ * <p>
+ * Closing the adapter or either stream stops the background thread, but
+ * does not close the driver.
+ */
+public class SerialStreamAdapter {
+
+    private static final String TAG = SerialStreamAdapter.class.getSimpleName();
+
+    public static final int DEFAULT_READ_BUFFER_SIZE = 16 * 1024;
+    public static final int DEFAULT_WRITE_BUFFER_SIZE = 4096;
+
+    /** Readers re-check for the end of the stream this often while waiting. */
+    private static final int WAIT_SLICE_MILLIS = 100;
+
+    private final UsbSerialDriver mDriver;
+    private final ByteRingBuffer mReadRing;
+    private final SerialInputOutputManager mPump;
+
+    /** Serializes readers, since the ring allows a single consumer. */
+    private final Object mReadLock = new Object();
+
+    private final SerialInputStream mInputStream = new SerialInputStream();
+    private final SerialOutputStream mOutputStream;
+    private final SerialChannel mChannel = new SerialChannel();
+
+    private volatile int mReadTimeoutMillis = 0;
+    private volatile int mWriteTimeoutMillis = 0;
+
+    // Synchronized by 'this'
+    private Thread mPumpThread;
+
+    private volatile boolean mClosed = false;
+    private volatile boolean mPumpDone = false;
+    private volatile Exception mPumpError;
+
+    public SerialStreamAdapter(UsbSerialDriver driver) {
+        this(driver, DEFAULT_READ_BUFFER_SIZE, DEFAULT_WRITE_BUFFER_SIZE);
+    }
+
+    /**
+     * @param readBufferSize capacity of the receive ring, rounded up to a
+     *            power of two of at least
+     *            {@value ByteRingBuffer#MAX_PACKET_SIZE}
+     * @param writeBufferSize capacity of the output stream's buffer
+     */
+    public SerialStreamAdapter(UsbSerialDriver driver, int readBufferSize, int writeBufferSize) {
+        mDriver = driver;
+        mReadRing = new ByteRingBuffer(Math.max(readBufferSize, ByteRingBuffer.MAX_PACKET_SIZE));
+        mOutputStream = new SerialOutputStream(writeBufferSize);
+        mPump = new SerialInputOutputManager(driver, new SerialInputOutputManager.Listener() {
+            @Override
+            public void onNewData(byte[] data) {
+                // Data goes to mReadRing.
+            }
+
+            @Override
+            public void onRunError(Exception e) {
+                mPumpError = e;
+            }
+        });
+        mPump.setReadRingBuffer(mReadRing);
+    }
+
+    /**
+     * Starts reading from the device in the background.  The driver must be
+     * open.
+     */
+    public synchronized void start() {
+        if (mClosed) {
+            throw new IllegalStateException("Closed.");
+        }
+        if (mPumpThread != null) {
+            throw new IllegalStateException("Already started.");
+        }
+        mPumpThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mPump.run();
+                } finally {
+                    mPumpDone = true;
+                }
+            }
+        }, TAG + "-pump");
+        mPumpThread.start();
+    }
+
+    /**
+     * Stops the background thread, waiting for it to end.  Pending reads
+     * return what is left in the buffer, then end of stream.
+     */
+    public void close() {
+        final Thread pumpThread;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            pumpThread = mPumpThread;
+        }
+        if (pumpThread == null) {
+            return;
+        }
+        try {
+            // Repeated in case the pump had not started running yet.
+            do {
+                mPump.stop();
+                pumpThread.join(WAIT_SLICE_MILLIS);
+            } while (pumpThread.isAlive());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Sets how long reads wait for data before throwing
+     * {@link InterruptedIOException}.
+     *
+     * @param timeoutMillis the timeout, or {@code 0} to wait indefinitely
+     */
+    public void setReadTimeout(int timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("Bad timeout: " + timeoutMillis);
+        }
+        mReadTimeoutMillis = timeoutMillis;
+    }
+
+    public int getReadTimeout() {
+        return mReadTimeoutMillis;
+    }
+
+    /**
+     * Sets the timeout passed to
+     * {@link UsbSerialDriver#write(byte[], int, int, int)}.
+     *
+     * @param timeoutMillis the timeout, or {@code 0} to wait indefinitely
+     */
+    public void setWriteTimeout(int timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("Bad timeout: " + timeoutMillis);
+        }
+        mWriteTimeoutMillis = timeoutMillis;
+    }
+
+    public int getWriteTimeout() {
+        return mWriteTimeoutMillis;
+    }
+
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    /**
+     * Returns a channel which reads and writes the same data as the streams.
+     * Data written to the output stream but not yet flushed is not seen by
+     * the channel.
+     */
+    public ByteChannel getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * Waits for data according to the read timeout.  Caller must hold
+     * {@link #mReadLock}.
+     *
+     * @return {@code false} at end of stream
+     * @throws InterruptedIOException on timeout or interruption
+     * @throws IOException if the background thread failed
+     */
+    private boolean awaitData() throws IOException {
+        final int timeoutMillis = mReadTimeoutMillis;
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (mReadRing.available() == 0) {
+            if (mPumpDone || mClosed) {
+                if (mReadRing.available() > 0) {
+                    break;
+                }
+                final Exception error = mPumpError;
+                if (error != null && !mClosed) {
+                    throw new IOException("Read failed: " + error.getMessage(), error);
+                }
+                return false;
+            }
+            long waitMillis = WAIT_SLICE_MILLIS;
+            if (timeoutMillis > 0) {
+                final long remainingMillis = deadline - System.currentTimeMillis();
+                if (remainingMillis <= 0) {
+                    throw new InterruptedIOException("Read timed out");
+                }
+                waitMillis = Math.min(waitMillis, remainingMillis);
+            }
+            try {
+                mReadRing.awaitReadable(waitMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Read interrupted");
+            }
+        }
+        return true;
+    }
+
+    private int read(byte[] dest, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || length > dest.length - offset) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (length == 0) {
+            return 0;
+        }
+        synchronized (mReadLock) {
+            if (!awaitData()) {
+                return -1;
+            }
+            return mReadRing.read(dest, offset, length);
+        }
+    }
+
+    private void write(byte[] src, int offset, int length) throws IOException {
+        if (mClosed) {
+            throw new IOException("Closed.");
+        }
+        mDriver.write(src, offset, length, mWriteTimeoutMillis);
+    }
+
+    private class SerialInputStream extends InputStream {
+
+        /** Used by {@link #read()}; guarded by {@link #mReadLock}. */
+        private final byte[] mSingleByte = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            synchronized (mReadLock) {
+                final int numBytesRead = SerialStreamAdapter.this.read(mSingleByte, 0, 1);
+                return numBytesRead < 0 ? -1 : mSingleByte[0] & 0xff;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return SerialStreamAdapter.this.read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            synchronized (mReadLock) {
+                return mReadRing.skip((int) Math.min(n, Integer.MAX_VALUE));
+            }
+        }
+
+        @Override
+        public int available() {
+            return mReadRing.available();
+        }
+
+        @Override
+        public void close() {
+            SerialStreamAdapter.this.close();
+        }
+    }
+
+    private class SerialOutputStream extends OutputStream {
+
+        // Synchronized by 'this'
+        private final byte[] mBuffer;
+        private int mCount = 0;
+
+        SerialOutputStream(int bufferSize) {
+            if (bufferSize <= 0) {
+                throw new IllegalArgumentException("Bad buffer size: " + bufferSize);
+            }
+            mBuffer = new byte[bufferSize];
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            if (mCount == mBuffer.length) {
+                flushBuffer();
+            }
+            mBuffer[mCount++] = (byte) b;
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (len >= mBuffer.length) {
+                // Too big to buffer: send what we have, then write directly.
+                flushBuffer();
+                SerialStreamAdapter.this.write(b, off, len);
+                return;
+            }
+            if (len > mBuffer.length - mCount) {
+                flushBuffer();
+            }
+            System.arraycopy(b, off, mBuffer, mCount, len);
+            mCount += len;
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            flushBuffer();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                SerialStreamAdapter.this.close();
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            if (mCount > 0) {
+                final int count = mCount;
+                mCount = 0;
+                SerialStreamAdapter.this.write(mBuffer, 0, count);
+            }
+        }
+    }
+
+    private class SerialChannel implements ByteChannel {
+
+        /** Staging buffer for destinations without an array; guarded by {@link #mReadLock}. */
+        private byte[] mReadScratch;
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (mClosed && mReadRing.available() == 0) {
+                throw new ClosedChannelException();
+            }
+            final int length = dst.remaining();
+            if (length == 0) {
+                return 0;
+            }
+            if (dst.hasArray()) {
+                final int numBytesRead = SerialStreamAdapter.this.read(dst.array(),
+                        dst.arrayOffset() + dst.position(), length);
+                if (numBytesRead > 0) {
+                    dst.position(dst.position() + numBytesRead);
+                }
+                return numBytesRead;
+            }
+            synchronized (mReadLock) {
+                if (mReadScratch == null) {
+                    mReadScratch = new byte[DEFAULT_WRITE_BUFFER_SIZE];
+                }
+                final int numBytesRead = SerialStreamAdapter.this.read(mReadScratch, 0,
+                        Math.min(length, mReadScratch.length));
+                if (numBytesRead > 0) {
+                    dst.put(mReadScratch, 0, numBytesRead);
+                }
+                return numBytesRead;
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (mClosed) {
+                throw new ClosedChannelException();
+            }
+            return mDriver.write(src, mWriteTimeoutMillis);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !mClosed;
+        }
+
+        @Override
+        public void close() {
+            SerialStreamAdapter.this.close();
+        }
+    }
+
+}
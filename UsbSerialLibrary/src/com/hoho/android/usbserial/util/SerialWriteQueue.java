@@ -0,0 +1,234 @@
+/* Copyright 2013 Google Inc.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: http://code.google.com/p/usb-serial-for-android/
+ */
+
+package com.hoho.android.usbserial.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded FIFO of bytes waiting to be written, used by
+ * {@link SerialInputOutputManager}.
+ * <p>
+ * Writes are accepted whole or not at all, and are stored in a fixed ring so
+ * that queueing and draining do not allocate.  The consumer drains any number
+ * of bytes at once, which coalesces small writes into larger transfers.
+ * <p>
+ * All methods synchronize on the queue, which is notified whenever data is
+ * added or removed.
+ */
+final class SerialWriteQueue {
+
+    private byte[] mBuffer;
+
+    /** Index of the first pending byte in {@link #mBuffer}. */
+    private int mHead = 0;
+
+    /** Number of pending bytes. */
+    private int mSize = 0;
+
+    /**
+     * Ring of stream positions at which each pending write ends, used to
+     * report the number of pending writes.
+     */
+    private long[] mWriteEnds = new long[16];
+    private int mWriteEndsHead = 0;
+    private int mWriteEndsCount = 0;
+
+    /** Total number of bytes ever removed. */
+    private long mDrained = 0;
+
+    /** Whether an offer was rejected since the last {@link #clearRejected()}. */
+    private boolean mRejected = false;
+
+    SerialWriteQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Bad capacity: " + capacity);
+        }
+        mBuffer = new byte[capacity];
+    }
+
+    synchronized int getCapacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * Changes the capacity, keeping any pending data.
+     *
+     * @param capacity the new capacity in bytes, at least {@link #size()}
+     */
+    synchronized void setCapacity(int capacity) {
+        if (capacity <= 0 || capacity < mSize) {
+            throw new IllegalArgumentException("Bad capacity: " + capacity);
+        }
+        if (capacity == mBuffer.length) {
+            return;
+        }
+        final byte[] buffer = new byte[capacity];
+        copyOut(buffer, 0, mSize);
+        mBuffer = buffer;
+        mHead = 0;
+        notifyAll();
+    }
+
+    /** Returns the number of bytes pending. */
+    synchronized int size() {
+        return mSize;
+    }
+
+    /** Returns the number of writes which are at least partly pending. */
+    synchronized int depth() {
+        return mWriteEndsCount;
+    }
+
+    synchronized boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Queues {@code length} bytes of {@code data} if there is room for all of
+     * them.
+     *
+     * @return {@code true} if the data was queued
+     */
+    synchronized boolean offer(byte[] data, int offset, int length) {
+        checkLength(length);
+        if (length > mBuffer.length - mSize) {
+            mRejected = true;
+            return false;
+        }
+        append(data, offset, length);
+        return true;
+    }
+
+    /**
+     * Queues {@code length} bytes of {@code data}, waiting up to the given
+     * time for room.
+     *
+     * @return {@code true} if the data was queued
+     */
+    synchronized boolean offer(byte[] data, int offset, int length, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        checkLength(length);
+        long remainingNanos = unit.toNanos(timeout);
+        final long deadline = System.nanoTime() + remainingNanos;
+        while (length > mBuffer.length - mSize) {
+            if (remainingNanos <= 0) {
+                mRejected = true;
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+            remainingNanos = deadline - System.nanoTime();
+        }
+        append(data, offset, length);
+        return true;
+    }
+
+    /**
+     * Queues {@code length} bytes of {@code data}, waiting as long as
+     * necessary for room.
+     */
+    synchronized void put(byte[] data, int offset, int length) throws InterruptedException {
+        checkLength(length);
+        while (length > mBuffer.length - mSize) {
+            wait();
+        }
+        append(data, offset, length);
+    }
+
+    /**
+     * Removes up to {@code maxLength} pending bytes, regardless of write
+     * boundaries.
+     *
+     * @return the number of bytes copied to {@code dest}
+     */
+    synchronized int poll(byte[] dest, int offset, int maxLength) {
+        final int length = Math.min(mSize, maxLength);
+        if (length == 0) {
+            return 0;
+        }
+        copyOut(dest, offset, length);
+        mHead = (mHead + length) % mBuffer.length;
+        mSize -= length;
+        mDrained += length;
+        while (mWriteEndsCount > 0 && mWriteEnds[mWriteEndsHead] <= mDrained) {
+            mWriteEndsHead = (mWriteEndsHead + 1) % mWriteEnds.length;
+            mWriteEndsCount--;
+        }
+        notifyAll();
+        return length;
+    }
+
+    /** Discards all pending data. */
+    synchronized void clear() {
+        mDrained += mSize;
+        mHead = 0;
+        mSize = 0;
+        mWriteEndsHead = 0;
+        mWriteEndsCount = 0;
+        notifyAll();
+    }
+
+    /**
+     * Returns whether an offer has been rejected for lack of room since the
+     * last call, and resets that state.
+     */
+    synchronized boolean clearRejected() {
+        final boolean rejected = mRejected;
+        mRejected = false;
+        return rejected;
+    }
+
+    private void checkLength(int length) {
+        if (length < 0 || length > mBuffer.length) {
+            throw new IllegalArgumentException("Cannot queue " + length
+                    + " bytes, capacity=" + mBuffer.length);
+        }
+    }
+
+    private void append(byte[] data, int offset, int length) {
+        if (length == 0) {
+            return;
+        }
+        final int tail = (mHead + mSize) % mBuffer.length;
+        final int firstLength = Math.min(length, mBuffer.length - tail);
+        System.arraycopy(data, offset, mBuffer, tail, firstLength);
+        System.arraycopy(data, offset + firstLength, mBuffer, 0, length - firstLength);
+        mSize += length;
+
+        if (mWriteEndsCount == mWriteEnds.length) {
+            final long[] writeEnds = new long[mWriteEnds.length * 2];
+            for (int i = 0; i < mWriteEndsCount; i++) {
+                writeEnds[i] = mWriteEnds[(mWriteEndsHead + i) % mWriteEnds.length];
+            }
+            mWriteEnds = writeEnds;
+            mWriteEndsHead = 0;
+        }
+        mWriteEnds[(mWriteEndsHead + mWriteEndsCount) % mWriteEnds.length] = mDrained + mSize;
+        mWriteEndsCount++;
+        notifyAll();
+    }
+
+    private void copyOut(byte[] dest, int offset, int length) {
+        final int firstLength = Math.min(length, mBuffer.length - mHead);
+        System.arraycopy(mBuffer, mHead, dest, offset, firstLength);
+        System.arraycopy(mBuffer, 0, dest, offset + firstLength, length - firstLength);
+    }
+
+}